@@ -0,0 +1,137 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Folder of jpg images used by the JMH benchmarks.
+ * The "synthetic" dataset is generated in a temporary
+ * folder with images of the same size, the "skewed" one
+ * has one image out of four with twice the width and height.
+ * Any other value is used as an existing folder path.
+ */
+public class BenchmarkDataset {
+
+	public static String SYNTHETIC = "synthetic";
+	public static String SKEWED = "skewed";
+	public static int SKEWED_PERIOD = 4;
+
+	public BenchmarkDataset(String dataset, String imageSize, int imagesCount) throws IOException
+	{
+		if (SYNTHETIC.equals(dataset) || SKEWED.equals(dataset)) {
+			this.folder = createTempFolder();
+			this.temporary = true;
+
+			int width = parseWidth(imageSize);
+			int height = parseHeight(imageSize);
+			Random random = new Random(42);
+			for (int i = 0; i < imagesCount; i++) {
+				int scale = (SKEWED.equals(dataset) && i % SKEWED_PERIOD == 0) ? 2 : 1;
+				BufferedImage image = createImage(scale * width, scale * height, random);
+				ImageIO.write(image, "jpg", new File(this.folder, "synthetic_" + i + ".jpg"));
+			}
+		}
+		else {
+			this.folder = new File(dataset);
+			this.temporary = false;
+			if (!this.folder.isDirectory()) {
+				throw new IOException("Dataset " + dataset + " is not a directory");
+			}
+		}
+
+		this.paths = new ArrayList<String>();
+		for (File file : this.folder.listFiles()) {
+			String fileName = file.getName();
+			if (file.isFile() && (fileName.endsWith("jpg") || fileName.endsWith("jpeg"))) {
+				this.paths.add(file.getAbsolutePath());
+			}
+		}
+
+		if (this.paths.isEmpty()) {
+			throw new IOException("Dataset " + dataset + " does not contain jpg images");
+		}
+	}
+
+	public String getFolder()
+	{
+		return this.folder.getAbsolutePath();
+	}
+
+	public ArrayList<String> getPaths()
+	{
+		return this.paths;
+	}
+
+	/**
+	 * Decode the first image of the dataset, used
+	 * as input of the processing kernels
+	 *
+	 * @return	the decoded BufferedImage
+	 */
+	public BufferedImage decodeFirst() throws IOException
+	{
+		return ImageIO.read(new File(this.paths.get(0)));
+	}
+
+	/**
+	 * Remove generated images, if any
+	 */
+	public void delete()
+	{
+		if (!this.temporary) {
+			return;
+		}
+
+		for (File file : this.folder.listFiles()) {
+			file.delete();
+		}
+		this.folder.delete();
+	}
+
+	/**
+	 * Create an image similar to a camera shot: smooth
+	 * gradients with some noise, so that jpeg encoding
+	 * and decoding do a realistic amount of work
+	 */
+	static BufferedImage createImage(int width, int height, Random random)
+	{
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (x * 255 / width + random.nextInt(16)) & 0xFF;
+				int g = (y * 255 / height + random.nextInt(16)) & 0xFF;
+				int b = ((x + y) * 127 / (width + height) + random.nextInt(16)) & 0xFF;
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		return image;
+	}
+
+	static int parseWidth(String imageSize)
+	{
+		return Integer.parseInt(imageSize.substring(0, imageSize.indexOf('x')));
+	}
+
+	static int parseHeight(String imageSize)
+	{
+		return Integer.parseInt(imageSize.substring(imageSize.indexOf('x') + 1));
+	}
+
+	private static File createTempFolder() throws IOException
+	{
+		File folder = File.createTempFile("jpeg_image_reader_", "_dataset");
+		if (!folder.delete() || !folder.mkdir()) {
+			throw new IOException("Unable to create dataset folder");
+		}
+		return folder;
+	}
+
+	private File folder;						///< Folder containing the dataset images
+	private boolean temporary;				///< True if the folder has been generated and must be deleted
+	private ArrayList<String> paths;		///< Absolute paths of dataset images
+}
@@ -0,0 +1,39 @@
+package jpeg_image_reader;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the usual JMH
+ * command line options and always adds the gc profiler, so
+ * that allocation rate is reported along with ops/s.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException
+	{
+		CommandLineOptions cmdOptions = new CommandLineOptions(args);
+		if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers()
+				|| cmdOptions.shouldListResultFormats()) {
+			// Let the default JMH entry point print the requested information
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		Options options = new OptionsBuilder()
+				.parent(cmdOptions)
+				.addProfiler(GCProfiler.class)
+				.build();
+
+		new Runner(options).run();
+	}
+}
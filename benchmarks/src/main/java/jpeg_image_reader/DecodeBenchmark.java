@@ -0,0 +1,117 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the jpeg decode of a single image, for each
+ * input mode of ImageDecoder (STREAM being plain ImageIO.read).
+ * Decoder scaling is measured with the JMH threads option (-t).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Dataset {
+
+		@Param({"synthetic"})
+		public String dataset;
+
+		@Param({"640x480", "1920x1080", "4000x3000"})
+		public String imageSize;
+
+		@Param({"8"})
+		public int imagesCount;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException
+		{
+			this.images = new BenchmarkDataset(this.dataset, this.imageSize, this.imagesCount);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			this.images.delete();
+		}
+
+		BenchmarkDataset images;
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		@Param({"STREAM", "MAPPED", "DIRECT_BUFFER"})
+		public String inputMode;
+
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			this.decoder = new ImageDecoder(ImageDecoder.InputMode.valueOf(this.inputMode));
+		}
+
+		ImageDecoder decoder;
+		int next;
+	}
+
+	@Benchmark
+	public BufferedImage decode(Dataset dataset, Cursor cursor) throws IOException
+	{
+		String path = dataset.images.getPaths().get(cursor.next);
+		cursor.next = (cursor.next + 1) % dataset.images.getPaths().size();
+
+		return cursor.decoder.decode(path);
+	}
+
+	/**
+	 * Decode releasing each image to the decoder, as a consumer
+	 * done with it would do: same-sized images reuse the raster
+	 */
+	@Benchmark
+	public BufferedImage decodeRecycled(Dataset dataset, Cursor cursor) throws IOException
+	{
+		String path = dataset.images.getPaths().get(cursor.next);
+		cursor.next = (cursor.next + 1) % dataset.images.getPaths().size();
+
+		BufferedImage image = cursor.decoder.decode(path);
+		cursor.decoder.release(image);
+		return image;
+	}
+
+	/**
+	 * Decode with a new decoder, looking up and creating
+	 * the ImageReader for every file as ImageIO.read does
+	 */
+	@Benchmark
+	public BufferedImage decodeNewReader(Dataset dataset, Cursor cursor) throws IOException
+	{
+		String path = dataset.images.getPaths().get(cursor.next);
+		cursor.next = (cursor.next + 1) % dataset.images.getPaths().size();
+
+		ImageDecoder decoder = new ImageDecoder(cursor.decoder.getInputMode());
+		try {
+			return decoder.decode(path);
+		} finally {
+			decoder.dispose();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package jpeg_image_reader;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the grayscale kernels of Image on a
+ * decoded image. The source image is decoded from a jpg
+ * and, unless layout is "decoded", redrawn in the requested
+ * BufferedImage type. The raster average kernel is checked
+ * against the getRGB/setRGB one before measuring; the luminance
+ * kernel uses lookup tables, checked by ImageTest.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GrayscaleBenchmark {
+
+	@Param({"synthetic"})
+	public String dataset;
+
+	@Param({"640x480", "1920x1080", "4000x3000"})
+	public String imageSize;
+
+	@Param({"decoded", "INT_RGB", "BYTE_GRAY"})
+	public String layout;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		if (BenchmarkDataset.SYNTHETIC.equals(this.dataset) || BenchmarkDataset.SKEWED.equals(this.dataset)) {
+			BenchmarkDataset images = new BenchmarkDataset(this.dataset, this.imageSize, 1);
+			this.source = images.decodeFirst();
+			images.delete();
+		}
+		else {
+			this.source = new BenchmarkDataset(this.dataset, this.imageSize, 0).decodeFirst();
+		}
+		this.source = toLayout(this.source, this.layout);
+		this.image = new Image();
+
+		checkSameOutput(this.grayscaleConversion(), this.rasterGrayscaleConversion());
+	}
+
+	@Benchmark
+	public BufferedImage grayscaleConversion()
+	{
+		// Conversion replaces the image held by Image, restore the source each time
+		this.image.setImage(this.source);
+		return this.image.grayscaleConversion();
+	}
+
+	@Benchmark
+	public BufferedImage grayscaleConversionAlt()
+	{
+		this.image.setImage(this.source);
+		return this.image.grayscaleConversionAlt();
+	}
+
+	@Benchmark
+	public BufferedImage rasterGrayscaleConversion()
+	{
+		this.image.setImage(this.source);
+		return this.image.rasterGrayscaleConversion();
+	}
+
+	private static BufferedImage toLayout(BufferedImage image, String layout)
+	{
+		int type;
+		if ("decoded".equals(layout)) {
+			return image;
+		}
+		else if ("INT_RGB".equals(layout)) {
+			type = BufferedImage.TYPE_INT_RGB;
+		}
+		else if ("INT_ARGB".equals(layout)) {
+			type = BufferedImage.TYPE_INT_ARGB;
+		}
+		else if ("3BYTE_BGR".equals(layout)) {
+			type = BufferedImage.TYPE_3BYTE_BGR;
+		}
+		else if ("4BYTE_ABGR".equals(layout)) {
+			type = BufferedImage.TYPE_4BYTE_ABGR;
+		}
+		else if ("BYTE_GRAY".equals(layout)) {
+			type = BufferedImage.TYPE_BYTE_GRAY;
+		}
+		else {
+			throw new IllegalArgumentException("Unknown layout " + layout);
+		}
+
+		BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+		Graphics2D g = converted.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return converted;
+	}
+
+	private static void checkSameOutput(BufferedImage expected, BufferedImage actual)
+	{
+		byte[] expectedData = ((DataBufferByte) expected.getRaster().getDataBuffer()).getData();
+		byte[] actualData = ((DataBufferByte) actual.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < expectedData.length; i++) {
+			if (expectedData[i] != actualData[i]) {
+				throw new IllegalStateException("Raster kernel differs from reference at pixel " + i);
+			}
+		}
+	}
+
+	private BufferedImage source;		///< Decoded source image
+	private Image image;					///< Image wrapper used for the conversion
+}
@@ -0,0 +1,98 @@
+package jpeg_image_reader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to load a whole dataset with the parallel loaders.
+ * Sampled, so that the percentiles of the batch completion
+ * time show the tail caused by unevenly sized files
+ * ("skewed" dataset).
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoaderBenchmark {
+
+	@Param({"synthetic", "skewed"})
+	public String dataset;
+
+	@Param({"1920x1080"})
+	public String imageSize;
+
+	@Param({"16"})
+	public int imagesCount;
+
+	@Param({"2", "4"})
+	public int threads;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		this.images = new BenchmarkDataset(this.dataset, this.imageSize, this.imagesCount);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.images.delete();
+	}
+
+	@Benchmark
+	public int poolLoad()
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		imageLoader.parallelLoadImages(this.images.getFolder(), this.threads, ImageLoader.ThreadType.POOL_THREAD, 0);
+
+		imageLoader.waitCompletion();
+		return imageLoader.getNumberOfImages();
+	}
+
+	@Benchmark
+	public int threadLoad() throws InterruptedException
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		ArrayList<Thread> threadList = imageLoader.parallelLoadImages(this.images.getFolder(), this.threads,
+				ImageLoader.ThreadType.NO_POOL_THREAD, 0);
+
+		for (Thread t : threadList) {
+			t.join();
+		}
+		return imageLoader.getNumberOfImages();
+	}
+
+	@Benchmark
+	public int callableLoad() throws InterruptedException, ExecutionException
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		ArrayList<Future<Integer>> futureList = imageLoader.callableLoadImages(this.images.getFolder(), this.threads);
+
+		int imagesCount = 0;
+		for (Future<Integer> f : futureList) {
+			imagesCount += f.get();
+		}
+		return imagesCount;
+	}
+
+	private BenchmarkDataset images;		///< Dataset loaded at each invocation
+}
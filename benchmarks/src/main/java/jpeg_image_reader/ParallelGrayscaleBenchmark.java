@@ -0,0 +1,96 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the fork/join grayscale conversion of a single
+ * image, as a function of the fork/join pool parallelism.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParallelGrayscaleBenchmark {
+
+	@Param({"synthetic"})
+	public String dataset;
+
+	@Param({"1920x1080", "4000x3000", "12000x9000"})
+	public String imageSize;
+
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		BenchmarkDataset images = new BenchmarkDataset(this.dataset, this.imageSize, 1);
+		this.source = images.decodeFirst();
+		images.delete();
+
+		this.pool = new ForkJoinPool(this.threads);
+		this.image = new Image();
+
+		byte[] expected = grayData(this.rasterGrayscaleConversion());
+		if (!Arrays.equals(expected, grayData(this.parallelGrayscaleConversion()))) {
+			throw new IllegalStateException("Fork/join conversion differs from sequential one");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.pool.shutdown();
+	}
+
+	@Benchmark
+	public BufferedImage rasterGrayscaleConversion()
+	{
+		this.image.setImage(this.source);
+		return this.image.rasterGrayscaleConversion();
+	}
+
+	@Benchmark
+	public BufferedImage parallelGrayscaleConversion()
+	{
+		this.image.setImage(this.source);
+		return this.image.parallelGrayscaleConversion(this.pool);
+	}
+
+	@Benchmark
+	public BufferedImage parallelGrayscaleConversionAlt()
+	{
+		this.image.setImage(this.source);
+		return this.image.parallelGrayscaleConversionAlt(this.pool);
+	}
+
+	private static byte[] grayData(BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	private BufferedImage source;		///< Decoded source image
+	private ForkJoinPool pool;			///< Pool sized with the requested threads
+	private Image image;					///< Image wrapper used for the conversion
+}
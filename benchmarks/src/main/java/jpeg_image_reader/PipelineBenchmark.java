@@ -0,0 +1,152 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end load + grayscale processing of a whole dataset,
+ * one operation being one full batch. Unlike BenchmarkSuite
+ * the shared pools are never closed between invocations.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+	@Param({"synthetic"})
+	public String dataset;
+
+	@Param({"1920x1080"})
+	public String imageSize;
+
+	@Param({"16"})
+	public int imagesCount;
+
+	@Param({"1", "2", "4"})
+	public int threads;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		this.images = new BenchmarkDataset(this.dataset, this.imageSize, this.imagesCount);
+		this.pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.images.delete();
+	}
+
+	@Benchmark
+	public int sequentialLoadSequentialOp()
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		imageLoader.loadImages(this.images.getFolder(), 0);
+
+		int converted = 0;
+		while (imageLoader.getNumberOfImages() != 0) {
+			BufferedImage image = imageLoader.popImage();
+			if (image != null) {
+				new Image(image).grayscaleConversion();
+				converted++;
+			}
+		}
+
+		return converted;
+	}
+
+	@Benchmark
+	public int sequentialLoadParallelOp()
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		imageLoader.loadImages(this.images.getFolder(), 0);
+
+		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
+		while (imageLoader.getNumberOfImages() != 0) {
+			BufferedImage image = imageLoader.popImage();
+			if (image != null) {
+				futureList.add(this.pool.submitCallableProcess(new ImageProcessingThread(new Image(image))));
+			}
+		}
+
+		return waitProcessing(futureList);
+	}
+
+	@Benchmark
+	public int parallelLoadParallelOp()
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		imageLoader.parallelLoadImages(this.images.getFolder(), this.threads, ImageLoader.ThreadType.POOL_THREAD, 0);
+
+		// Async pop images and assign them to callables
+		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
+		BufferedImage image = null;
+		while ((image = imageLoader.takeImage()) != null) {
+			futureList.add(this.pool.submitCallableProcess(new ImageProcessingThread(new Image(image))));
+		}
+
+		return waitProcessing(futureList);
+	}
+
+	@Benchmark
+	public int callableLoadParallelOp() throws InterruptedException, ExecutionException
+	{
+		ImageLoader imageLoader = new ImageLoader();
+		ArrayList<Future<Integer>> loadList = imageLoader.callableLoadImages(this.images.getFolder(), this.threads);
+		for (Future<Integer> f : loadList) {
+			f.get();
+		}
+
+		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
+		while (!imageLoader.isMapEmpty()) {
+			BufferedImage image = imageLoader.popImage();
+			if (image != null) {
+				futureList.add(this.pool.submitCallableProcess(new ImageProcessingThread(new Image(image))));
+			}
+		}
+
+		return waitProcessing(futureList);
+	}
+
+	private static int waitProcessing(ArrayList<Future<BufferedImage>> futureList)
+	{
+		int converted = 0;
+		for (Future<BufferedImage> f : futureList) {
+			try {
+				if (f.get() != null) {
+					converted++;
+				}
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return converted;
+	}
+
+	private BenchmarkDataset images;		///< Dataset loaded at each invocation
+	private ThreadPool pool;						///< Shared pool, kept alive for the whole trial
+}
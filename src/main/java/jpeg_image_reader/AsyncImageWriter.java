@@ -0,0 +1,214 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous output stage: images are encoded and written on the
+ * ENCODE pool, each thread reusing its own ImageEncoder. The number
+ * of writes in flight is bounded, so producers faster than the disk
+ * wait instead of piling up images in memory. Files are not flushed
+ * one by one: every syncBatch written files, they are flushed together
+ * with the output folder, so a crash loses at most the last batch.
+ */
+public class AsyncImageWriter {
+
+	static int DEFAULT_MAX_PENDING_WRITES = 2 * ThreadPool.DEFAULT_ENCODE_POOL_SIZE;
+	static int DEFAULT_SYNC_BATCH = 32;
+
+	public AsyncImageWriter(String outputPath)
+	{
+		this(outputPath, DEFAULT_MAX_PENDING_WRITES, ImageEncoder.DEFAULT_QUALITY);
+	}
+
+	/**
+	 * @param outputPath: 		folder of the written images, created if missing
+	 * @param maxPendingWrites: images being encoded or written at the same time
+	 * @param quality: 			jpeg quality, from 0 to 1
+	 */
+	public AsyncImageWriter(String outputPath, int maxPendingWrites, float quality)
+	{
+		this.directory = new File(outputPath);
+		this.maxPendingWrites = Math.max(1, maxPendingWrites);
+		this.pendingWrites = new Semaphore(this.maxPendingWrites);
+		this.quality = Math.min(1, Math.max(0, quality));
+		this.optimizeHuffman = false;
+		this.syncBatch = DEFAULT_SYNC_BATCH;
+		this.unsynced = new ArrayList<File>();
+		this.writtenImages = new AtomicLong(0);
+		this.writtenBytes = new AtomicLong(0);
+		this.failedImages = new AtomicLong(0);
+		this.directory.mkdirs();
+	}
+
+	public File getDirectory()
+	{
+		return this.directory;
+	}
+
+	/**
+	 * Compute optimal Huffman tables for each written image
+	 *
+	 * @param optimizeHuffman: true to optimize the Huffman tables
+	 */
+	public void setOptimizeHuffman(boolean optimizeHuffman)
+	{
+		this.optimizeHuffman = optimizeHuffman;
+	}
+
+	/**
+	 * Set how many files are written between two flushes
+	 *
+	 * @param syncBatch: written files per flush, 0 to never flush
+	 * @return			 true if successful, false otherwise
+	 */
+	public boolean setSyncBatch(int syncBatch)
+	{
+		if (syncBatch < 0) {
+			System.out.println("Invalid sync batch");
+			return false;
+		}
+
+		this.syncBatch = syncBatch;
+		return true;
+	}
+
+	/**
+	 * Encode and write an image in the output folder, waiting
+	 * for a free slot if too many writes are in flight
+	 *
+	 * @param name: 	 name of the output file
+	 * @param image: 	 image to be written
+	 * @param imagePool: pool the image is given back to once written,
+	 * 					 null to keep the image referenced by the caller
+	 * @return			 future completed with the written bytes, or
+	 * 					 exceptionally if the image cannot be written
+	 */
+	public CompletableFuture<Integer> write(String name, BufferedImage image, ImagePool imagePool)
+	{
+		this.pendingWrites.acquireUninterruptibly();
+
+		File file = new File(this.directory, name);
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				ImageEncoder encoder = ImageEncoder.forCurrentThread();
+				encoder.setQuality(this.quality);
+				encoder.setOptimizeHuffman(this.optimizeHuffman);
+				int size = encoder.write(image, file, false);
+				this.writtenImages.incrementAndGet();
+				this.writtenBytes.addAndGet(size);
+				this.written(file);
+				return size;
+			} catch (IOException e) {
+				this.failedImages.incrementAndGet();
+				System.out.println("Unable to write image " + file);
+				throw new CompletionException(e);
+			} finally {
+				if (imagePool != null) {
+					imagePool.release(image);
+				}
+				this.pendingWrites.release();
+			}
+		}, ThreadPool.getThreadPool(ThreadPool.PoolType.ENCODE).getExecutor());
+	}
+
+	/**
+	 * Wait for the writes in flight and flush the files
+	 * written since the last batch
+	 */
+	public void flush()
+	{
+		this.pendingWrites.acquireUninterruptibly(this.maxPendingWrites);
+		this.pendingWrites.release(this.maxPendingWrites);
+		this.sync(this.takeUnsynced());
+	}
+
+	public long getWrittenImages()
+	{
+		return this.writtenImages.get();
+	}
+
+	public long getWrittenBytes()
+	{
+		return this.writtenBytes.get();
+	}
+
+	public long getFailedImages()
+	{
+		return this.failedImages.get();
+	}
+
+	/**
+	 * Record a written file, flushing the batch once complete
+	 */
+	private void written(File file)
+	{
+		if (this.syncBatch == 0) {
+			return;
+		}
+
+		ArrayList<File> batch = null;
+		synchronized (this.unsynced) {
+			this.unsynced.add(file);
+			if (this.unsynced.size() >= this.syncBatch) {
+				batch = this.takeUnsynced();
+			}
+		}
+		this.sync(batch);
+	}
+
+	private ArrayList<File> takeUnsynced()
+	{
+		synchronized (this.unsynced) {
+			ArrayList<File> batch = new ArrayList<File>(this.unsynced);
+			this.unsynced.clear();
+			return batch;
+		}
+	}
+
+	/**
+	 * Flush the content of the files, then the folder
+	 * holding their entries
+	 */
+	private void sync(ArrayList<File> batch)
+	{
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+
+		for (File file : batch) {
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(false);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to flush " + file);
+			}
+		}
+
+		// Folders cannot be opened as channels on every platform
+		try (FileChannel channel = FileChannel.open(this.directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Nothing to do, the folder entries are flushed by the file system
+		}
+	}
+
+	private File directory;						///< Folder of the written images
+	private int maxPendingWrites;				///< Writes in flight at the same time
+	private Semaphore pendingWrites;			///< Free slots for writes in flight
+	private float quality;						///< Jpeg quality, from 0 to 1
+	private volatile boolean optimizeHuffman;	///< True to compute optimal Huffman tables
+	private volatile int syncBatch;				///< Written files per flush, 0 to never flush
+	private ArrayList<File> unsynced;			///< Files written since the last flush
+	private AtomicLong writtenImages;			///< Images written
+	private AtomicLong writtenBytes;			///< Bytes of the written images
+	private AtomicLong failedImages;			///< Images that could not be written
+}
@@ -0,0 +1,50 @@
+package jpeg_image_reader;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Result of ImageLoader.loadAsync: one future per image,
+ * completed as soon as that image has been decoded, and
+ * one future completed when the whole batch is over
+ */
+public class AsyncLoad {
+
+	AsyncLoad(ArrayList<CompletableFuture<LoadedImage>> images)
+	{
+		this.images = images;
+
+		// Count decoded images once every future is done, failed ones included
+		CompletableFuture<?>[] all = images.toArray(new CompletableFuture<?>[images.size()]);
+		this.completion = CompletableFuture.allOf(all).handle((ignored, error) -> {
+			int decoded = 0;
+			for (CompletableFuture<LoadedImage> f : images) {
+				if (!f.isCompletedExceptionally()) {
+					decoded++;
+				}
+			}
+			return decoded;
+		});
+	}
+
+	/**
+	 * @return	the futures of the single images. A future
+	 * 			completes exceptionally if its image cannot be decoded
+	 */
+	public ArrayList<CompletableFuture<LoadedImage>> getImages()
+	{
+		return this.images;
+	}
+
+	/**
+	 * @return	a future completed with the number of decoded
+	 * 			images once all the images have been processed
+	 */
+	public CompletableFuture<Integer> getCompletion()
+	{
+		return this.completion;
+	}
+
+	private ArrayList<CompletableFuture<LoadedImage>> images;		///< Futures of the single images
+	private CompletableFuture<Integer> completion;					///< Future of the whole batch
+}
@@ -0,0 +1,483 @@
+package jpeg_image_reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Summary of a benchmark run: per-image latency percentiles of each
+ * stage, taken from the Metrics histograms reset at the start of the
+ * run, throughput, and the garbage collections and heap allocations
+ * that happened during the run. A single total duration hides the
+ * tail, e.g. a few large files or a GC pause, which percentiles show.
+ * Reports are printed on the console and as one JSON line, that can
+ * also be appended to the file set by -Djpeg_image_reader.report.
+ */
+public class BenchmarkReport {
+
+	static String REPORT_FILE = System.getProperty("jpeg_image_reader.report");
+	static double[] PERCENTILES = {50, 90, 99};
+
+	private BenchmarkReport(String name)
+	{
+		this.name = name;
+		this.parameters = new LinkedHashMap<String, Object>();
+		this.stages = new EnumMap<Metrics.Stage, StageSummary>(Metrics.Stage.class);
+	}
+
+	/**
+	 * Start a report, resetting the stage and pool metrics
+	 *
+	 * @param name: name of the benchmark, e.g. the operation
+	 * @return		the started report
+	 */
+	public static BenchmarkReport start(String name)
+	{
+		BenchmarkReport report = new BenchmarkReport(name);
+		Metrics.getMetrics().reset();
+		report.gcCount = gcCount();
+		report.gcMillis = gcMillis();
+		report.allocatedBytes = totalAllocatedBytes();
+		if (report.allocatedBytes < 0) {
+			report.heapAllocations = HeapAllocationListener.start();
+		}
+		report.elapsedNanos = System.nanoTime();
+		return report;
+	}
+
+	/**
+	 * Add a parameter of the run to the report, e.g. the number of threads
+	 *
+	 * @param key: 		name of the parameter
+	 * @param value: 	a number, a boolean or a string
+	 * @return			the report
+	 */
+	public BenchmarkReport setParameter(String key, Object value)
+	{
+		this.parameters.put(key, value);
+		return this;
+	}
+
+	/**
+	 * Stop the report, taking a snapshot of the stages
+	 *
+	 * @return	the report
+	 */
+	public BenchmarkReport finish()
+	{
+		if (this.finished) {
+			return this;
+		}
+
+		this.elapsedNanos = System.nanoTime() - this.elapsedNanos;
+		if (this.heapAllocations != null) {
+			this.allocatedBytes = this.heapAllocations.stop();
+			this.heapAllocations = null;
+		}
+		else {
+			this.allocatedBytes = totalAllocatedBytes() - this.allocatedBytes;
+		}
+		this.gcMillis = gcMillis() - this.gcMillis;
+		this.gcCount = gcCount() - this.gcCount;
+		for (Metrics.Stage stage : Metrics.Stage.values()) {
+			this.stages.put(stage, new StageSummary(Metrics.getMetrics().getStage(stage)));
+		}
+		this.cacheHits = Metrics.getMetrics().getCacheHits();
+		this.finished = true;
+		return this;
+	}
+
+	public String getName()
+	{
+		return this.name;
+	}
+
+	public double getElapsedMillis()
+	{
+		return this.elapsedNanos / 1e6;
+	}
+
+	/**
+	 * @return	images delivered during the run, decoded or loaded from the disk cache
+	 */
+	public long getImages()
+	{
+		return this.stages.get(Metrics.Stage.DECODE).count + this.cacheHits;
+	}
+
+	/**
+	 * @return	images loaded from the disk cache during the run
+	 */
+	public long getCacheHits()
+	{
+		return this.cacheHits;
+	}
+
+	public double getImagesPerSecond()
+	{
+		return this.elapsedNanos == 0 ? 0 : this.getImages() * 1e9 / this.elapsedNanos;
+	}
+
+	/**
+	 * @return	megabytes read from files or cache entries per second
+	 */
+	public double getMegabytesPerSecond()
+	{
+		return this.elapsedNanos == 0 ? 0 : this.stages.get(Metrics.Stage.READ).bytes * 1e3 / this.elapsedNanos;
+	}
+
+	public long getGcCount()
+	{
+		return this.gcCount;
+	}
+
+	public long getGcMillis()
+	{
+		return this.gcMillis;
+	}
+
+	/**
+	 * @return	bytes allocated on the heap during the run, counted by the
+	 * 			JVM on JDK 21+, estimated from the collections otherwise
+	 */
+	public long getAllocatedBytes()
+	{
+		return this.allocatedBytes;
+	}
+
+	/**
+	 * Print the summary on the console, followed by the JSON line
+	 */
+	public void print()
+	{
+		System.out.println(String.format(Locale.ROOT, "Report %s: %d images in %.0fms, %.1f images/s, %.1f MB/s",
+				this.name, this.getImages(), this.getElapsedMillis(), this.getImagesPerSecond(), this.getMegabytesPerSecond()));
+		if (this.cacheHits > 0) {
+			System.out.println(String.format(Locale.ROOT, "  cache    %6d hits", this.cacheHits));
+		}
+		for (Map.Entry<Metrics.Stage, StageSummary> entry : this.stages.entrySet()) {
+			StageSummary stage = entry.getValue();
+			if (stage.count == 0 && stage.errors == 0) {
+				continue;
+			}
+			StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "  %-8s %6d ops %4d errors",
+					entry.getKey().name().toLowerCase(), stage.count, stage.errors));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				line.append(String.format(Locale.ROOT, "  p%s %.2fms", percentileName(PERCENTILES[i]), stage.percentiles[i] / 1e6));
+			}
+			line.append(String.format(Locale.ROOT, "  max %.2fms", stage.maxNanos / 1e6));
+			System.out.println(line);
+		}
+		System.out.println(String.format(Locale.ROOT, "  gc       %6d collections, %dms, %s allocated", this.gcCount, this.gcMillis,
+				this.allocatedBytes < 0 ? "unknown" : String.format(Locale.ROOT, "%.1fMB", this.allocatedBytes / 1e6)));
+		System.out.println(this.toJson());
+	}
+
+	/**
+	 * Append the JSON line of the report to a file
+	 *
+	 * @param file: file of the reports, created if missing
+	 * @return		true if successful, false otherwise
+	 */
+	public boolean append(File file)
+	{
+		try {
+			Files.write(file.toPath(), (this.toJson() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write report to " + file);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Print the report and append it to the report file, if set
+	 */
+	public void publish()
+	{
+		this.finish();
+		this.print();
+		if (REPORT_FILE != null) {
+			this.append(new File(REPORT_FILE));
+		}
+	}
+
+	/**
+	 * @return	the report as a single line JSON object, durations in milliseconds
+	 */
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\"name\":").append(quote(this.name));
+		json.append(",\"parameters\":{");
+		String separator = "";
+		for (Map.Entry<String, Object> parameter : this.parameters.entrySet()) {
+			json.append(separator).append(quote(parameter.getKey())).append(':').append(value(parameter.getValue()));
+			separator = ",";
+		}
+		json.append('}');
+		json.append(",\"elapsedMillis\":").append(millis(this.elapsedNanos));
+		json.append(",\"images\":").append(this.getImages());
+		json.append(",\"cacheHits\":").append(this.cacheHits);
+		json.append(",\"imagesPerSecond\":").append(number(this.getImagesPerSecond()));
+		json.append(",\"megabytesPerSecond\":").append(number(this.getMegabytesPerSecond()));
+		json.append(",\"gcCount\":").append(this.gcCount);
+		json.append(",\"gcMillis\":").append(this.gcMillis);
+		json.append(",\"allocatedBytes\":").append(this.allocatedBytes);
+		json.append(",\"stages\":{");
+		separator = "";
+		for (Map.Entry<Metrics.Stage, StageSummary> entry : this.stages.entrySet()) {
+			StageSummary stage = entry.getValue();
+			json.append(separator).append(quote(entry.getKey().name().toLowerCase())).append(":{");
+			json.append("\"count\":").append(stage.count);
+			json.append(",\"errors\":").append(stage.errors);
+			json.append(",\"bytes\":").append(stage.bytes);
+			json.append(",\"meanMillis\":").append(millis(stage.meanNanos));
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				json.append(",\"p").append(percentileName(PERCENTILES[i])).append("Millis\":").append(millis(stage.percentiles[i]));
+			}
+			json.append(",\"maxMillis\":").append(millis(stage.maxNanos));
+			json.append('}');
+			separator = ",";
+		}
+		json.append("}}");
+		return json.toString();
+	}
+
+	/**
+	 * Count the collections of all the collectors since the JVM start
+	 */
+	private static long gcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	/**
+	 * Evaluate the time spent in garbage collections since the JVM start
+	 */
+	private static long gcMillis()
+	{
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	/**
+	 * @return	bytes allocated by all the threads since the JVM start,
+	 * 			-1 if the JVM wide counter (JDK 21+) is not available
+	 */
+	private static long totalAllocatedBytes()
+	{
+		if (totalAllocatedBytes == null) {
+			return -1;
+		}
+
+		try {
+			return (Long) totalAllocatedBytes.invoke(ManagementFactory.getThreadMXBean());
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return	bytes used by the objects of the heap memory pools
+	 */
+	private static long usedHeap()
+	{
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				used += pool.getUsage().getUsed();
+			}
+		}
+		return used;
+	}
+
+	private static String percentileName(double percentile)
+	{
+		return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile).replace('.', '_');
+	}
+
+	private static String millis(long nanos)
+	{
+		return number(nanos / 1e6);
+	}
+
+	private static String number(double value)
+	{
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String value(Object value)
+	{
+		if (value instanceof Number || value instanceof Boolean) {
+			return value.toString();
+		}
+		return quote(String.valueOf(value));
+	}
+
+	/**
+	 * Quote a JSON string, escaping quotes, backslashes and control characters
+	 */
+	private static String quote(String s)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			}
+			else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * Estimate of the heap allocations when the JVM does not count them:
+	 * the heap grows by the allocated bytes between two collections, so
+	 * the growth before each collection notified during the run is summed,
+	 * along with the growth since the last one
+	 */
+	private static class HeapAllocationListener implements NotificationListener {
+
+		static HeapAllocationListener start()
+		{
+			HeapAllocationListener listener = new HeapAllocationListener();
+			listener.lastUsed = usedHeap();
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter) {
+					((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+				}
+			}
+			return listener;
+		}
+
+		@Override
+		public synchronized void handleNotification(Notification notification, Object handback)
+		{
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+				return;
+			}
+
+			GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+			long before = heapUsed(info.getMemoryUsageBeforeGc());
+			this.allocated += Math.max(0, before - this.lastUsed);
+			this.lastUsed = heapUsed(info.getMemoryUsageAfterGc());
+		}
+
+		/**
+		 * Stop listening to the collections
+		 *
+		 * @return	estimated bytes allocated since the start
+		 */
+		synchronized long stop()
+		{
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				if (gc instanceof NotificationEmitter) {
+					try {
+						((NotificationEmitter) gc).removeNotificationListener(this);
+					} catch (ListenerNotFoundException e) {
+						// Not registered on this collector
+					}
+				}
+			}
+			return this.allocated + Math.max(0, usedHeap() - this.lastUsed);
+		}
+
+		private static long heapUsed(Map<String, MemoryUsage> pools)
+		{
+			long used = 0;
+			for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+				MemoryUsage usage = pools.get(pool.getName());
+				if (pool.getType() == MemoryType.HEAP && usage != null) {
+					used += usage.getUsed();
+				}
+			}
+			return used;
+		}
+
+		private long allocated;			///< Bytes allocated until the last collection
+		private long lastUsed;			///< Used heap after the last collection
+	}
+
+	/**
+	 * Snapshot of the metrics of a stage
+	 */
+	private static class StageSummary {
+
+		StageSummary(StageMetrics stage)
+		{
+			LatencyHistogram latency = stage.getLatency();
+			this.count = latency.getCount();
+			this.errors = stage.getErrors();
+			this.bytes = stage.getBytes();
+			this.meanNanos = latency.getMeanNanos();
+			this.maxNanos = latency.getMaxNanos();
+			this.percentiles = new long[PERCENTILES.length];
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				this.percentiles[i] = latency.getPercentileNanos(PERCENTILES[i]);
+			}
+		}
+
+		long count;				///< Recorded operations
+		long errors;			///< Failed operations
+		long bytes;				///< Bytes processed
+		long meanNanos;			///< Mean duration
+		long maxNanos;			///< Longest duration
+		long[] percentiles;		///< Durations at PERCENTILES
+	}
+
+	private static Method totalAllocatedBytes;		///< ThreadMXBean.getTotalThreadAllocatedBytes(), null if not available
+
+	static {
+		try {
+			totalAllocatedBytes = com.sun.management.ThreadMXBean.class.getMethod("getTotalThreadAllocatedBytes");
+		} catch (ReflectiveOperationException e) {
+			totalAllocatedBytes = null;
+		}
+	}
+
+	private String name;									///< Name of the benchmark
+	private LinkedHashMap<String, Object> parameters;		///< Parameters of the run, in insertion order
+	private EnumMap<Metrics.Stage, StageSummary> stages;	///< Stage snapshots taken by finish
+	private long cacheHits;									///< Images loaded from the disk cache, taken by finish
+	private long elapsedNanos;								///< Wall clock duration of the run, start time until finished
+	private long gcCount;									///< Collections during the run, since the JVM start until finished
+	private long gcMillis;									///< Time spent in collections during the run, since the JVM start until finished
+	private long allocatedBytes;							///< Bytes allocated during the run, JVM counter at the start until finished
+	private HeapAllocationListener heapAllocations;			///< Estimate of the allocations, null with the JVM wide counter
+	private boolean finished;								///< True once the snapshot is taken
+}
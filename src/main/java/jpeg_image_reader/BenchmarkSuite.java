@@ -1,20 +1,54 @@
 package jpeg_image_reader;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
 
 public final class BenchmarkSuite {
 	
+	static int DEFAULT_INJECTED_LATENCY = 50;
+	static int DEFAULT_THUMBNAIL_WIDTH = 320;
+	static int DEFAULT_THUMBNAIL_HEIGHT = 240;
+	static int DEFAULT_RAW_BATCH = 8;
+	static int[] COMPARISON_OPERATIONS = {12, 13, 15, 16, 18, 19};
+	
 	private BenchmarkSuite() {}
 	
+	/**
+	 * @param operation: operation number, as listed by the usage
+	 * @return			 true if the operation compares several variants,
+	 * 					 each of them published in its own report
+	 */
+	public static boolean isComparison(int operation)
+	{
+		for (int comparison : COMPARISON_OPERATIONS) {
+			if (comparison == operation) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	public static boolean runSequentialLoad(String folderPath, int sleepTime)
 	{
 		System.out.println("Starting sequential load of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
 		
 		long startTime = System.currentTimeMillis();
 		
@@ -29,7 +63,6 @@ public final class BenchmarkSuite {
 		System.out.println("Sequential loading execution time: " + (endTime - startTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
@@ -39,15 +72,13 @@ public final class BenchmarkSuite {
 		System.out.println("Starting parallel load using thread pool of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
 		
 		long startTime = System.currentTimeMillis();
 		
 		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
 		
-		// Sync wait for termination of tasks in pool
-		pool.closePool();
-		pool.waitTermination();
+		// Sync wait for loaders to complete
+		imageLoader.waitCompletion();
 		
 		long endTime = System.currentTimeMillis();
 		
@@ -64,7 +95,6 @@ public final class BenchmarkSuite {
 		System.out.println("Starting parallel load using callables of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
 		
 		long startTime = System.currentTimeMillis();
 		
@@ -89,7 +119,6 @@ public final class BenchmarkSuite {
 		System.out.println("Parallel loading (callable) execution time: " + (endTime - startTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
@@ -99,7 +128,6 @@ public final class BenchmarkSuite {
 		System.out.println("Starting parallel load using threads of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
 		
 		long startTime = System.currentTimeMillis();
 		
@@ -121,7 +149,6 @@ public final class BenchmarkSuite {
 		System.out.println("Parallel loading (without pool) execution time: " + (endTime - startTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
@@ -131,7 +158,6 @@ public final class BenchmarkSuite {
 		System.out.println("Starting sequential load and processing of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
 		
 		long startTime = System.currentTimeMillis();
 		
@@ -156,7 +182,7 @@ public final class BenchmarkSuite {
 				
 			if (image != null) {
 				img.setImage(image);
-				gsImages.add(img.grayscaleConversion());
+				gsImages.add(img.rasterGrayscaleConversion());
 			}
 		}
 		
@@ -168,7 +194,53 @@ public final class BenchmarkSuite {
 		System.out.println("Sequential loading + processing execution time: " + (loadTime + processingTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
+		
+		return true;
+	}
+	
+	public static boolean runSequentialLoadForkJoinOp(String folderPath, int sleepTime)
+	{
+		System.out.println("Starting sequential load and fork/join processing of images in path " + folderPath);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+		
+		long startTime = System.currentTimeMillis();
+		
+		if (!imageLoader.loadImages(folderPath, sleepTime)) {
+			System.out.println("Unable to load requested folder");
+			return false;
+		}
+		
+		long endTime = System.currentTimeMillis();
+		long loadTime = endTime - startTime;
+		
+		System.out.println("Sequential image loading took: " + (loadTime) + "ms"); 
+	
+		startTime = System.currentTimeMillis();
+		
+		BufferedImage image = null;
+		Image img = new Image();
+		ArrayList<BufferedImage> gsImages = new ArrayList<BufferedImage>();
+		
+		// Each image is split in bands processed by all the fork/join workers
+		while (imageLoader.getNumberOfImages() != 0) {
+			image = imageLoader.popImage();
+				
+			if (image != null) {
+				img.setImage(image);
+				gsImages.add(img.parallelGrayscaleConversion(forkJoinPool));
+			}
+		}
+		
+		endTime = System.currentTimeMillis();
+		long processingTime = endTime - startTime;
+		
+		System.out.println("Fork/join image processing (parallelism " + forkJoinPool.getParallelism() + ") took: " + (processingTime) + "ms"); 
+		System.out.println("Converted " + gsImages.size() + " images to grayscale");
+		System.out.println("Sequential loading + fork/join processing execution time: " + (loadTime + processingTime) + "ms"); 
+		
+		imageLoader.resetImages();
 		
 		return true;
 	}
@@ -178,7 +250,7 @@ public final class BenchmarkSuite {
 		System.out.println("Starting sequential load and parallel processing of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
 		
 		long startTime = System.currentTimeMillis();
 		
@@ -192,7 +264,6 @@ public final class BenchmarkSuite {
 		System.out.println("Sequential image loading took: " + (loadTime) + "ms"); 
 	
 		BufferedImage image = null;
-		Image img = new Image();
 		ArrayList<BufferedImage> gsImages = new ArrayList<BufferedImage>();
 		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
 		
@@ -202,8 +273,7 @@ public final class BenchmarkSuite {
 			image = imageLoader.popImage();
 				
 			if (image != null) {
-				img.setImage(image);
-				futureList.add(pool.submitCallableProcess(new ImageProcessingThread(img)));
+				futureList.add(pool.submitCallableProcess(new ImageProcessingThread(new Image(image), ImagePool.getImagePool())));
 			}
 		}
 		
@@ -228,7 +298,6 @@ public final class BenchmarkSuite {
 		System.out.println("Sequential loading + parallel processing execution time: " + (loadTime + processingTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
@@ -238,9 +307,8 @@ public final class BenchmarkSuite {
 		System.out.println("Starting parallel load and async processing of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
 		BufferedImage image = null;
-		Image img = new Image();
 		ArrayList<BufferedImage> gsImages = new ArrayList<BufferedImage>();
 		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
 		
@@ -248,15 +316,10 @@ public final class BenchmarkSuite {
 		
 		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
 		
-		// Async pop images and assign them to callables
-		while (!imageLoader.getCompleted() || !imageLoader.isMapEmpty()) {
-			imageLoader.waitForProducer();
-			image = imageLoader.popImage();
-
-			if (image != null) {
-				img.setImage(image);
-				futureList.add(pool.submitCallableProcess(new ImageProcessingThread(img)));
-			}
+		// Async pop images and assign them to callables, waiting
+		// for loaders only when no image is ready
+		while ((image = imageLoader.takeImage()) != null) {
+			futureList.add(pool.submitCallableProcess(new ImageProcessingThread(new Image(image), ImagePool.getImagePool())));
 		}
 		
 		long endTime = System.currentTimeMillis();
@@ -282,7 +345,6 @@ public final class BenchmarkSuite {
 		System.out.println("Parallel loading + parallel processing execution time: " + (endTime - startTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
@@ -292,20 +354,17 @@ public final class BenchmarkSuite {
 		System.out.println("Starting parallel load and async processing of images in path " + folderPath);
 		
 		ImageLoader imageLoader = new ImageLoader();
-		ThreadPool pool = ThreadPool.getThreadPool();
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
 		
 		long startTime = System.currentTimeMillis();
 		
 		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
 		
 		BufferedImage image = null;
-		Image img = new Image();
 		ArrayList<BufferedImage> gsImages = new ArrayList<BufferedImage>();
 		ArrayList<Future<BufferedImage>> futureList = new ArrayList<Future<BufferedImage>>();
 		
-		while(!imageLoader.getCompleted()){
-			imageLoader.waitForProducer();
-		}
+		imageLoader.waitCompletion();
 		
 		long endTime = System.currentTimeMillis();
 		long loadTime = endTime - startTime;
@@ -318,8 +377,7 @@ public final class BenchmarkSuite {
 			image = imageLoader.popImage();
 				
 			if (image != null) {
-				img.setImage(image);
-				futureList.add(pool.submitCallableProcess(new ImageProcessingThread(img)));
+				futureList.add(pool.submitCallableProcess(new ImageProcessingThread(new Image(image), ImagePool.getImagePool())));
 			}
 		}
 		
@@ -344,9 +402,694 @@ public final class BenchmarkSuite {
 		System.out.println("Parallel loading + parallel processing execution time: " + (loadTime + processingTime) + "ms"); 
 		
 		imageLoader.resetImages();
-		pool.closePool();
 		
 		return true;
 	}
 
+
+	public static boolean runAsyncLoadOp(String folderPath)
+	{
+		System.out.println("Starting async load and chained processing of images in path " + folderPath);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
+		ArrayList<CompletableFuture<BufferedImage>> futureList = new ArrayList<CompletableFuture<BufferedImage>>();
+		
+		long startTime = System.currentTimeMillis();
+		
+		AsyncLoad load = imageLoader.loadAsync(folderPath);
+		if (load == null) {
+			System.out.println("Unable to load requested folder");
+			return false;
+		}
+		
+		// Processing of each image starts as soon as its decode is over
+		for (CompletableFuture<LoadedImage> f : load.getImages()) {
+			futureList.add(f.thenApplyAsync(loaded -> new Image(loaded.getImage()).rasterGrayscaleConversion(),
+					pool.getExecutor()));
+		}
+		
+		int loaded = load.getCompletion().join();
+		long loadTime = System.currentTimeMillis() - startTime;
+		System.out.println("Async image loading took: " + (loadTime) + "ms"); 
+		
+		int converted = 0;
+		for (CompletableFuture<BufferedImage> f : futureList) {
+			try {
+				// Sync wait
+				f.get();
+				converted++;
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				System.out.println("Image not converted: " + e.getCause().getMessage());
+			}
+		}
+		
+		long endTime = System.currentTimeMillis();
+		
+		System.out.println("Readed " + loaded + " images");
+		System.out.println("Converted " + converted + " images to grayscale");
+		System.out.println("Async loading + chained processing execution time: " + (endTime - startTime) + "ms"); 
+		
+		imageLoader.resetImages();
+		
+		return true;
+	}
+	
+	public static boolean runVirtualLoadComparison(String folderPath, int threadsNumber, int sleepTime)
+	{
+		// Without latency there is nothing to hide
+		int latency = sleepTime > 0 ? sleepTime : DEFAULT_INJECTED_LATENCY;
+		System.out.println("Comparing pooled and virtual thread loaders with " + latency + "ms latency per image in path " + folderPath);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		
+		BenchmarkReport report = startVariant(12, "pooled", folderPath)
+				.setParameter("loaderThreads", threadsNumber)
+				.setParameter("sleepTime", latency);
+		long startTime = System.currentTimeMillis();
+		
+		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, latency);
+		imageLoader.waitCompletion();
+		
+		long endTime = System.currentTimeMillis();
+		long poolTime = endTime - startTime;
+		report.finish();
+		
+		System.out.println("Readed " + imageLoader.getNumberOfImages() + " images");
+		System.out.println("Pooled loading (" + threadsNumber + " loaders) execution time: " + (poolTime) + "ms"); 
+		report.publish();
+		
+		imageLoader.resetImages();
+		
+		report = startVariant(12, "virtual", folderPath)
+				.setParameter("sleepTime", latency);
+		startTime = System.currentTimeMillis();
+		
+		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.VIRTUAL_THREAD, latency);
+		imageLoader.waitCompletion();
+		
+		endTime = System.currentTimeMillis();
+		long virtualTime = endTime - startTime;
+		report.finish();
+		
+		System.out.println("Readed " + imageLoader.getNumberOfImages() + " images");
+		System.out.println("Virtual thread loading (one per file) execution time: " + (virtualTime) + "ms"); 
+		report.publish();
+		
+		imageLoader.resetImages();
+		
+		return true;
+	}
+	
+	public static boolean runThumbnailLoad(String folderPath, int sleepTime)
+	{
+		System.out.println("Comparing full resolution and " + DEFAULT_THUMBNAIL_WIDTH + "x" + DEFAULT_THUMBNAIL_HEIGHT 
+				+ " subsampled sequential load of images in path " + folderPath);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		long baseHeap = usedHeap();
+		
+		BenchmarkReport report = startVariant(13, "full", folderPath)
+				.setParameter("sleepTime", sleepTime);
+		long startTime = System.currentTimeMillis();
+		
+		if (!imageLoader.loadImages(folderPath, sleepTime)) {
+			System.out.println("Unable to load requested folder");
+			return false;
+		}
+		
+		long endTime = System.currentTimeMillis();
+		long fullTime = endTime - startTime;
+		report.finish();
+		long fullBytes = rasterBytes(imageLoader);
+		long fullHeap = usedHeap() - baseHeap;
+		
+		System.out.println("Readed " + imageLoader.getNumberOfImages() + " images");
+		System.out.println("Full resolution loading execution time: " + (fullTime) + "ms, rasters: " 
+				+ (fullBytes >> 10) + "KB, heap: " + (fullHeap >> 10) + "KB"); 
+		report.publish();
+		
+		imageLoader.resetImages();
+		imageLoader.setTargetSize(DEFAULT_THUMBNAIL_WIDTH, DEFAULT_THUMBNAIL_HEIGHT);
+		baseHeap = usedHeap();
+		
+		report = startVariant(13, "subsampled", folderPath)
+				.setParameter("sleepTime", sleepTime)
+				.setParameter("targetSize", DEFAULT_THUMBNAIL_WIDTH + "x" + DEFAULT_THUMBNAIL_HEIGHT);
+		startTime = System.currentTimeMillis();
+		
+		imageLoader.loadImages(folderPath, sleepTime);
+		
+		endTime = System.currentTimeMillis();
+		long thumbnailTime = endTime - startTime;
+		report.finish();
+		long thumbnailBytes = rasterBytes(imageLoader);
+		long thumbnailHeap = usedHeap() - baseHeap;
+		
+		System.out.println("Readed " + imageLoader.getNumberOfImages() + " images");
+		System.out.println("Subsampled loading execution time: " + (thumbnailTime) + "ms, rasters: " 
+				+ (thumbnailBytes >> 10) + "KB, heap: " + (thumbnailHeap >> 10) + "KB"); 
+		System.out.println("Saved " + (fullTime - thumbnailTime) + "ms and " + ((fullBytes - thumbnailBytes) >> 10) + "KB of rasters");
+		report.publish();
+		
+		imageLoader.resetImages();
+		
+		return true;
+	}
+	
+	public static boolean runPipeline(String folderPath, String outputPath)
+	{
+		System.out.println("Starting staged read, decode, processing and encoding of images in path " + folderPath);
+		
+		ImagePipeline pipeline = new ImagePipeline();
+		
+		long startTime = System.currentTimeMillis();
+		
+		int processed = pipeline.run(folderPath, outputPath);
+		if (processed < 0) {
+			System.out.println("Unable to load requested folder");
+			return false;
+		}
+		
+		long endTime = System.currentTimeMillis();
+		
+		System.out.println("Converted " + processed + " images to grayscale");
+		if (outputPath != null) {
+			System.out.println("Grayscale images written in " + outputPath);
+		}
+		System.out.println("Pipeline execution time: " + (endTime - startTime) + "ms"); 
+		
+		return true;
+	}
+	
+	public static boolean runTiledConversion(String folderPath, String outputPath)
+	{
+		System.out.println("Starting strip by strip decode and processing of images in path " + folderPath);
+		
+		File dir = new File(folderPath);
+		if (!dir.isDirectory()) {
+			System.out.println("Unable to load requested folder");
+			return false;
+		}
+		
+		if (outputPath != null && !new File(outputPath).isDirectory() && !new File(outputPath).mkdirs()) {
+			System.out.println("Unable to create output directory " + outputPath);
+			return false;
+		}
+		
+		ImageDecoder decoder = new ImageDecoder();
+		int converted = 0;
+		
+		long startTime = System.currentTimeMillis();
+		
+		for (String imagePath : new ImageFileScanner().list(folderPath)) {
+			File file = new File(imagePath);
+			String fileName = file.getName();
+			
+			File output = null;
+			if (outputPath != null) {
+				output = new File(outputPath, fileName.substring(0, fileName.lastIndexOf('.')) + ".pgm");
+			}
+			
+			PgmStripWriter writer = new PgmStripWriter(output, false);
+			long imageStart = System.currentTimeMillis();
+			try {
+				if (decoder.decodeStrips(file.getAbsolutePath(), 0, writer)) {
+					converted++;
+					System.out.println(fileName + ": " + writer.getStrips() + " strips of " + (writer.getBufferSize() >> 10) 
+							+ "KB gray rows in " + (System.currentTimeMillis() - imageStart) + "ms");
+				}
+				else {
+					System.out.println("Unable to load image in " + file.getAbsolutePath());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to convert image in " + file.getAbsolutePath());
+			}
+		}
+		
+		long endTime = System.currentTimeMillis();
+		
+		System.out.println("Converted " + converted + " images to grayscale");
+		if (outputPath != null) {
+			System.out.println("Grayscale PGM images written in " + outputPath);
+		}
+		System.out.println("Strip by strip decode + processing execution time: " + (endTime - startTime) + "ms"); 
+		
+		return true;
+	}
+	
+	public static boolean runOffHeapLoad(String folderPath, int threadsNumber, int sleepTime)
+	{
+		System.out.println("Comparing heap cache and off heap store of loaded images in path " + folderPath);
+		
+		ImageStore[] stores = new ImageStore[] {new ImageCache(), new OffHeapImageStore()};
+		for (ImageStore store : stores) {
+			ImageLoader imageLoader = new ImageLoader();
+			imageLoader.setImageStore(store);
+			String name = store.getClass().getSimpleName();
+			
+			long baseHeap = usedHeap();
+			long baseGcTime = gcTime();
+			BenchmarkReport report = startVariant(15, name, folderPath)
+					.setParameter("loaderThreads", threadsNumber)
+					.setParameter("sleepTime", sleepTime);
+			long startTime = System.currentTimeMillis();
+			
+			imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
+			imageLoader.waitCompletion();
+			
+			long endTime = System.currentTimeMillis();
+			long loadGcTime = gcTime() - baseGcTime;
+			long heap = usedHeap() - baseHeap;
+			
+			System.out.println(name + ": stored " + store.size() + " of " + imageLoader.getNumberOfImages() + " images, " 
+					+ (store.getUsedBytes() >> 10) + "KB of pixels, " + store.getEvictions() + " evictions");
+			System.out.println(name + " loading execution time: " + (endTime - startTime) + "ms, heap: " 
+					+ (heap >> 10) + "KB, GC time: " + loadGcTime + "ms"); 
+			
+			startTime = System.currentTimeMillis();
+			
+			BufferedImage image = null;
+			while ((image = imageLoader.popImage()) != null) {
+				imageLoader.releaseImage(image);
+			}
+			
+			endTime = System.currentTimeMillis();
+			System.out.println(name + " pop execution time: " + (endTime - startTime) + "ms"); 
+			report.publish();
+			
+			imageLoader.resetImages();
+		}
+		
+		return true;
+	}
+	
+	public static boolean runDiskCacheLoad(String folderPath, String cachePath, int sleepTime)
+	{
+		File cacheDir = null;
+		boolean temporary = cachePath == null;
+		try {
+			cacheDir = temporary ? Files.createTempDirectory("jpeg_image_reader_cache").toFile() : new File(cachePath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to create cache directory");
+			return false;
+		}
+		
+		System.out.println("Loading images in path " + folderPath + " twice through the decoded image cache in " + cacheDir);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		if (!imageLoader.setDiskCache(cacheDir.getPath())) {
+			return false;
+		}
+		DiskImageCache diskCache = imageLoader.getDiskCache();
+		
+		String[] runs = new String[] {"First", "Second"};
+		for (String run : runs) {
+			long hits = diskCache.getHits();
+			BenchmarkReport report = startVariant(16, run.toLowerCase(), folderPath)
+					.setParameter("sleepTime", sleepTime);
+			long startTime = System.currentTimeMillis();
+			
+			if (!imageLoader.loadImages(folderPath, sleepTime)) {
+				System.out.println("Unable to load requested folder");
+				return false;
+			}
+			
+			long endTime = System.currentTimeMillis();
+			report.finish();
+			
+			System.out.println("Readed " + imageLoader.getNumberOfImages() + " images, " 
+					+ (diskCache.getHits() - hits) + " from the cache");
+			System.out.println(run + " loading execution time: " + (endTime - startTime) + "ms"); 
+			report.publish();
+			
+			imageLoader.resetImages();
+		}
+		System.out.println("Stale cache entries replaced: " + diskCache.getInvalidations());
+		
+		if (temporary) {
+			for (File entry : cacheDir.listFiles()) {
+				entry.delete();
+			}
+			cacheDir.delete();
+		}
+		
+		return true;
+	}
+	
+	public static boolean runWatchFolder(String folderPath, String outputPath, int threadsNumber, int sleepTime)
+	{
+		if (outputPath != null && !new File(outputPath).isDirectory() && !new File(outputPath).mkdirs()) {
+			System.out.println("Unable to create output directory " + outputPath);
+			return false;
+		}
+		
+		ImageLoader imageLoader = new ImageLoader();
+		FolderWatcher watcher = imageLoader.watchImages(folderPath, threadsNumber, sleepTime);
+		if (watcher == null) {
+			System.out.println("Unable to watch requested folder");
+			return false;
+		}
+		
+		// Ctrl+C stops the watcher, images already arrived are completed
+		CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			watcher.close();
+			try {
+				stopped.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}));
+		
+		System.out.println("Watching " + folderPath + " for new images, press Ctrl+C to stop");
+		
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
+		AsyncImageWriter writer = outputPath != null ? new AsyncImageWriter(outputPath) : null;
+		Phaser inFlight = new Phaser(1);
+		AtomicLong converted = new AtomicLong(0);
+		AtomicLong totalLatency = new AtomicLong(0);
+		AtomicLong maxLatency = new AtomicLong(0);
+		LoadedImage loaded = null;
+		
+		while ((loaded = imageLoader.takeLoadedImage()) != null) {
+			File source = new File(loaded.getPath());
+			BufferedImage image = loaded.getImage();
+			
+			inFlight.register();
+			CompletableFuture.supplyAsync(() -> new ImageProcessingThread(new Image(image), ImagePool.getImagePool()).call(),
+					pool.getExecutor()).thenCompose(gray -> {
+				if (writer != null) {
+					return writer.write(source.getName(), gray, ImagePool.getImagePool());
+				}
+				ImagePool.getImagePool().release(gray);
+				return CompletableFuture.completedFuture(0);
+			}).whenComplete((size, e) -> {
+				if (e != null) {
+					System.out.println("Image not converted: " + source);
+				}
+				else {
+					// Latency from the last write of the producer, settle time included
+					long latency = System.currentTimeMillis() - source.lastModified();
+					converted.incrementAndGet();
+					totalLatency.addAndGet(latency);
+					maxLatency.accumulateAndGet(latency, Math::max);
+					System.out.println(source.getName() + ": converted " + latency + "ms after its last write");
+				}
+				inFlight.arriveAndDeregister();
+			});
+		}
+		inFlight.arriveAndAwaitAdvance();
+		if (writer != null) {
+			writer.flush();
+		}
+		
+		long count = converted.get();
+		System.out.println("Converted " + count + " images to grayscale");
+		if (count > 0) {
+			System.out.println("Average latency: " + (totalLatency.get() / count) + "ms, max latency: " + maxLatency.get() + "ms");
+		}
+		
+		imageLoader.resetImages();
+		stopped.countDown();
+		
+		return true;
+	}
+	
+	public static boolean runEncodeComparison(String folderPath, String outputPath, int threadsNumber, int sleepTime)
+	{
+		File outputDir = null;
+		boolean temporary = outputPath == null;
+		try {
+			outputDir = temporary ? Files.createTempDirectory("jpeg_image_reader_output").toFile() : new File(outputPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to create output directory");
+			return false;
+		}
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			System.out.println("Unable to create output directory " + outputDir);
+			return false;
+		}
+		
+		System.out.println("Starting load, grayscale conversion and write of images in path " + folderPath + " to " + outputDir);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		ImagePool imagePool = ImagePool.getImagePool();
+		LoadedImage loaded = null;
+		
+		// Conversion and write on the consumer thread, a new writer for each image
+		BenchmarkReport report = startVariant(18, "imageio", folderPath)
+				.setParameter("loaderThreads", threadsNumber)
+				.setParameter("sleepTime", sleepTime);
+		long startTime = System.currentTimeMillis();
+		
+		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
+		
+		int written = 0;
+		long writtenBytes = 0;
+		while ((loaded = imageLoader.takeLoadedImage()) != null) {
+			BufferedImage gray = new ImageProcessingThread(new Image(loaded.getImage()), imagePool).call();
+			File output = new File(outputDir, new File(loaded.getPath()).getName());
+			try {
+				if (ImageIO.write(gray, "jpg", output)) {
+					written++;
+					writtenBytes += output.length();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to write image " + output);
+			}
+			imagePool.release(gray);
+		}
+		
+		long endTime = System.currentTimeMillis();
+		report.finish();
+		
+		System.out.println("ImageIO.write: " + written + " images, " + (writtenBytes >> 10) + "KB");
+		System.out.println("Load + processing + synchronous write execution time: " + (endTime - startTime) + "ms"); 
+		report.publish();
+		
+		imageLoader.resetImages();
+		
+		// Conversion on the PROCESSING pool, encode and write on the ENCODE pool
+		ThreadPool pool = ThreadPool.getThreadPool(ThreadPool.PoolType.PROCESSING);
+		AsyncImageWriter writer = new AsyncImageWriter(outputDir.getPath());
+		ArrayList<CompletableFuture<Integer>> futureList = new ArrayList<CompletableFuture<Integer>>();
+		
+		report = startVariant(18, "async", folderPath)
+				.setParameter("loaderThreads", threadsNumber)
+				.setParameter("sleepTime", sleepTime);
+		startTime = System.currentTimeMillis();
+		
+		imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
+		
+		while ((loaded = imageLoader.takeLoadedImage()) != null) {
+			BufferedImage image = loaded.getImage();
+			String name = new File(loaded.getPath()).getName();
+			futureList.add(CompletableFuture.supplyAsync(() -> new ImageProcessingThread(new Image(image), imagePool).call(),
+					pool.getExecutor()).thenCompose(gray -> writer.write(name, gray, imagePool)));
+		}
+		
+		for (CompletableFuture<Integer> f : futureList) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				System.out.println("Image not written: " + e.getCause().getMessage());
+			}
+		}
+		writer.flush();
+		
+		endTime = System.currentTimeMillis();
+		report.finish();
+		
+		System.out.println("AsyncImageWriter: " + writer.getWrittenImages() + " images, " + (writer.getWrittenBytes() >> 10) + "KB"
+				+ ", quality " + ImageEncoder.DEFAULT_QUALITY + ", files flushed every " + AsyncImageWriter.DEFAULT_SYNC_BATCH);
+		System.out.println("Load + processing + async write execution time: " + (endTime - startTime) + "ms"); 
+		report.publish();
+		
+		imageLoader.resetImages();
+		
+		if (temporary) {
+			for (File entry : outputDir.listFiles()) {
+				entry.delete();
+			}
+			outputDir.delete();
+		}
+		
+		return true;
+	}
+	
+	public static boolean runRawOutputComparison(String folderPath, String outputPath, int threadsNumber, int sleepTime)
+	{
+		File outputDir = null;
+		boolean temporary = outputPath == null;
+		try {
+			outputDir = temporary ? Files.createTempDirectory("jpeg_image_reader_output").toFile() : new File(outputPath);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to create output directory");
+			return false;
+		}
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			System.out.println("Unable to create output directory " + outputDir);
+			return false;
+		}
+		
+		System.out.println("Writing grayscale images of path " + folderPath + " as jpeg, PGM and raw to " + outputDir);
+		
+		ImageLoader imageLoader = new ImageLoader();
+		ImagePool imagePool = ImagePool.getImagePool();
+		String[] outputs = new String[] {"jpeg", "pgm", "raw"};
+		
+		for (String output : outputs) {
+			ArrayList<LoadedImage> batch = new ArrayList<LoadedImage>();
+			LoadedImage loaded = null;
+			long writeTime = 0;
+			long writtenBytes = 0;
+			int written = 0;
+			
+			BenchmarkReport report = startVariant(19, output, folderPath)
+					.setParameter("loaderThreads", threadsNumber)
+					.setParameter("sleepTime", sleepTime);
+			long startTime = System.currentTimeMillis();
+			
+			imageLoader.parallelLoadImages(folderPath, threadsNumber, ImageLoader.ThreadType.POOL_THREAD, sleepTime);
+			
+			// The archive is closed even if a write fails, jpeg and PGM files have none
+			try (GrayImageWriter archive = output.equals("raw") 
+					? new GrayImageWriter(new File(outputDir, "images.raw"), GrayImageWriter.Format.RAW) : null) {
+				while ((loaded = imageLoader.takeLoadedImage()) != null) {
+					BufferedImage gray = new ImageProcessingThread(new Image(loaded.getImage()), imagePool).call();
+					String name = new File(loaded.getPath()).getName();
+					String baseName = name.substring(0, name.lastIndexOf('.'));
+					
+					long writeStart = System.nanoTime();
+					if (output.equals("jpeg")) {
+						writtenBytes += ImageEncoder.forCurrentThread().write(gray, new File(outputDir, name), false);
+					}
+					else if (output.equals("pgm")) {
+						writtenBytes += GrayImageWriter.write(gray, new File(outputDir, baseName + ".pgm"), GrayImageWriter.Format.PGM);
+					}
+					else {
+						// Images are appended in batches, with a gathering write per batch
+						batch.add(new LoadedImage(name, gray));
+						if (batch.size() == DEFAULT_RAW_BATCH) {
+							archive.appendAll(batch);
+							for (LoadedImage image : batch) {
+								imagePool.release(image.getImage());
+							}
+							batch.clear();
+						}
+					}
+					writeTime += System.nanoTime() - writeStart;
+					written++;
+					
+					if (archive == null) {
+						imagePool.release(gray);
+					}
+				}
+				
+				if (archive != null) {
+					long writeStart = System.nanoTime();
+					archive.appendAll(batch);
+					writeTime += System.nanoTime() - writeStart;
+					writtenBytes = archive.getWrittenBytes();
+					for (LoadedImage image : batch) {
+						imagePool.release(image.getImage());
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to write " + output + " images");
+			}
+			
+			long endTime = System.currentTimeMillis();
+			report.finish();
+			
+			System.out.println(output + ": " + written + " images, " + (writtenBytes >> 10) + "KB, written in " 
+					+ (writeTime / 1000000) + "ms");
+			System.out.println("Load + processing + " + output + " write execution time: " + (endTime - startTime) + "ms"); 
+			report.publish();
+			
+			// After a failed write loaders may still be running
+			imageLoader.waitCompletion();
+			imageLoader.resetImages();
+		}
+		
+		if (temporary) {
+			for (File entry : outputDir.listFiles()) {
+				entry.delete();
+			}
+			outputDir.delete();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Start the report of one variant of a comparison operation,
+	 * resetting the metrics so that variants are not mixed
+	 *
+	 * @param operation: 	comparison operation number
+	 * @param variant: 		name of the variant
+	 * @param folderPath: 	directory of the loaded images
+	 * @return				the started report
+	 */
+	private static BenchmarkReport startVariant(int operation, String variant, String folderPath)
+	{
+		return BenchmarkReport.start("operation " + operation + " " + variant)
+				.setParameter("operation", operation)
+				.setParameter("variant", variant)
+				.setParameter("dataset", folderPath);
+	}
+	
+	/**
+	 * Evaluate the memory used by the rasters of the loaded images
+	 *
+	 * @param imageLoader: loader holding the images
+	 * @return			   bytes of the raster data
+	 */
+	private static long rasterBytes(ImageLoader imageLoader)
+	{
+		long bytes = 0;
+		for (String path : imageLoader.getLoadedImagePaths()) {
+			DataBuffer data = imageLoader.getImage(path).getRaster().getDataBuffer();
+			bytes += (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Evaluate the used heap after a garbage collection.
+	 * The collection is only requested, so values are approximated
+	 *
+	 * @return	used heap bytes
+	 */
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/**
+	 * Evaluate the time spent in garbage collections since the JVM start
+	 *
+	 * @return	milliseconds of all the collectors
+	 */
+	private static long gcTime()
+	{
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
 }
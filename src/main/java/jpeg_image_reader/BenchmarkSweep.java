@@ -0,0 +1,448 @@
+package jpeg_image_reader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Parameter sweep of the benchmark operations: every operation is run
+ * on every dataset with every loader and processing thread count it
+ * uses, each configuration being repeated after warm-up runs. Mean
+ * times are compared to the sequential baseline of the operation on
+ * the same dataset, giving speedup and efficiency (speedup divided
+ * by the larger of the loader and processing thread counts), so pool
+ * sizes can be chosen from measures on each machine.
+ * Baselines are the sequential load (operation 1) for the parallel
+ * loads, the sequential load and processing (operation 5) for the
+ * parallel conversions, and the single thread configuration of the
+ * operation itself otherwise.
+ * Operations comparing several variants in one run, and the
+ * watch mode, are not swept since their time mixes the variants.
+ */
+public class BenchmarkSweep {
+
+	static int DEFAULT_WARMUP = 1;
+	static int DEFAULT_REPETITIONS = 3;
+	static int[] LOADER_OPERATIONS = {2, 3, 4, 7, 8};
+	static int[] PROCESSING_OPERATIONS = {6, 7, 8, 11};
+	static int[] EXCLUDED_OPERATIONS = {12, 13, 15, 16, 17, 18, 19};
+
+	public BenchmarkSweep()
+	{
+		this.datasets = new ArrayList<String>();
+		this.operations = new int[] {1, 2, 5, 7};
+		this.loaderThreads = new int[] {1, 2, 4};
+		this.processingThreads = new int[] {1, 2, 4};
+		this.warmup = DEFAULT_WARMUP;
+		this.repetitions = DEFAULT_REPETITIONS;
+		this.sleepTime = 0;
+		this.outputFolder = null;
+		this.results = new LinkedHashMap<String, Result>();
+	}
+
+	/**
+	 * Print the keys accepted by parse
+	 */
+	public static void printUsage()
+	{
+		System.out.println("	datasets=folder,...: source folders of the sweep");
+		System.out.println("	operations=1,2,5,7: operations to be run, comparisons 12, 13, 15, 16, 18, 19 and watch mode 17 excluded");
+		System.out.println("	loaders=1,2,4: loader thread counts");
+		System.out.println("	processing=1,2,4: processing pool sizes");
+		System.out.println("	warmup=" + DEFAULT_WARMUP + ": unmeasured runs of each configuration");
+		System.out.println("	repetitions=" + DEFAULT_REPETITIONS + ": measured runs of each configuration");
+		System.out.println("	sleep=0: milliseconds waited by loaders after each image");
+		System.out.println("	output=folder: directory of the written images, default a temporary folder");
+	}
+
+	/**
+	 * Create a sweep from key=value arguments
+	 *
+	 * @param args: arguments listed by printUsage
+	 * @return		the sweep, null if the arguments are invalid
+	 */
+	public static BenchmarkSweep parse(String[] args)
+	{
+		BenchmarkSweep sweep = new BenchmarkSweep();
+		try {
+			for (String arg : args) {
+				int separator = arg.indexOf('=');
+				if (separator < 0) {
+					System.out.println("Invalid sweep argument " + arg);
+					return null;
+				}
+
+				String key = arg.substring(0, separator);
+				String value = arg.substring(separator + 1);
+				boolean valid = true;
+				switch (key) {
+					case "datasets":
+						for (String dataset : value.split(",")) {
+							valid &= sweep.addDataset(dataset);
+						}
+						break;
+					case "operations":
+						valid = sweep.setOperations(parseList(value));
+						break;
+					case "loaders":
+						valid = sweep.setLoaderThreads(parseList(value));
+						break;
+					case "processing":
+						valid = sweep.setProcessingThreads(parseList(value));
+						break;
+					case "warmup":
+						valid = sweep.setRepetitions(Integer.parseInt(value), sweep.repetitions);
+						break;
+					case "repetitions":
+						valid = sweep.setRepetitions(sweep.warmup, Integer.parseInt(value));
+						break;
+					case "sleep":
+						sweep.sleepTime = Math.max(0, Integer.parseInt(value));
+						break;
+					case "output":
+						sweep.outputFolder = value;
+						break;
+					default:
+						System.out.println("Unknown sweep argument " + key);
+						valid = false;
+						break;
+				}
+				if (!valid) {
+					return null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid number in sweep arguments: " + e.getMessage());
+			return null;
+		}
+
+		if (sweep.datasets.isEmpty()) {
+			System.out.println("No dataset to sweep");
+			return null;
+		}
+		return sweep;
+	}
+
+	/**
+	 * Add a source folder to the sweep
+	 *
+	 * @param path: directory containing jpg images
+	 * @return		true if successful, false otherwise
+	 */
+	public boolean addDataset(String path)
+	{
+		if (!new File(path).isDirectory()) {
+			System.out.println("Requested path is not a directory: " + path);
+			return false;
+		}
+
+		this.datasets.add(path);
+		return true;
+	}
+
+	/**
+	 * @param operations: operations to be run, as listed by the usage
+	 * @return			  true if successful, false otherwise
+	 */
+	public boolean setOperations(int[] operations)
+	{
+		for (int operation : operations) {
+			if (operation < 1 || operation > 19 || contains(EXCLUDED_OPERATIONS, operation)) {
+				System.out.println("Operation " + operation + " cannot be swept");
+				return false;
+			}
+		}
+
+		this.operations = operations;
+		return true;
+	}
+
+	/**
+	 * @param loaderThreads: loader thread counts of the operations using them
+	 * @return				 true if successful, false otherwise
+	 */
+	public boolean setLoaderThreads(int[] loaderThreads)
+	{
+		if (!isPositive(loaderThreads)) {
+			System.out.println("Invalid loader thread counts");
+			return false;
+		}
+
+		this.loaderThreads = loaderThreads;
+		return true;
+	}
+
+	/**
+	 * @param processingThreads: processing pool sizes of the operations using it
+	 * @return					 true if successful, false otherwise
+	 */
+	public boolean setProcessingThreads(int[] processingThreads)
+	{
+		if (!isPositive(processingThreads)) {
+			System.out.println("Invalid processing thread counts");
+			return false;
+		}
+
+		this.processingThreads = processingThreads;
+		return true;
+	}
+
+	/**
+	 * @param warmup: 		unmeasured runs of each configuration
+	 * @param repetitions: 	measured runs of each configuration
+	 * @return				true if successful, false otherwise
+	 */
+	public boolean setRepetitions(int warmup, int repetitions)
+	{
+		if (warmup < 0 || repetitions < 1) {
+			System.out.println("Invalid warm-up or repetitions");
+			return false;
+		}
+
+		this.warmup = warmup;
+		this.repetitions = repetitions;
+		return true;
+	}
+
+	/**
+	 * Run all the configurations and print the speedup table
+	 *
+	 * @return	the measured configurations, in run order
+	 */
+	public ArrayList<Result> run()
+	{
+		int processingPoolSize = ThreadPool.DEFAULT_PROCESSING_POOL_SIZE;
+		this.ioPoolSize = ThreadPool.DEFAULT_IO_POOL_SIZE;
+		this.results.clear();
+
+		try {
+			for (String dataset : this.datasets) {
+				for (int operation : this.operations) {
+					// Baselines first, also when not listed among the swept operations or thread counts
+					this.measure(dataset, baselineOperation(operation), 1, 1);
+					for (int loaders : usesLoaderThreads(operation) ? this.loaderThreads : new int[] {1}) {
+						for (int processing : usesProcessingThreads(operation) ? this.processingThreads : new int[] {1}) {
+							this.measure(dataset, operation, loaders, processing);
+						}
+					}
+				}
+			}
+		} finally {
+			ThreadPool.DEFAULT_IO_POOL_SIZE = this.ioPoolSize;
+			ThreadPool.DEFAULT_PROCESSING_POOL_SIZE = processingPoolSize;
+		}
+
+		ArrayList<Result> results = new ArrayList<Result>(this.results.values());
+		this.printTable(results);
+		return results;
+	}
+
+	/**
+	 * Sequential operation an operation is compared with
+	 */
+	static int baselineOperation(int operation)
+	{
+		switch (operation) {
+			case 2:
+			case 3:
+			case 4:
+				return 1;
+			case 6:
+			case 7:
+			case 8:
+			case 9:
+			case 11:
+				return 5;
+			default:
+				return operation;
+		}
+	}
+
+	static boolean usesLoaderThreads(int operation)
+	{
+		return contains(LOADER_OPERATIONS, operation);
+	}
+
+	static boolean usesProcessingThreads(int operation)
+	{
+		return contains(PROCESSING_OPERATIONS, operation);
+	}
+
+	/**
+	 * Run a configuration, unless already measured, e.g. as a baseline
+	 */
+	private void measure(String dataset, int operation, int loaders, int processing)
+	{
+		String key = key(dataset, operation, loaders, processing);
+		if (this.results.containsKey(key)) {
+			return;
+		}
+
+		Result result = new Result(dataset, operation,
+				usesLoaderThreads(operation) ? loaders : 0, usesProcessingThreads(operation) ? processing : 0);
+		for (int i = 0; i < this.warmup + this.repetitions; i++) {
+			// Pools are created again with the sizes of the configuration
+			ThreadPool.closeAll();
+			ThreadPool.DEFAULT_IO_POOL_SIZE = Math.max(this.ioPoolSize, loaders);
+			ThreadPool.DEFAULT_PROCESSING_POOL_SIZE = processing;
+
+			boolean measured = i >= this.warmup;
+			BenchmarkReport report = BenchmarkReport.start("sweep operation " + operation)
+					.setParameter("operation", operation)
+					.setParameter("dataset", dataset)
+					.setParameter("loaderThreads", result.loaderThreads)
+					.setParameter("processingThreads", result.processingThreads)
+					.setParameter("sleepTime", this.sleepTime)
+					.setParameter("repetition", measured ? i - this.warmup : -1);
+			ImageReader.runOperation(operation, dataset, this.outputFolder, loaders, this.sleepTime);
+			report.finish();
+			ThreadPool.closeAll();
+
+			System.out.println(String.format(Locale.ROOT, "Sweep %s operation %d, loaders %d, processing %d: %.0fms%s",
+					dataset, operation, loaders, processing, report.getElapsedMillis(), measured ? "" : " (warm-up)"));
+			if (measured) {
+				result.add(report);
+				if (BenchmarkReport.REPORT_FILE != null) {
+					report.append(new File(BenchmarkReport.REPORT_FILE));
+				}
+			}
+		}
+		this.results.put(key, result);
+	}
+
+	private void printTable(ArrayList<Result> results)
+	{
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "%-24s %4s %8s %10s %10s %9s %10s %8s %10s",
+				"dataset", "op", "loaders", "processing", "mean ms", "stdev ms", "images/s", "speedup", "efficiency"));
+		for (Result result : results) {
+			Result baseline = this.results.get(key(result.dataset, baselineOperation(result.operation), 1, 1));
+			double speedup = baseline == null || result.getMeanMillis() == 0 ? Double.NaN : baseline.getMeanMillis() / result.getMeanMillis();
+			int threads = Math.max(1, Math.max(result.loaderThreads, result.processingThreads));
+			System.out.println(String.format(Locale.ROOT, "%-24s %4d %8s %10s %10.0f %9.1f %10.1f %8.2f %10.2f",
+					shorten(result.dataset, 24), result.operation, threadCount(result.loaderThreads),
+					threadCount(result.processingThreads), result.getMeanMillis(), result.getStdevMillis(),
+					result.getImagesPerSecond(), speedup, speedup / threads));
+		}
+	}
+
+	private static String key(String dataset, int operation, int loaders, int processing)
+	{
+		return dataset + "|" + operation + "|" + (usesLoaderThreads(operation) ? loaders : 0)
+				+ "|" + (usesProcessingThreads(operation) ? processing : 0);
+	}
+
+	private static String threadCount(int threads)
+	{
+		return threads == 0 ? "-" : Integer.toString(threads);
+	}
+
+	private static String shorten(String s, int length)
+	{
+		return s.length() <= length ? s : "..." + s.substring(s.length() - length + 3);
+	}
+
+	private static int[] parseList(String value)
+	{
+		String[] items = value.split(",");
+		int[] list = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			list[i] = Integer.parseInt(items[i].trim());
+		}
+		return list;
+	}
+
+	private static boolean isPositive(int[] values)
+	{
+		if (values.length == 0) {
+			return false;
+		}
+		for (int value : values) {
+			if (value < 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean contains(int[] values, int value)
+	{
+		for (int v : values) {
+			if (v == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Measured runs of a configuration
+	 */
+	public static class Result {
+
+		Result(String dataset, int operation, int loaderThreads, int processingThreads)
+		{
+			this.dataset = dataset;
+			this.operation = operation;
+			this.loaderThreads = loaderThreads;
+			this.processingThreads = processingThreads;
+			this.millis = new ArrayList<Double>();
+		}
+
+		void add(BenchmarkReport report)
+		{
+			this.millis.add(report.getElapsedMillis());
+			this.images = report.getImages();
+		}
+
+		public double getMeanMillis()
+		{
+			double sum = 0;
+			for (double m : this.millis) {
+				sum += m;
+			}
+			return this.millis.isEmpty() ? 0 : sum / this.millis.size();
+		}
+
+		/**
+		 * @return	sample standard deviation of the runs, 0 for a single run
+		 */
+		public double getStdevMillis()
+		{
+			if (this.millis.size() < 2) {
+				return 0;
+			}
+			double mean = this.getMeanMillis();
+			double sum = 0;
+			for (double m : this.millis) {
+				sum += (m - mean) * (m - mean);
+			}
+			return Math.sqrt(sum / (this.millis.size() - 1));
+		}
+
+		public double getImagesPerSecond()
+		{
+			double mean = this.getMeanMillis();
+			return mean == 0 ? 0 : this.images * 1000 / mean;
+		}
+
+		String dataset;					///< Source folder
+		int operation;					///< Operation number
+		int loaderThreads;				///< Loader threads, 0 if not used by the operation
+		int processingThreads;			///< Processing pool size, 0 if not used by the operation
+		long images;					///< Images decoded by the last run
+		ArrayList<Double> millis;		///< Duration of each measured run
+	}
+
+	private ArrayList<String> datasets;						///< Source folders
+	private int[] operations;								///< Operations to be run
+	private int[] loaderThreads;							///< Loader thread counts
+	private int[] processingThreads;						///< Processing pool sizes
+	private int warmup;										///< Unmeasured runs of each configuration
+	private int repetitions;								///< Measured runs of each configuration
+	private int sleepTime;									///< Milliseconds waited by loaders after each image
+	private String outputFolder;							///< Folder of the written images, null for temporary ones
+	private LinkedHashMap<String, Result> results;			///< Measured configurations by key, in run order
+	private int ioPoolSize;									///< IO pool size before the sweep, raised to hold all the loaders
+}
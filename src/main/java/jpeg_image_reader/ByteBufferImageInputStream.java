@@ -0,0 +1,82 @@
+package jpeg_image_reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream reading from a ByteBuffer, either a mapped
+ * file or a direct buffer filled with a single read. Unlike the
+ * file and memory cache streams of ImageIO it neither copies
+ * the content nor issues a syscall per buffer refill.
+ * The buffer is accessed with absolute gets, so its position
+ * and limit are never changed.
+ */
+class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+	ByteBufferImageInputStream(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.start = buffer.position();
+		this.length = buffer.remaining();
+		this.closed = false;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		checkClosed();
+		this.bitOffset = 0;
+		if (this.streamPos >= this.length) {
+			return -1;
+		}
+		return this.buffer.get(this.start + (int) this.streamPos++) & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length || off + len < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		if (this.streamPos >= this.length) {
+			return -1;
+		}
+
+		int count = (int) Math.min(len, this.length - this.streamPos);
+		this.buffer.get(this.start + (int) this.streamPos, b, off, count);
+		this.streamPos += count;
+		return count;
+	}
+
+	@Override
+	public long length()
+	{
+		return this.length;
+	}
+
+	/**
+	 * Close the stream. ImageIO.read closes the streams it receives,
+	 * so closing again is allowed and does nothing
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		super.close();
+	}
+
+	private ByteBuffer buffer;		///< Content of the stream
+	private int start;				///< Buffer index of the first byte of the stream
+	private int length;				///< Number of bytes in the stream
+	private boolean closed;			///< True once closed
+}
@@ -0,0 +1,357 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of decoded images: each entry is a file holding
+ * a small header and the uncompressed interleaved pixels, so a later
+ * run maps it in memory and copies the pixels instead of decoding
+ * the jpeg again. Entries are named after the absolute path of the
+ * source and the decode target size, and the header records size and
+ * last modified time of the source: an entry of a changed source is
+ * stale, and it is deleted when found. Size and time are taken before
+ * the source is read, so an entry written while the source changes
+ * is stale, instead of holding old pixels under the new version.
+ * Entries are written in a temporary file and moved in place, so
+ * concurrent loaders and runs never see a partial entry.
+ */
+public class DiskImageCache {
+
+	static int MAGIC = 0x4A495243;		///< "JIRC"
+	static int VERSION = 1;
+	static String ENTRY_SUFFIX = ".raw";
+
+	public DiskImageCache(File directory)
+	{
+		this.directory = directory;
+		this.imagePool = ImagePool.getImagePool();
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+		this.invalidations = new AtomicLong(0);
+	}
+
+	public File getDirectory()
+	{
+		return this.directory;
+	}
+
+	/**
+	 * Retrieve the decoded image of a file, if a valid entry exists
+	 *
+	 * @param path: 		path of the source jpeg
+	 * @param targetWidth: 	target width the image has been decoded with
+	 * @param targetHeight: target height the image has been decoded with
+	 * @return				an image taken from the ImagePool, null if the
+	 * 						entry does not exist or is stale
+	 */
+	public BufferedImage load(String path, int targetWidth, int targetHeight)
+	{
+		File source = new File(path).getAbsoluteFile();
+		File entry = this.entryFile(source, targetWidth, targetHeight);
+		if (!entry.isFile()) {
+			this.misses.incrementAndGet();
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			EntryHeader header = EntryHeader.read(data);
+			if (header == null || !header.matches(source, targetWidth, targetHeight)
+					|| data.remaining() != header.pixelBytes()) {
+				this.invalidate(entry);
+				return null;
+			}
+
+			BufferedImage image = this.imagePool.acquire(header.type, header.width, header.height);
+			if (image.getRaster().getNumBands() != header.bands) {
+				this.imagePool.release(image);
+				this.invalidate(entry);
+				return null;
+			}
+			data.get(GrayscaleKernel.byteData(image), 0, data.remaining());
+			this.hits.incrementAndGet();
+			return image;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to read cache entry " + entry);
+			this.misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Store the decoded image of a file. Only images with a
+	 * type supported by the ImagePool are stored
+	 *
+	 * @param source: 		version of the source jpeg, taken before reading it
+	 * @param targetWidth: 	target width the image has been decoded with
+	 * @param targetHeight: target height the image has been decoded with
+	 * @param image: 		decoded image
+	 * @return				true if the entry has been written
+	 */
+	public boolean save(SourceVersion source, int targetWidth, int targetHeight, BufferedImage image)
+	{
+		if (!ImagePool.supports(image.getType())) {
+			return false;
+		}
+
+		File entry = this.entryFile(source.file, targetWidth, targetHeight);
+		File temp = null;
+		try {
+			EntryHeader header = new EntryHeader(source, targetWidth, targetHeight, image);
+			temp = File.createTempFile("entry", ".tmp", this.directory);
+
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+				writePixels(channel, header.write(), image);
+			}
+
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to write cache entry " + entry);
+			if (temp != null) {
+				temp.delete();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Delete the entries whose source has been changed or removed
+	 *
+	 * @return	number of deleted entries
+	 */
+	public int purge()
+	{
+		int deleted = 0;
+		File[] entries = this.directory.listFiles();
+		if (entries == null) {
+			return 0;
+		}
+
+		for (File entry : entries) {
+			if (!entry.getName().endsWith(ENTRY_SUFFIX)) {
+				continue;
+			}
+
+			boolean stale = true;
+			try (FileChannel channel = FileChannel.open(entry.toPath(), StandardOpenOption.READ)) {
+				EntryHeader header = EntryHeader.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+				stale = header == null || !header.matches(new File(header.path), header.targetWidth, header.targetHeight);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+			if (stale && entry.delete()) {
+				this.invalidations.incrementAndGet();
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	public long getInvalidations()
+	{
+		return this.invalidations.get();
+	}
+
+	private void invalidate(File entry)
+	{
+		entry.delete();
+		this.invalidations.incrementAndGet();
+		this.misses.incrementAndGet();
+	}
+
+	/**
+	 * Name the entry of a source decoded at a target size.
+	 * Size and modification time are in the header, so the
+	 * entry of a changed source is overwritten, not added
+	 */
+	private File entryFile(File source, int targetWidth, int targetHeight)
+	{
+		String key = source.getPath() + "\n" + targetWidth + "x" + targetHeight;
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return new File(this.directory, name.append(ENTRY_SUFFIX).toString());
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is required on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Write header and pixels with gathering writes: a single
+	 * call for contiguous rows, one call per row otherwise
+	 */
+	private static void writePixels(FileChannel channel, ByteBuffer header, BufferedImage image) throws IOException
+	{
+		ComponentSampleModel sm = (ComponentSampleModel) image.getRaster().getSampleModel();
+		int rowBytes = image.getWidth() * sm.getNumBands();
+		int offset = GrayscaleKernel.pixelOffset(image);
+		byte[] data = GrayscaleKernel.byteData(image);
+
+		if (sm.getScanlineStride() == rowBytes) {
+			writeFully(channel, new ByteBuffer[] {header, ByteBuffer.wrap(data, offset, rowBytes * image.getHeight())});
+			return;
+		}
+
+		writeFully(channel, new ByteBuffer[] {header});
+		for (int y = 0; y < image.getHeight(); y++) {
+			writeFully(channel, new ByteBuffer[] {ByteBuffer.wrap(data, offset + y * sm.getScanlineStride(), rowBytes)});
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException
+	{
+		while (buffers[buffers.length - 1].hasRemaining()) {
+			channel.write(buffers);
+		}
+	}
+
+	/**
+	 * Size and last modified time of a source file, to be
+	 * taken before the file is read and given to save
+	 */
+	public static class SourceVersion {
+
+		public SourceVersion(String path)
+		{
+			this.file = new File(path).getAbsoluteFile();
+			this.size = this.file.length();
+			this.modified = this.file.lastModified();
+		}
+
+		private File file;			///< Absolute path of the source
+		private long size;			///< Bytes of the source
+		private long modified;		///< Last modified time of the source
+	}
+
+	/**
+	 * Header of an entry: source identity, decode
+	 * target size and layout of the pixels that follow
+	 */
+	private static class EntryHeader {
+
+		EntryHeader(SourceVersion source, int targetWidth, int targetHeight, BufferedImage image)
+		{
+			this.path = source.file.getPath();
+			this.sourceSize = source.size;
+			this.sourceModified = source.modified;
+			this.targetWidth = targetWidth;
+			this.targetHeight = targetHeight;
+			this.type = image.getType();
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.bands = image.getRaster().getNumBands();
+		}
+
+		private EntryHeader() {}
+
+		/**
+		 * Parse the header at the buffer position, leaving
+		 * the buffer positioned on the first pixel byte
+		 *
+		 * @return	the header, null if the buffer does not hold a valid one
+		 */
+		static EntryHeader read(ByteBuffer data)
+		{
+			if (data.remaining() < FIXED_BYTES || data.getInt() != MAGIC || data.getInt() != VERSION) {
+				return null;
+			}
+
+			EntryHeader header = new EntryHeader();
+			header.sourceSize = data.getLong();
+			header.sourceModified = data.getLong();
+			header.targetWidth = data.getInt();
+			header.targetHeight = data.getInt();
+			header.type = data.getInt();
+			header.width = data.getInt();
+			header.height = data.getInt();
+			header.bands = data.getInt();
+			int pathLength = data.getInt();
+			if (pathLength < 0 || pathLength > data.remaining() || !ImagePool.supports(header.type)) {
+				return null;
+			}
+
+			byte[] path = new byte[pathLength];
+			data.get(path);
+			header.path = new String(path, StandardCharsets.UTF_8);
+			return header;
+		}
+
+		ByteBuffer write()
+		{
+			byte[] path = this.path.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer header = ByteBuffer.allocate(FIXED_BYTES + path.length);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.putLong(this.sourceSize).putLong(this.sourceModified);
+			header.putInt(this.targetWidth).putInt(this.targetHeight);
+			header.putInt(this.type).putInt(this.width).putInt(this.height).putInt(this.bands);
+			header.putInt(path.length).put(path);
+			header.flip();
+			return header;
+		}
+
+		/**
+		 * Check that the entry belongs to the current content
+		 * of the source, decoded at the same target size
+		 */
+		boolean matches(File source, int targetWidth, int targetHeight)
+		{
+			return this.path.equals(source.getPath()) && source.isFile()
+					&& this.sourceSize == source.length() && this.sourceModified == source.lastModified()
+					&& this.targetWidth == targetWidth && this.targetHeight == targetHeight;
+		}
+
+		long pixelBytes()
+		{
+			return (long) this.width * this.height * this.bands;
+		}
+
+		static final int FIXED_BYTES = 4 * 2 + 8 * 2 + 4 * 7;
+
+		String path;				///< Absolute path of the source
+		long sourceSize;			///< Bytes of the source when the entry was written
+		long sourceModified;		///< Last modified time of the source when the entry was written
+		int targetWidth;			///< Target width of the decode
+		int targetHeight;			///< Target height of the decode
+		int type;					///< BufferedImage type
+		int width;					///< Image width
+		int height;					///< Image height
+		int bands;					///< Bytes per pixel
+	}
+
+	private File directory;						///< Folder holding the entries
+	private ImagePool imagePool;				///< Pool of the loaded images
+	private AtomicLong hits;					///< Images loaded from an entry
+	private AtomicLong misses;					///< Lookups without a valid entry
+	private AtomicLong invalidations;			///< Stale entries deleted
+}
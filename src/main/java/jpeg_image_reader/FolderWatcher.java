@@ -0,0 +1,357 @@
+package jpeg_image_reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long running watcher of a spool folder: jpeg files created or
+ * modified after the watcher has been started are offered to a
+ * queue, so loaders consume them as they arrive instead of
+ * reloading the whole folder. Files are written in place by the
+ * producers, so a file is only offered once its size and last
+ * modified time have been stable for the settle time and it ends
+ * with the jpeg EOI marker; files without the marker are offered
+ * anyway after the incomplete timeout. Sub folders are watched up
+ * to the depth of the scanner, also when created later.
+ */
+public class FolderWatcher {
+
+	static long DEFAULT_SETTLE_MILLIS = 500;
+	static long DEFAULT_POLL_MILLIS = 100;
+	static long DEFAULT_INCOMPLETE_MILLIS = 30000;
+
+	public FolderWatcher(ImageFileScanner scanner)
+	{
+		this.scanner = scanner;
+		this.settleMillis = DEFAULT_SETTLE_MILLIS;
+		this.keys = new HashMap<WatchKey, Path>();
+		this.pending = new HashMap<String, PendingFile>();
+		this.offered = new HashMap<String, Long>();
+		this.offeredImages = new AtomicLong(0);
+		this.running = false;
+	}
+
+	/**
+	 * Set how long a file must stay unchanged before being offered
+	 *
+	 * @param millis: quiet period after the last write
+	 * @return		  true if successful, false otherwise
+	 */
+	public boolean setSettleTime(long millis)
+	{
+		if (millis < 0) {
+			System.out.println("Invalid settle time");
+			return false;
+		}
+
+		if (this.running) {
+			System.out.println("Watcher is running, cannot change settle time");
+			return false;
+		}
+
+		this.settleMillis = millis;
+		return true;
+	}
+
+	public long getSettleTime()
+	{
+		return this.settleMillis;
+	}
+
+	/**
+	 * @return	number of images offered to the queue since the start
+	 */
+	public long getOfferedImages()
+	{
+		return this.offeredImages.get();
+	}
+
+	public boolean isRunning()
+	{
+		return this.running;
+	}
+
+	/**
+	 * Start watching a folder on a new thread. Images already
+	 * in the folder are not offered, unless they are modified
+	 *
+	 * @param path: 	folder to be watched
+	 * @param queue: 	receiver of the absolute paths of the arrived
+	 * 					images, closed when the watcher is closed
+	 * @return			true if successful, false otherwise
+	 */
+	public boolean start(String path, HandoffQueue<String> queue)
+	{
+		if (this.running) {
+			System.out.println("Watcher already running");
+			return false;
+		}
+
+		File dir = new File(path);
+		if (!dir.isDirectory()) {
+			System.out.println("Requested path is not a directory");
+			return false;
+		}
+
+		try {
+			this.watchService = FileSystems.getDefault().newWatchService();
+			this.root = dir.getAbsoluteFile().toPath();
+			this.queue = queue;
+			this.keys.clear();
+			this.pending.clear();
+			this.offered.clear();
+			this.registerTree(this.root);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to watch directory " + path);
+			return false;
+		}
+
+		// Folders are registered before the scan, so files written
+		// in between are reported by an event and not missed
+		this.scanner.scan(path, imagePath -> this.offered.put(imagePath, new File(imagePath).lastModified()));
+
+		this.running = true;
+		this.thread = new Thread(this::run, "folder-watcher");
+		this.thread.start();
+		return true;
+	}
+
+	/**
+	 * Stop watching and close the queue: images already
+	 * offered are still taken by the consumers
+	 */
+	public void close()
+	{
+		this.running = false;
+		if (this.watchService != null) {
+			try {
+				this.watchService.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the watcher thread to terminate after close
+	 */
+	public void waitTermination() throws InterruptedException
+	{
+		if (this.thread != null) {
+			this.thread.join();
+		}
+	}
+
+	private void run()
+	{
+		try {
+			while (this.running) {
+				WatchKey key = this.watchService.poll(DEFAULT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					this.handleEvents(key);
+				}
+				this.offerSettled(System.currentTimeMillis());
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Closed by close()
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			this.running = false;
+			this.queue.close();
+		}
+	}
+
+	private void handleEvents(WatchKey key)
+	{
+		Path dir = this.keys.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				// Events have been lost, compare the whole tree with the offered images
+				this.scanner.scan(this.root.toString(), this::track);
+				continue;
+			}
+
+			Path child = dir.resolve((Path) event.context());
+			if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				this.pending.remove(child.toString());
+				this.offered.remove(child.toString());
+			}
+			else if (Files.isDirectory(child)) {
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && this.depth(child) < this.scanner.getMaxDepth()) {
+					try {
+						this.registerTree(child);
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.out.println("Unable to watch directory " + child);
+					}
+					// Files may have been written before the folder was registered
+					this.scanner.scan(child.toString(), this::track);
+				}
+			}
+			else if (ImageFileScanner.hasJpegExtension(child.getFileName().toString())) {
+				this.track(child.toString());
+			}
+		}
+
+		if (!key.reset()) {
+			this.keys.remove(key);
+		}
+	}
+
+	private void track(String path)
+	{
+		if (this.depth(new File(path).toPath()) <= this.scanner.getMaxDepth() && !this.pending.containsKey(path)) {
+			this.pending.put(path, new PendingFile(System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Offer the pending files that have not been changed for the
+	 * settle time, skipping the ones offered with the same content
+	 */
+	private void offerSettled(long now)
+	{
+		Iterator<Map.Entry<String, PendingFile>> it = this.pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, PendingFile> entry = it.next();
+			PendingFile file = entry.getValue();
+			File source = new File(entry.getKey());
+			if (!source.isFile()) {
+				it.remove();
+				continue;
+			}
+
+			long size = source.length();
+			long modified = source.lastModified();
+			if (size != file.size || modified != file.modified) {
+				file.size = size;
+				file.modified = modified;
+				file.changed = now;
+				continue;
+			}
+
+			if (now - file.changed < this.settleMillis || size == 0) {
+				continue;
+			}
+			if (!hasEndMarker(source.toPath()) && now - file.detected < DEFAULT_INCOMPLETE_MILLIS) {
+				continue;
+			}
+
+			it.remove();
+			Long offeredModified = this.offered.put(entry.getKey(), modified);
+			if ((offeredModified == null || offeredModified != modified) && this.scanner.isImage(source.toPath())) {
+				this.queue.offer(entry.getKey());
+				this.offeredImages.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Register a folder and its sub folders, as long as
+	 * the files they contain are within the scan depth
+	 */
+	private void registerTree(Path dir) throws IOException
+	{
+		int maxDepth = this.scanner.getMaxDepth() - this.depth(dir);
+		Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), maxDepth, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException
+			{
+				keys.put(subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), subDir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				System.out.println("Unable to watch " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * @return	number of folders between the root and the path, 0 for the root
+	 */
+	private int depth(Path path)
+	{
+		return path.equals(this.root) ? 0 : this.root.relativize(path).getNameCount();
+	}
+
+	/**
+	 * Check that the file ends with the EOI marker written
+	 * as last bytes by jpeg encoders
+	 */
+	private static boolean hasEndMarker(Path file)
+	{
+		ByteBuffer marker = ByteBuffer.allocate(2);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long position = channel.size() - 2;
+			while (marker.hasRemaining() && position >= 0) {
+				int read = channel.read(marker, position + marker.position());
+				if (read < 0) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return !marker.hasRemaining() && (marker.get(0) & 0xFF) == 0xFF && (marker.get(1) & 0xFF) == 0xD9;
+	}
+
+	/**
+	 * File seen by an event and not yet offered
+	 */
+	private static class PendingFile {
+
+		PendingFile(long detected)
+		{
+			this.detected = detected;
+			this.changed = detected;
+			this.size = -1;
+			this.modified = -1;
+		}
+
+		long detected;			///< Time of the first event
+		long changed;			///< Time size or last modified time have been seen changing
+		long size;				///< Size at the last check
+		long modified;			///< Last modified time at the last check
+	}
+
+	private ImageFileScanner scanner;					///< Filter and depth of the watched images
+	private long settleMillis;							///< Quiet period before a file is offered
+	private WatchService watchService;					///< Service notifying the changes of the registered folders
+	private Path root;									///< Absolute path of the watched folder
+	private HandoffQueue<String> queue;					///< Receiver of the arrived images
+	private HashMap<WatchKey, Path> keys;				///< Registered folders, owned by the watcher thread
+	private HashMap<String, PendingFile> pending;		///< Files being written, owned by the watcher thread
+	private HashMap<String, Long> offered;				///< Last modified time of the offered or existing images
+	private AtomicLong offeredImages;					///< Images offered since the start
+	private Thread thread;								///< Thread running the watch loop
+	private volatile boolean running;					///< False once closed
+}
@@ -0,0 +1,128 @@
+package jpeg_image_reader;
+
+/**
+ * Lookup tables for the gamma-correct luminance of
+ * grayscaleConversionAlt. Gamma expansion is tabulated per
+ * channel with the luminance coefficient folded in, the inverse
+ * gamma is a quantized table refined with exact level thresholds,
+ * so gray levels are the same computed with Math.pow.
+ * Tables are immutable and built for one set of parameters.
+ */
+final class GammaTables {
+
+	private static int INVERSE_BINS = 4096;
+
+	GammaTables(double gamma, double rCoeff, double gCoeff, double bCoeff)
+	{
+		this.gamma = gamma;
+		this.rCoeff = rCoeff;
+		this.gCoeff = gCoeff;
+		this.bCoeff = bCoeff;
+
+		// Gamma expansion, rounded to float as in the per-pixel computation
+		this.rLut = new double[256];
+		this.gLut = new double[256];
+		this.bLut = new double[256];
+		for (int i = 0; i < 256; i++) {
+			double expanded = (float) Math.pow(i / 255.0, gamma);
+			this.rLut[i] = rCoeff * expanded;
+			this.gLut[i] = gCoeff * expanded;
+			this.bLut[i] = bCoeff * expanded;
+		}
+
+		// Smallest luminance reaching each gray level
+		this.thresholds = new float[257];
+		for (int level = 1; level < 256; level++) {
+			this.thresholds[level] = threshold(level, gamma);
+		}
+		this.thresholds[256] = Float.POSITIVE_INFINITY;
+
+		// Quantized inverse gamma, giving the level at the start of each bin
+		double maxLuminance = this.rLut[255] + this.gLut[255] + this.bLut[255];
+		this.scale = maxLuminance > 0 ? (INVERSE_BINS - 1) / maxLuminance : 0;
+		this.inverse = new int[INVERSE_BINS];
+		int level = 0;
+		for (int i = 0; i < INVERSE_BINS; i++) {
+			double binStart = this.scale > 0 ? i / this.scale : 0;
+			while (this.thresholds[level + 1] <= binStart) {
+				level++;
+			}
+			this.inverse[i] = level;
+		}
+	}
+
+	/**
+	 * Check if tables have been built for the requested parameters
+	 *
+	 * @return	true if parameters are the same used to build the tables
+	 */
+	boolean matches(double gamma, double rCoeff, double gCoeff, double bCoeff)
+	{
+		return this.gamma == gamma && this.rCoeff == rCoeff
+				&& this.gCoeff == gCoeff && this.bCoeff == bCoeff;
+	}
+
+	/**
+	 * Evaluate the gray level of a pixel
+	 *
+	 * @return	gray level in the byte range
+	 */
+	int grayLevel(int r, int g, int b)
+	{
+		float luminance = (float) (this.rLut[r] + this.gLut[g] + this.bLut[b]);
+
+		int bin = (int) (luminance * this.scale);
+		if (bin >= INVERSE_BINS) {
+			bin = INVERSE_BINS - 1;
+		}
+
+		// Bins near black span a few levels, move up to the exact one
+		int level = this.inverse[bin];
+		while (this.thresholds[level + 1] <= luminance) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Search the smallest non negative float luminance for which
+	 * (int) (255 * luminance ^ (1 / gamma)) is at least level.
+	 * Positive floats are ordered as their bit patterns.
+	 */
+	private static float threshold(int level, double gamma)
+	{
+		int low = 0;
+		int high = Float.floatToIntBits(Float.MAX_VALUE);
+
+		if (inverseGamma(Float.intBitsToFloat(high), gamma) < level) {
+			return Float.POSITIVE_INFINITY;
+		}
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (inverseGamma(Float.intBitsToFloat(middle), gamma) >= level) {
+				high = middle;
+			}
+			else {
+				low = middle + 1;
+			}
+		}
+		return Float.intBitsToFloat(low);
+	}
+
+	private static int inverseGamma(float luminance, double gamma)
+	{
+		return (int) (255.0 * Math.pow(luminance, 1.0 / gamma));
+	}
+
+	private double gamma;						///< Gamma used to build the tables
+	private double rCoeff;						///< Red coefficient used to build the tables
+	private double gCoeff;						///< Green coefficient used to build the tables
+	private double bCoeff;						///< Blue coefficient used to build the tables
+	private double[] rLut;						///< Expanded red channel times its coefficient
+	private double[] gLut;						///< Expanded green channel times its coefficient
+	private double[] bLut;						///< Expanded blue channel times its coefficient
+	private float[] thresholds;				///< Smallest luminance of each gray level, plus a sentinel
+	private int[] inverse;						///< Gray level at the start of each luminance bin
+	private double scale;						///< Luminance to bin index factor
+}
@@ -0,0 +1,239 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uncompressed output of gray images, for consumers reading the
+ * pixels directly instead of decoding a jpeg. The arrays backing the
+ * TYPE_BYTE_GRAY rasters are wrapped and written to a FileChannel with
+ * gathering writes, so pixels are never copied on the heap; arrays of
+ * pooled images are longer than the image and only its width x height
+ * bytes are written. Two formats are supported:
+ * - PGM: binary netpbm, a short text header followed by the pixels.
+ * 	 Many images appended to one file form a valid multi-image PGM
+ * - RAW: pixels only, rows without padding
+ * A writer appends all the images to one file and lists name, pixels
+ * offset and size of each one in a sidecar index, the data file path
+ * followed by INDEX_SUFFIX. write(image, file, format) writes a single
+ * image, with its index for RAW only.
+ */
+public class GrayImageWriter implements AutoCloseable {
+
+	enum Format {
+		PGM,			///< Binary PGM (P5), header and pixels of each image
+		RAW,			///< Headerless pixels, described by the sidecar index
+	};
+
+	static String INDEX_SUFFIX = ".idx";
+	static String INDEX_HEADER = "# name\toffset\twidth\theight";
+
+	/**
+	 * @param output: 	data file receiving all the images, replaced if existing
+	 * @param format: 	format of the appended images
+	 */
+	public GrayImageWriter(File output, Format format) throws IOException
+	{
+		this.output = output;
+		this.format = format;
+		this.channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.index = Files.newBufferedWriter(indexFile(output).toPath(), StandardCharsets.UTF_8);
+		this.index.write(INDEX_HEADER);
+		this.index.newLine();
+		this.position = 0;
+		this.writtenImages = 0;
+	}
+
+	/**
+	 * Write a single image in its own file. RAW images
+	 * also get their sidecar index
+	 *
+	 * @param gray: 	TYPE_BYTE_GRAY image
+	 * @param file: 	destination file, replaced if existing
+	 * @param format: 	output format
+	 * @return			number of bytes of the data file
+	 */
+	public static long write(BufferedImage gray, File file, Format format) throws IOException
+	{
+		if (format == Format.RAW) {
+			try (GrayImageWriter writer = new GrayImageWriter(file, format)) {
+				writer.append(file.getName(), gray);
+				return writer.getWrittenBytes();
+			}
+		}
+
+		long start = Metrics.start();
+		ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		addBuffers(buffers, gray, format);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long written = writeFully(channel, buffers.toArray(new ByteBuffer[0]));
+			Metrics.getMetrics().record(Metrics.Stage.WRITE, start, written);
+			return written;
+		}
+	}
+
+	/**
+	 * Append an image to the data file
+	 *
+	 * @param name: 	name of the image in the index, e.g. the source file name
+	 * @param gray: 	TYPE_BYTE_GRAY image
+	 * @return			offset of the image in the data file
+	 */
+	public long append(String name, BufferedImage gray) throws IOException
+	{
+		ArrayList<LoadedImage> images = new ArrayList<LoadedImage>(1);
+		images.add(new LoadedImage(name, gray));
+		return this.appendAll(images);
+	}
+
+	/**
+	 * Append a batch of images to the data file with gathering
+	 * writes, one call for as many images as the system accepts
+	 *
+	 * @param images: 	TYPE_BYTE_GRAY images, with the names used in the index
+	 * @return			offset of the first image of the batch in the data file
+	 */
+	public long appendAll(List<LoadedImage> images) throws IOException
+	{
+		long startNanos = Metrics.start();
+		long start = this.position;
+		ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		StringBuilder entries = new StringBuilder();
+		long offset = start;
+		for (LoadedImage image : images) {
+			int first = buffers.size();
+			BufferedImage gray = image.getImage();
+			addBuffers(buffers, gray, this.format);
+
+			// Index entries point to the pixels, after the PGM header
+			int header = this.format == Format.PGM ? buffers.get(first).remaining() : 0;
+			entries.append(image.getPath()).append('\t').append(offset + header).append('\t')
+					.append(gray.getWidth()).append('\t').append(gray.getHeight()).append(System.lineSeparator());
+			for (int i = first; i < buffers.size(); i++) {
+				offset += buffers.get(i).remaining();
+			}
+		}
+
+		// The index only lists images whose data has been written
+		long written = writeFully(this.channel, buffers.toArray(new ByteBuffer[0]));
+		this.index.write(entries.toString());
+		Metrics.getMetrics().record(Metrics.Stage.WRITE, startNanos, written);
+		this.position += written;
+		this.writtenImages += images.size();
+		return start;
+	}
+
+	/**
+	 * Close data file and index
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			this.index.close();
+		} finally {
+			this.channel.close();
+		}
+	}
+
+	public File getOutput()
+	{
+		return this.output;
+	}
+
+	public int getWrittenImages()
+	{
+		return this.writtenImages;
+	}
+
+	/**
+	 * @return	bytes of the data file
+	 */
+	public long getWrittenBytes()
+	{
+		return this.position;
+	}
+
+	/**
+	 * @return	the sidecar index of a data file
+	 */
+	public static File indexFile(File output)
+	{
+		return new File(output.getPath() + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Header of a binary PGM image with 8 bit samples
+	 */
+	static byte[] pgmHeader(int width, int height)
+	{
+		return ("P5\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Add the buffers of an image: the header for PGM, then one
+	 * buffer wrapping all the pixels if rows are contiguous, one
+	 * per row otherwise (e.g. sub-images)
+	 */
+	private static void addBuffers(ArrayList<ByteBuffer> buffers, BufferedImage gray, Format format) throws IOException
+	{
+		if (gray.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+			throw new IOException("Only TYPE_BYTE_GRAY images can be written");
+		}
+
+		int width = gray.getWidth();
+		int height = gray.getHeight();
+		if (format == Format.PGM) {
+			buffers.add(ByteBuffer.wrap(pgmHeader(width, height)));
+		}
+
+		ComponentSampleModel sm = (ComponentSampleModel) gray.getRaster().getSampleModel();
+		int offset = GrayscaleKernel.pixelOffset(gray);
+		byte[] data = GrayscaleKernel.grayData(gray);
+		if (sm.getScanlineStride() == width) {
+			buffers.add(ByteBuffer.wrap(data, offset, width * height));
+			return;
+		}
+		for (int y = 0; y < height; y++) {
+			buffers.add(ByteBuffer.wrap(data, offset + y * sm.getScanlineStride(), width));
+		}
+	}
+
+	/**
+	 * Write all the buffers: a gathering write may stop at the
+	 * system limit of buffers per call, or before the end of a buffer
+	 *
+	 * @return	written bytes
+	 */
+	private static long writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException
+	{
+		long written = 0;
+		int first = 0;
+		while (first < buffers.length) {
+			written += channel.write(buffers, first, buffers.length - first);
+			while (first < buffers.length && !buffers[first].hasRemaining()) {
+				first++;
+			}
+		}
+		return written;
+	}
+
+	private File output;				///< Data file
+	private Format format;				///< Format of the appended images
+	private FileChannel channel;		///< Open data file
+	private BufferedWriter index;		///< Sidecar index, one line per image
+	private long position;				///< Bytes written in the data file
+	private int writtenImages;			///< Images appended
+}
@@ -0,0 +1,271 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Grayscale conversion working directly on the arrays
+ * backing the image rasters. Output bytes are the same
+ * that BufferedImage.setRGB would store in a TYPE_BYTE_GRAY
+ * image, so results match the getRGB/setRGB based methods of Image.
+ * Gamma-correct luminance is evaluated through GammaTables.
+ */
+final class GrayscaleKernel {
+
+	private GrayscaleKernel() {}
+
+	/**
+	 * Convert a band of rows of the source image, writing
+	 * gray samples in row-major order in the destination array
+	 *
+	 * @param src: 		 source image
+	 * @param dst: 		 destination gray samples
+	 * @param dstOffset: index in dst of the first pixel of row yStart
+	 * @param dstStride: distance in dst between two consecutive rows
+	 * @param yStart: 	 first row to be converted
+	 * @param yEnd: 	 row after the last one to be converted
+	 * @param luminance: true for weighted luminance with gamma expansion,
+	 * 					 false for channels average
+	 */
+	static void convertRows(BufferedImage src, byte[] dst, int dstOffset, int dstStride,
+			int yStart, int yEnd, boolean luminance)
+	{
+		GammaTables tables = luminance ? gammaTables() : null;
+
+		switch (src.getType()) {
+			case BufferedImage.TYPE_3BYTE_BGR:
+			case BufferedImage.TYPE_4BYTE_ABGR:
+				convertByteInterleaved(src, dst, dstOffset, dstStride, yStart, yEnd, tables);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+			case BufferedImage.TYPE_INT_ARGB:
+			case BufferedImage.TYPE_INT_BGR:
+				convertIntPacked(src, dst, dstOffset, dstStride, yStart, yEnd, tables);
+				break;
+			case BufferedImage.TYPE_BYTE_GRAY:
+				convertByteGray(src, dst, dstOffset, dstStride, yStart, yEnd, tables);
+				break;
+			default:
+				convertGeneric(src, dst, dstOffset, dstStride, yStart, yEnd, tables);
+				break;
+		}
+	}
+
+	/**
+	 * Convert the whole source image in a gray image of the
+	 * same size, following the layout of the destination raster
+	 *
+	 * @param src: 		 source image
+	 * @param dst: 		 TYPE_BYTE_GRAY destination image
+	 * @param luminance: true for weighted luminance with gamma expansion,
+	 * 					 false for channels average
+	 */
+	static void convert(BufferedImage src, BufferedImage dst, boolean luminance)
+	{
+		WritableRaster raster = dst.getRaster();
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		int offset = raster.getDataBuffer().getOffset()
+				+ sm.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+
+		convertRows(src, byteData(dst), offset, sm.getScanlineStride(), 0, src.getHeight(), luminance);
+	}
+
+	/**
+	 * Return the array backing the raster of a byte image,
+	 * possibly longer than the image samples
+	 *
+	 * @param image: image with a DataBufferByte
+	 * @return		 the samples array
+	 */
+	static byte[] byteData(BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Return the index of the first byte of the top left pixel
+	 * in the array of an interleaved byte image, e.g. a sub-image
+	 *
+	 * @param image: image with a DataBufferByte and a ComponentSampleModel
+	 * @return		 offset of the first pixel in byteData(image)
+	 */
+	static int pixelOffset(BufferedImage image)
+	{
+		WritableRaster raster = image.getRaster();
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		return raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * sm.getScanlineStride()
+				- raster.getSampleModelTranslateX() * sm.getPixelStride();
+	}
+
+	/**
+	 * Return the array backing the raster of a gray image
+	 *
+	 * @param image: TYPE_BYTE_GRAY image
+	 * @return		 the samples array, one byte per pixel in row-major order
+	 */
+	static byte[] grayData(BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	private static void convertByteInterleaved(BufferedImage src, byte[] dst, int dstOffset, int dstStride,
+			int yStart, int yEnd, GammaTables tables)
+	{
+		WritableRaster raster = src.getRaster();
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+		byte[] data = db.getData();
+		int[] bandOffsets = sm.getBandOffsets();
+		int pixelStride = sm.getPixelStride();
+		int scanlineStride = sm.getScanlineStride();
+		int width = src.getWidth();
+		int tx = raster.getSampleModelTranslateX();
+		int ty = raster.getSampleModelTranslateY();
+		int rOff = bandOffsets[0];
+		int gOff = bandOffsets[1];
+		int bOff = bandOffsets[2];
+
+		for (int y = yStart; y < yEnd; y++) {
+			int in = db.getOffset() + (y - ty) * scanlineStride - tx * pixelStride;
+			int out = dstOffset + (y - yStart) * dstStride;
+			for (int x = 0; x < width; x++) {
+				int r = data[in + rOff] & 0xFF;
+				int g = data[in + gOff] & 0xFF;
+				int b = data[in + bOff] & 0xFF;
+				dst[out + x] = tables != null ? SRGB_TO_GRAY[tables.grayLevel(r, g, b)] : averageSample(r, g, b);
+				in += pixelStride;
+			}
+		}
+	}
+
+	private static void convertIntPacked(BufferedImage src, byte[] dst, int dstOffset, int dstStride,
+			int yStart, int yEnd, GammaTables tables)
+	{
+		WritableRaster raster = src.getRaster();
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+		int[] data = db.getData();
+		int[] bitOffsets = sm.getBitOffsets();
+		int scanlineStride = sm.getScanlineStride();
+		int width = src.getWidth();
+		int tx = raster.getSampleModelTranslateX();
+		int ty = raster.getSampleModelTranslateY();
+		int rShift = bitOffsets[0];
+		int gShift = bitOffsets[1];
+		int bShift = bitOffsets[2];
+
+		for (int y = yStart; y < yEnd; y++) {
+			int in = db.getOffset() + (y - ty) * scanlineStride - tx;
+			int out = dstOffset + (y - yStart) * dstStride;
+			for (int x = 0; x < width; x++) {
+				int p = data[in + x];
+				int r = (p >>> rShift) & 0xFF;
+				int g = (p >>> gShift) & 0xFF;
+				int b = (p >>> bShift) & 0xFF;
+				dst[out + x] = tables != null ? SRGB_TO_GRAY[tables.grayLevel(r, g, b)] : averageSample(r, g, b);
+			}
+		}
+	}
+
+	private static void convertByteGray(BufferedImage src, byte[] dst, int dstOffset, int dstStride,
+			int yStart, int yEnd, GammaTables tables)
+	{
+		WritableRaster raster = src.getRaster();
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+		byte[] data = db.getData();
+		int pixelStride = sm.getPixelStride();
+		int scanlineStride = sm.getScanlineStride();
+		int width = src.getWidth();
+		int tx = raster.getSampleModelTranslateX();
+		int ty = raster.getSampleModelTranslateY();
+		int off = sm.getBandOffsets()[0];
+
+		for (int y = yStart; y < yEnd; y++) {
+			int in = db.getOffset() + (y - ty) * scanlineStride - tx * pixelStride + off;
+			int out = dstOffset + (y - yStart) * dstStride;
+			for (int x = 0; x < width; x++) {
+				// getRGB returns the same sRGB level on every channel of a gray pixel
+				int v = GRAY_TO_SRGB[data[in] & 0xFF];
+				dst[out + x] = SRGB_TO_GRAY[tables != null ? tables.grayLevel(v, v, v) : v];
+				in += pixelStride;
+			}
+		}
+	}
+
+	private static void convertGeneric(BufferedImage src, byte[] dst, int dstOffset, int dstStride,
+			int yStart, int yEnd, GammaTables tables)
+	{
+		int width = src.getWidth();
+		int[] row = new int[width];
+
+		for (int y = yStart; y < yEnd; y++) {
+			src.getRGB(0, y, width, 1, row, 0, width);
+			int out = dstOffset + (y - yStart) * dstStride;
+			for (int x = 0; x < width; x++) {
+				int p = row[x];
+				int r = (p >> 16) & 0xFF;
+				int g = (p >> 8) & 0xFF;
+				int b = p & 0xFF;
+				dst[out + x] = tables != null ? SRGB_TO_GRAY[tables.grayLevel(r, g, b)] : averageSample(r, g, b);
+			}
+		}
+	}
+
+	private static byte averageSample(int r, int g, int b)
+	{
+		return SRGB_TO_GRAY[(r + g + b) / 3];
+	}
+
+	/**
+	 * Return gamma tables for the current Image parameters,
+	 * rebuilding them if GAMMA or coefficients have been changed
+	 */
+	static GammaTables gammaTables()
+	{
+		GammaTables tables = gammaTables;
+		if (tables == null || !tables.matches(Image.GAMMA, Image.R_COEFF, Image.G_COEFF, Image.B_COEFF)) {
+			tables = new GammaTables(Image.GAMMA, Image.R_COEFF, Image.G_COEFF, Image.B_COEFF);
+			gammaTables = tables;
+		}
+		return tables;
+	}
+
+	/**
+	 * Sample stored by setRGB in a TYPE_BYTE_GRAY image for each
+	 * sRGB gray level, the gray color space being linear
+	 */
+	private static byte[] buildSrgbToGray()
+	{
+		BufferedImage image = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+		for (int i = 0; i < 256; i++) {
+			image.setRGB(i, 0, (0xFF << 24) | (i << 16) | (i << 8) | i);
+		}
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData().clone();
+	}
+
+	/**
+	 * sRGB level returned by getRGB for each sample of a TYPE_BYTE_GRAY image
+	 */
+	private static int[] buildGrayToSrgb()
+	{
+		BufferedImage image = new BufferedImage(256, 1, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			data[i] = (byte) i;
+		}
+		for (int i = 0; i < 256; i++) {
+			table[i] = image.getRGB(i, 0) & 0xFF;
+		}
+		return table;
+	}
+
+	private static final byte[] SRGB_TO_GRAY = buildSrgbToGray();		///< sRGB gray level to TYPE_BYTE_GRAY sample
+	private static final int[] GRAY_TO_SRGB = buildGrayToSrgb();		///< TYPE_BYTE_GRAY sample to sRGB gray level
+	private static volatile GammaTables gammaTables = null;				///< Tables for the last used gamma parameters
+}
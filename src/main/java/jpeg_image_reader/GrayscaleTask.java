@@ -0,0 +1,81 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task converting a band of rows of a single
+ * image to grayscale. Bands are split in halves until they
+ * are below a threshold evaluated from image size and pool
+ * parallelism, so that a huge image keeps all workers busy.
+ */
+class GrayscaleTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	static int SEQUENTIAL_THRESHOLD_PIXELS = 1 << 20;		///< Images below this size are converted without forking
+	static int MIN_PIXELS_PER_TASK = 1 << 16;				///< Smallest band worth a task
+	static int TASKS_PER_WORKER = 4;								///< Bands per worker, to balance uneven workers
+
+	GrayscaleTask(BufferedImage src, byte[] dst, int yStart, int yEnd, int rowsThreshold, boolean luminance)
+	{
+		this.src = src;
+		this.dst = dst;
+		this.yStart = yStart;
+		this.yEnd = yEnd;
+		this.rowsThreshold = rowsThreshold;
+		this.luminance = luminance;
+	}
+
+	/**
+	 * Convert the whole source image in the destination gray samples,
+	 * forking only if the image is big enough to benefit from it
+	 *
+	 * @param pool: 	 fork/join pool executing the bands
+	 * @param src: 		 source image
+	 * @param dst: 		 destination gray samples, one byte per pixel in row-major order
+	 * @param luminance: true for weighted luminance with gamma expansion,
+	 * 					 false for channels average
+	 */
+	static void convert(ForkJoinPool pool, BufferedImage src, byte[] dst, boolean luminance)
+	{
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int parallelism = pool.getParallelism();
+
+		if (parallelism < 2 || (long) width * height < SEQUENTIAL_THRESHOLD_PIXELS) {
+			GrayscaleKernel.convertRows(src, dst, 0, width, 0, height, luminance);
+			return;
+		}
+
+		// Enough bands to balance the workers, none smaller than the minimum size
+		int minRows = Math.max(1, MIN_PIXELS_PER_TASK / width);
+		int rowsThreshold = Math.max(minRows, height / (parallelism * TASKS_PER_WORKER));
+
+		pool.invoke(new GrayscaleTask(src, dst, 0, height, rowsThreshold, luminance));
+	}
+
+	@Override
+	protected void compute()
+	{
+		int rows = this.yEnd - this.yStart;
+		if (rows <= this.rowsThreshold) {
+			int width = this.src.getWidth();
+			GrayscaleKernel.convertRows(this.src, this.dst, this.yStart * width, width,
+					this.yStart, this.yEnd, this.luminance);
+			return;
+		}
+
+		int middle = this.yStart + rows / 2;
+		invokeAll(new GrayscaleTask(this.src, this.dst, this.yStart, middle, this.rowsThreshold, this.luminance),
+				new GrayscaleTask(this.src, this.dst, middle, this.yEnd, this.rowsThreshold, this.luminance));
+	}
+
+	private BufferedImage src;			///< Source image
+	private byte[] dst;					///< Destination gray samples of the whole image
+	private int yStart;					///< First row of the band
+	private int yEnd;					///< Row after the last one of the band
+	private int rowsThreshold;			///< Bands with at most these rows are not split
+	private boolean luminance;			///< True for weighted luminance, false for average
+}
@@ -0,0 +1,188 @@
+package jpeg_image_reader;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Unbounded multi-producer multi-consumer handoff queue with
+ * an end-of-stream signal. Items are exchanged through a lock-free
+ * queue; consumers park only when the queue is empty and the stream
+ * is still open, and are unparked as soon as an item arrives or
+ * the stream is closed.
+ */
+public class HandoffQueue<T> {
+
+	public HandoffQueue()
+	{
+		this.items = new ConcurrentLinkedQueue<T>();
+		this.size = new AtomicInteger(0);
+		this.waiters = new ConcurrentLinkedQueue<Thread>();
+		this.closeWaiters = new ConcurrentLinkedQueue<Thread>();
+		this.closed = false;
+	}
+
+	/**
+	 * Insert an item and wake up a waiting consumer, if any
+	 *
+	 * @param item: item to be handed off, not null
+	 */
+	public void offer(T item)
+	{
+		// Counted first, so a consumer taking the item never drives size below zero
+		this.size.incrementAndGet();
+		this.items.offer(item);
+		this.signal();
+	}
+
+	/**
+	 * Signal the end of stream, waking up all the waiting
+	 * consumers. Items already inserted can still be taken
+	 */
+	public void close()
+	{
+		this.closed = true;
+
+		Thread waiter = null;
+		while ((waiter = this.waiters.poll()) != null) {
+			LockSupport.unpark(waiter);
+		}
+		while ((waiter = this.closeWaiters.poll()) != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * Retrieve an item without waiting
+	 *
+	 * @return	the oldest item, null if queue is empty
+	 */
+	public T poll()
+	{
+		T item = this.items.poll();
+		if (item != null) {
+			this.size.decrementAndGet();
+		}
+		return item;
+	}
+
+	/**
+	 * Retrieve an item, waiting for producers if
+	 * queue is empty and stream is not closed
+	 *
+	 * @return	the oldest item, null at the end of stream
+	 */
+	public T take() throws InterruptedException
+	{
+		T item = null;
+		while ((item = this.poll()) == null) {
+			if (this.closed) {
+				// Items inserted before close are still delivered
+				return this.poll();
+			}
+			this.park(this.waiters, false);
+		}
+
+		// Pass the wake up on if more items are ready
+		if (!this.items.isEmpty()) {
+			this.signal();
+		}
+		return item;
+	}
+
+	/**
+	 * Wait until an item is available or stream is closed,
+	 * without removing anything from the queue
+	 *
+	 * @return	true if an item is available, false at the end of stream
+	 */
+	public boolean awaitItem() throws InterruptedException
+	{
+		while (this.items.isEmpty()) {
+			if (this.closed) {
+				return !this.items.isEmpty();
+			}
+			this.park(this.waiters, false);
+		}
+
+		// Nothing has been taken, let another consumer see the item
+		this.signal();
+		return true;
+	}
+
+	/**
+	 * Wait until the stream is closed
+	 */
+	public void awaitClose() throws InterruptedException
+	{
+		while (!this.closed) {
+			this.park(this.closeWaiters, true);
+		}
+	}
+
+	public boolean isClosed()
+	{
+		return this.closed;
+	}
+
+	/**
+	 * @return	true if stream is closed and all items have been taken
+	 */
+	public boolean isDrained()
+	{
+		return this.closed && this.items.isEmpty();
+	}
+
+	public boolean isEmpty()
+	{
+		return this.items.isEmpty();
+	}
+
+	/**
+	 * @return	number of items not yet taken
+	 */
+	public int size()
+	{
+		return this.size.get();
+	}
+
+	/**
+	 * Remove all the items without closing the stream
+	 */
+	public void clear()
+	{
+		while (this.poll() != null) {
+		}
+	}
+
+	private void signal()
+	{
+		Thread waiter = this.waiters.poll();
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	private void park(ConcurrentLinkedQueue<Thread> waitList, boolean untilClose) throws InterruptedException
+	{
+		Thread current = Thread.currentThread();
+		waitList.offer(current);
+
+		// Check again after registering, an item or the close
+		// could have arrived before the producer saw this waiter
+		if (!this.closed && (untilClose || this.items.isEmpty())) {
+			LockSupport.park(this);
+		}
+
+		waitList.remove(current);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	private ConcurrentLinkedQueue<T> items;				///< Items waiting for a consumer
+	private AtomicInteger size;							///< Items inserted and not yet taken
+	private ConcurrentLinkedQueue<Thread> waiters;		///< Consumers parked on an empty queue
+	private ConcurrentLinkedQueue<Thread> closeWaiters;	///< Threads parked until the end of stream
+	private volatile boolean closed;						///< End of stream flag
+}
@@ -3,8 +3,7 @@ package jpeg_image_reader;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.ForkJoinPool;
 
 public class Image {
 	
@@ -69,52 +68,87 @@ public class Image {
 		/**
 		 * Perform a grayscale conversion of the
 	    * set image. The conversion is done with
-	    * weighted luminance evaluation and gamma expansion 
+	    * weighted luminance evaluation and gamma expansion.
+	    * The raster arrays are read and written directly and
+	    * gamma powers are taken from lookup tables, rebuilt
+	    * when GAMMA or the channel coefficients change
 		 *
 		 * @return the grayscale BufferedImage
 		 */
 		public BufferedImage grayscaleConversionAlt()
-		{	
-			BufferedImage grayscaleImage = null;
-			
-			if (this.image == null) {
-				System.out.println("Unable to convert image to grayscale");
-				return grayscaleImage;
-			}
-			
-			int width = this.image.getWidth();
-			int height = this.image.getHeight();
-			
-			grayscaleImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-			
-			for (int x = 0; x < width; ++x) {
-			    for (int y = 0; y < height; ++y) {
-			    	// Get pixel channel values
-			        int rgb = this.image.getRGB(x, y);
-			        int r = (rgb >> 16) & 0xFF;
-			        int g = (rgb >> 8) & 0xFF;
-			        int b = (rgb & 0xFF);
-
-			      // Normalize and evaluate gamma power
-			        float rGamma = (float) Math.pow(r / 255.0, GAMMA);
-			        float gGamma = (float) Math.pow(g / 255.0, GAMMA);
-			        float bGamma = (float) Math.pow(b / 255.0, GAMMA);
-
-			        float luminance = (float) (R_COEFF * rGamma + G_COEFF * gGamma + B_COEFF * bGamma);
-
-			      // Inverse gamma power and scale to byte range:
-			        int grayLevel = (int) (255.0 * Math.pow(luminance, 1.0 / GAMMA));
-			        int grayPixel = (grayLevel << 16) + (grayLevel << 8) + grayLevel; 
-			      grayscaleImage.setRGB(x, y, grayPixel);
-			   }
-			}
-			
-			this.image = grayscaleImage;
-			return this.image;
+		{
+			// Gamma powers come from the lookup tables, the gray levels being
+			// the ones of 255 * (R * r^G + G * g^G + B * b^G)^(1/G) per pixel
+			return this.rasterConversion(true);
+		}
+		
+		/**
+		 * Same conversion of grayscaleConversion, done
+		 * by reading and writing the raster arrays directly
+		 * instead of calling getRGB/setRGB for every pixel
+		 *
+		 * @return Grayscale image
+		 */
+		public BufferedImage rasterGrayscaleConversion()
+		{
+			return this.rasterConversion(false);
+		}
+		
+		/**
+		 * Same conversion of rasterGrayscaleConversion, writing
+		 * in a caller provided image, e.g. taken from ImagePool
+		 *
+		 * @param destination: TYPE_BYTE_GRAY image of the same size
+		 * @return			   the destination image, null if it cannot be used
+		 */
+		public BufferedImage rasterGrayscaleConversion(BufferedImage destination)
+		{
+			return this.rasterConversion(destination, false);
+		}
+		
+		/**
+		 * Same conversion of grayscaleConversionAlt, writing
+		 * in a caller provided image, e.g. taken from ImagePool
+		 *
+		 * @param destination: TYPE_BYTE_GRAY image of the same size
+		 * @return			   the destination image, null if it cannot be used
+		 */
+		public BufferedImage rasterGrayscaleConversionAlt(BufferedImage destination)
+		{
+			return this.rasterConversion(destination, true);
+		}
+		
+		/**
+		 * Same conversion of rasterGrayscaleConversion, with
+		 * bands of rows of the image processed in parallel
+		 * by the fork/join pool. Small images are converted
+		 * sequentially
+		 *
+		 * @param pool: fork/join pool, e.g. ForkJoinPool.commonPool()
+		 * @return		Grayscale image
+		 */
+		public BufferedImage parallelGrayscaleConversion(ForkJoinPool pool)
+		{
+			return this.parallelConversion(pool, false);
 		}
 		
 		/**
-		 * Save image in requested path
+		 * Same conversion of grayscaleConversionAlt, with
+		 * bands of rows of the image processed in parallel
+		 * by the fork/join pool. Small images are converted
+		 * sequentially
+		 *
+		 * @param pool: fork/join pool, e.g. ForkJoinPool.commonPool()
+		 * @return		Grayscale image
+		 */
+		public BufferedImage parallelGrayscaleConversionAlt(ForkJoinPool pool)
+		{
+			return this.parallelConversion(pool, true);
+		}
+		
+		/**
+		 * Save image in requested path, as jpeg. The writer of
+		 * the calling thread is reused across calls
 		 *
 		 * @param 	path: String containing the destination path
 		 * @return		  True is successful, false otherwise
@@ -123,8 +157,7 @@ public class Image {
 		{
 			try {
 			    File outputfile = new File(path);
-			    ImageIO.write(this.image, "jpg", outputfile);
-			    System.out.println("Saved");
+			    ImageEncoder.forCurrentThread().write(this.image, outputfile, false);
 			} catch (IOException e) {
 			    System.out.println("Error");
 			    return false;
@@ -132,5 +165,64 @@ public class Image {
 			return true;
 		}
 	
+		private BufferedImage rasterConversion(boolean luminance)
+		{
+			if (this.image == null) {
+				System.out.println("Unable to convert image to grayscale");
+				return null;
+			}
+			
+			long start = Metrics.start();
+			int width = this.image.getWidth();
+			int height = this.image.getHeight();
+			BufferedImage grayscaleImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+			
+			GrayscaleKernel.convertRows(this.image, GrayscaleKernel.grayData(grayscaleImage), 0, width, 0, height, luminance);
+			
+			this.image = grayscaleImage;
+			Metrics.getMetrics().record(Metrics.Stage.PROCESS, start, Metrics.rasterBytes(this.image));
+			return this.image;
+		}
+	
+		private BufferedImage rasterConversion(BufferedImage destination, boolean luminance)
+		{
+			if (this.image == null) {
+				System.out.println("Unable to convert image to grayscale");
+				return null;
+			}
+			
+			long start = Metrics.start();
+			if (destination == null || destination.getType() != BufferedImage.TYPE_BYTE_GRAY
+					|| destination.getWidth() != this.image.getWidth() 
+					|| destination.getHeight() != this.image.getHeight()) {
+				System.out.println("Destination must be a grayscale image of the same size");
+				return null;
+			}
+			
+			GrayscaleKernel.convert(this.image, destination, luminance);
+			
+			this.image = destination;
+			Metrics.getMetrics().record(Metrics.Stage.PROCESS, start, Metrics.rasterBytes(this.image));
+			return this.image;
+		}
+	
+		private BufferedImage parallelConversion(ForkJoinPool pool, boolean luminance)
+		{
+			if (this.image == null) {
+				System.out.println("Unable to convert image to grayscale");
+				return null;
+			}
+			
+			long start = Metrics.start();
+			BufferedImage grayscaleImage = new BufferedImage(this.image.getWidth(), this.image.getHeight(),
+					BufferedImage.TYPE_BYTE_GRAY);
+			
+			GrayscaleTask.convert(pool, this.image, GrayscaleKernel.grayData(grayscaleImage), luminance);
+			
+			this.image = grayscaleImage;
+			Metrics.getMetrics().record(Metrics.Stage.PROCESS, start, Metrics.rasterBytes(this.image));
+			return this.image;
+		}
+	
 		private BufferedImage image;
 }
\ No newline at end of file
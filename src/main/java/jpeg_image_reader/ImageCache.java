@@ -0,0 +1,218 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Heap store of decoded images keyed by file path, bounded by the
+ * bytes of their rasters. Entries are kept in access order and
+ * the least recently used ones are evicted as soon as the budget
+ * is exceeded, so a big folder can be loaded with a heap smaller
+ * than its decoded size. Evicted images are only dropped: callers
+ * may still hold them, so they are never given to the ImagePool.
+ */
+public class ImageCache implements ImageStore {
+
+	static long DEFAULT_MAX_CACHED_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+	public ImageCache()
+	{
+		this(DEFAULT_MAX_CACHED_BYTES);
+	}
+
+	public ImageCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+		this.usedBytes = 0;
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+	}
+
+	/**
+	 * Retrieve a cached image, marking it as recently used
+	 *
+	 * @param path: absolute path of the image
+	 * @return		the image, null on a miss
+	 */
+	@Override
+	public synchronized BufferedImage get(String path)
+	{
+		BufferedImage image = this.entries.get(path);
+		if (image != null) {
+			this.hits++;
+		}
+		else {
+			this.misses++;
+		}
+		return image;
+	}
+
+	/**
+	 * Insert an image, evicting the least recently used ones
+	 * if the budget is exceeded. Images bigger than the whole
+	 * budget are not cached
+	 *
+	 * @param path: 	absolute path of the image
+	 * @param image: 	decoded image
+	 * @return			true if the image has been cached
+	 */
+	@Override
+	public synchronized boolean put(String path, BufferedImage image)
+	{
+		long bytes = sizeOf(image);
+		BufferedImage previous = this.entries.remove(path);
+		if (previous != null) {
+			this.usedBytes -= sizeOf(previous);
+		}
+
+		if (bytes > this.maxBytes) {
+			this.evictions++;
+			return false;
+		}
+
+		this.entries.put(path, image);
+		this.usedBytes += bytes;
+		this.evict();
+		return true;
+	}
+
+	/**
+	 * Same as put: cached images are not copied
+	 */
+	@Override
+	public boolean store(String path, BufferedImage image)
+	{
+		return this.put(path, image);
+	}
+
+	/**
+	 * Remove an image, without counting it as a hit or a miss
+	 *
+	 * @param path: absolute path of the image
+	 * @return		the removed image, null if not cached
+	 */
+	@Override
+	public synchronized BufferedImage remove(String path)
+	{
+		BufferedImage image = this.entries.remove(path);
+		if (image != null) {
+			this.usedBytes -= sizeOf(image);
+		}
+		return image;
+	}
+
+	/**
+	 * Change the budget, evicting images if it is now exceeded
+	 *
+	 * @param maxBytes: bytes of the cached rasters
+	 * @return			true if successful, false otherwise
+	 */
+	@Override
+	public synchronized boolean setMaxBytes(long maxBytes)
+	{
+		if (maxBytes < 0) {
+			System.out.println("Invalid cache size");
+			return false;
+		}
+
+		this.maxBytes = maxBytes;
+		this.evict();
+		return true;
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.usedBytes = 0;
+	}
+
+	/**
+	 * @return	paths of the cached images, least recently used first
+	 */
+	@Override
+	public synchronized ArrayList<String> getPaths()
+	{
+		return new ArrayList<String>(this.entries.keySet());
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized long getMaxBytes()
+	{
+		return this.maxBytes;
+	}
+
+	@Override
+	public synchronized long getUsedBytes()
+	{
+		return this.usedBytes;
+	}
+
+	@Override
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	@Override
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	@Override
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/**
+	 * Evaluate the bytes held by the raster of an image
+	 *
+	 * @param image: image to be measured
+	 * @return		 bytes of all the banks of the data buffer
+	 */
+	static long sizeOf(BufferedImage image)
+	{
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		if (buffer instanceof DataBufferByte) {
+			// Pooled arrays can be longer than the samples
+			long bytes = 0;
+			for (byte[] bank : ((DataBufferByte) buffer).getBankData()) {
+				bytes += bank.length;
+			}
+			return bytes;
+		}
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<String, BufferedImage>> it = this.entries.entrySet().iterator();
+		while (this.usedBytes > this.maxBytes && it.hasNext()) {
+			this.usedBytes -= sizeOf(it.next().getValue());
+			it.remove();
+			this.evictions++;
+		}
+	}
+
+	private long maxBytes;										///< Budget of the cached rasters
+	private LinkedHashMap<String, BufferedImage> entries;		///< Cached images in access order, eldest first
+	private long usedBytes;										///< Bytes of the cached rasters
+	private long hits;											///< Lookups served by the cache
+	private long misses;										///< Lookups of images not cached
+	private long evictions;										///< Images dropped to stay within the budget
+}
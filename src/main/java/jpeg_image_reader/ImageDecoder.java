@@ -0,0 +1,583 @@
+package jpeg_image_reader;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Jpeg decoder used by the loaders. Files can be read through
+ * the ImageIO file stream (STREAM), mapped in memory (MAPPED) or
+ * read with a single call in a direct buffer reused across files
+ * (DIRECT_BUFFER). With a target size images are decoded with
+ * source subsampling, so the full resolution raster is never
+ * allocated. Images larger than the heap can be decoded strip by
+ * strip with decodeStrips. The ImageReader is kept across files, and
+ * destination images are taken from an ImagePool, so images given back
+ * with release are decoded into again. A decoder keeps per-thread state and
+ * must not be shared among threads: each worker creates its own or
+ * uses forCurrentThread(). Only release can be called by other threads.
+ * With a DiskImageCache, files decoded in a previous run are loaded
+ * from their cache entry instead of being decoded again.
+ * Decoders of loaders running on the IO pool share decode permits,
+ * so that reads can outnumber the cores but decodes do not.
+ */
+public class ImageDecoder {
+
+	enum InputMode {
+		STREAM,				///< ImageIO file stream, the original behaviour
+		MAPPED,				///< File mapped with FileChannel.map
+		DIRECT_BUFFER,		///< File read in a reused direct buffer
+	};
+
+	static InputMode DEFAULT_INPUT_MODE = InputMode.DIRECT_BUFFER;
+	static int MIN_DIRECT_BUFFER_SIZE = 1 << 16;
+	static int DEFAULT_STRIP_BYTES = 16 << 20;
+	static int STRIP_ROWS_ALIGNMENT = 16;
+
+	public ImageDecoder()
+	{
+		this(DEFAULT_INPUT_MODE);
+	}
+
+	public ImageDecoder(InputMode mode)
+	{
+		this.mode = mode;
+		this.directBuffer = null;
+		this.targetWidth = 0;
+		this.targetHeight = 0;
+		this.reader = null;
+		this.imagePool = ImagePool.getImagePool();
+		this.diskCache = null;
+		this.decodePermits = null;
+	}
+
+	/**
+	 * Retrieve the decoder of the calling thread, created
+	 * with the default input mode on first use
+	 *
+	 * @return	the decoder of the current thread
+	 */
+	public static ImageDecoder forCurrentThread()
+	{
+		return threadDecoder.get();
+	}
+
+	public InputMode getInputMode()
+	{
+		return this.mode;
+	}
+
+	/**
+	 * Set the smallest size of decoded images. Images are
+	 * subsampled by the largest integer factor keeping them
+	 * at least as big as the target, in both directions
+	 *
+	 * @param width: 	target width, 0 to ignore the width
+	 * @param height: 	target height, 0 to ignore the height
+	 */
+	public void setTargetSize(int width, int height)
+	{
+		this.targetWidth = Math.max(0, width);
+		this.targetHeight = Math.max(0, height);
+	}
+
+	public int getTargetWidth()
+	{
+		return this.targetWidth;
+	}
+
+	public int getTargetHeight()
+	{
+		return this.targetHeight;
+	}
+
+	/**
+	 * Give back a decoded image that is no longer used to the
+	 * pool of the decoder, so that a next decode of a similar size
+	 * writes into it instead of allocating a new raster.
+	 * Can be called by any thread
+	 *
+	 * @param image: image not referenced by the caller anymore
+	 */
+	public void release(BufferedImage image)
+	{
+		this.imagePool.release(image);
+	}
+
+	/**
+	 * Set the pool of destination images, the shared
+	 * one of ImagePool.getImagePool() by default
+	 *
+	 * @param imagePool: pool of destination images
+	 */
+	public void setImagePool(ImagePool imagePool)
+	{
+		this.imagePool = imagePool;
+	}
+
+	/**
+	 * Set the persistent cache of decoded images used by decode(path)
+	 *
+	 * @param diskCache: cache of decoded images, null to always decode
+	 */
+	public void setDiskCache(DiskImageCache diskCache)
+	{
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Bound the decodes of decode(path) with permits shared among
+	 * decoders, e.g. one per core for loaders of the IO pool.
+	 * Files are read before a permit is taken
+	 *
+	 * @param decodePermits: permits of the concurrent decodes, null for no bound
+	 */
+	public void setDecodePermits(Semaphore decodePermits)
+	{
+		this.decodePermits = decodePermits;
+	}
+
+	/**
+	 * Load the image of a file from the disk cache, at the target size
+	 *
+	 * @param path: path of the image file
+	 * @return		the cached image, null if there is no
+	 * 				disk cache or no valid entry for the file
+	 */
+	public BufferedImage loadCached(String path)
+	{
+		if (this.diskCache == null) {
+			return null;
+		}
+
+		long start = Metrics.start();
+		BufferedImage image = this.diskCache.load(path, this.targetWidth, this.targetHeight);
+		if (image != null) {
+			Metrics.getMetrics().record(Metrics.Stage.READ, start, Metrics.rasterBytes(image));
+			Metrics.getMetrics().trackDecoded(image);
+			Metrics.getMetrics().cacheHit();
+		}
+		return image;
+	}
+
+	/**
+	 * Take size and last modified time of a file before reading it,
+	 * so that a cache entry never claims a later version of the file
+	 *
+	 * @param path: path of the image file
+	 * @return		the version to be given to saveCached,
+	 * 				null if there is no disk cache
+	 */
+	public DiskImageCache.SourceVersion sourceVersion(String path)
+	{
+		return this.diskCache == null ? null : new DiskImageCache.SourceVersion(path);
+	}
+
+	/**
+	 * Store the image decoded from a file in the disk cache, if any
+	 *
+	 * @param source: 	version of the image file returned by sourceVersion
+	 * 					before reading it, null to skip the cache
+	 * @param image: 	image decoded at the target size
+	 */
+	public void saveCached(DiskImageCache.SourceVersion source, BufferedImage image)
+	{
+		if (this.diskCache != null && source != null && image != null) {
+			this.diskCache.save(source, this.targetWidth, this.targetHeight, image);
+		}
+	}
+
+	/**
+	 * Free the native state of the cached ImageReader.
+	 * The decoder can still be used afterwards
+	 */
+	public void dispose()
+	{
+		if (this.reader != null) {
+			this.reader.dispose();
+			this.reader = null;
+		}
+	}
+
+	/**
+	 * Decode the image stored in a file, or load it
+	 * from the disk cache if it has been decoded before
+	 *
+	 * @param path: path of the image file
+	 * @return		the decoded image, null if no decoder
+	 * 				is able to read the file content
+	 */
+	public BufferedImage decode(String path) throws IOException
+	{
+		BufferedImage image = this.loadCached(path);
+		if (image != null) {
+			return image;
+		}
+
+		DiskImageCache.SourceVersion source = this.sourceVersion(path);
+		image = this.decodePath(path);
+		this.saveCached(source, image);
+		return image;
+	}
+
+	/**
+	 * Decode a file with the input mode of the decoder
+	 */
+	private BufferedImage decodePath(String path) throws IOException
+	{
+		if (this.mode == InputMode.STREAM) {
+			return this.bounded(() -> this.decodeFile(new File(path)));
+		}
+
+		try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				// Larger than a single buffer, let ImageIO stream it
+				return this.bounded(() -> this.decodeFile(new File(path)));
+			}
+
+			// Mapped pages are only read by the decoder, the read stage times the mapping
+			long start = Metrics.start();
+			if (this.mode == InputMode.MAPPED) {
+				ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				Metrics.getMetrics().record(Metrics.Stage.READ, start, size);
+				return this.bounded(() -> this.decode(mapped));
+			}
+
+			ByteBuffer buffer = this.directBuffer((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					break;
+				}
+			}
+			buffer.flip();
+			Metrics.getMetrics().record(Metrics.Stage.READ, start, buffer.remaining());
+			return this.bounded(() -> this.decode(buffer));
+		}
+	}
+
+	/**
+	 * Run a decode holding one of the decode permits, if any
+	 */
+	private BufferedImage bounded(Decode decode) throws IOException
+	{
+		if (this.decodePermits == null) {
+			return decode.run();
+		}
+
+		try {
+			this.decodePermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a decode permit");
+		}
+		try {
+			return decode.run();
+		} finally {
+			this.decodePermits.release();
+		}
+	}
+
+	private interface Decode {
+		BufferedImage run() throws IOException;
+	}
+
+	/**
+	 * Decode an image already read in memory
+	 *
+	 * @param data: content of the image file
+	 * @return		the decoded image, null if no decoder
+	 * 				is able to read the content
+	 */
+	public BufferedImage decode(byte[] data) throws IOException
+	{
+		return this.decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Decode the content of a buffer, from its
+	 * position to its limit
+	 *
+	 * @param data: content of the image file
+	 * @return		the decoded image, null if no decoder
+	 * 				is able to read the content
+	 */
+	public BufferedImage decode(ByteBuffer data) throws IOException
+	{
+		return this.decode(new ByteBufferImageInputStream(data));
+	}
+
+	/**
+	 * Decode a file strip by strip, each strip being a band of
+	 * full width rows read with ImageReadParam.setSourceRegion in
+	 * a reused destination. Peak memory depends on the strip size
+	 * instead of the image size. The jpeg reader decodes the rows
+	 * above a region again for every strip, so the decode time grows
+	 * with the number of strips: keep strips as tall as memory allows
+	 *
+	 * @param path: 		path of the image file
+	 * @param stripRows: 	rows of each strip, 0 to evaluate them
+	 * 						from DEFAULT_STRIP_BYTES
+	 * @param consumer: 	receiver of the decoded strips
+	 * @return				false if no decoder is able to read the file
+	 */
+	public boolean decodeStrips(String path, int stripRows, StripConsumer consumer) throws IOException
+	{
+		File file = new File(path);
+		if (!file.canRead()) {
+			throw new IIOException("Can't read input file!");
+		}
+
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null) {
+			throw new IIOException("Can't create an ImageInputStream!");
+		}
+
+		try {
+			ImageReader reader = this.reader(stream);
+			if (reader == null) {
+				return false;
+			}
+
+			try {
+				// Not forward only: every strip is read from the start of the image
+				reader.setInput(stream, false, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+
+				ImageTypeSpecifier type = reader.getImageTypes(0).next();
+				int rows = stripRows > 0 ? stripRows : stripRows(width, type);
+				rows = Math.max(1, Math.min(rows, height));
+
+				BufferedImage strip = type.createBufferedImage(width, rows);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setDestination(strip);
+
+				consumer.begin(width, height);
+				try {
+					for (int y = 0; y < height; y += rows) {
+						int stripHeight = Math.min(rows, height - y);
+						param.setSourceRegion(new Rectangle(0, y, width, stripHeight));
+						reader.read(0, param);
+						consumer.strip(strip, y, stripHeight);
+					}
+				} finally {
+					consumer.end();
+				}
+				return true;
+			} finally {
+				reader.reset();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Evaluate the strip height fitting DEFAULT_STRIP_BYTES,
+	 * as a multiple of the tallest jpeg MCU. Peak memory follows
+	 * the strip size, not the image or the heap: with N strips the
+	 * rows above each strip are decoded again, about N / 2 decodes
+	 * of the whole image, so callers that can spare memory pass a
+	 * taller stripRows to decodeStrips
+	 *
+	 * @param width: 	width of the image
+	 * @param type: 	type of the decoded image
+	 * @return			rows of each strip
+	 */
+	static int stripRows(int width, ImageTypeSpecifier type)
+	{
+		int pixelBytes = Math.max(1, type.getColorModel().getPixelSize() / 8);
+		long rows = DEFAULT_STRIP_BYTES / ((long) width * pixelBytes);
+		rows -= rows % STRIP_ROWS_ALIGNMENT;
+		return (int) Math.max(STRIP_ROWS_ALIGNMENT, Math.min(rows, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Evaluate the subsampling factor giving the
+	 * smallest image not below the target size
+	 *
+	 * @param width: 	width of the full resolution image
+	 * @param height: 	height of the full resolution image
+	 * @return			the factor, 1 for a full resolution decode
+	 */
+	int subsampling(int width, int height)
+	{
+		if (this.targetWidth == 0 && this.targetHeight == 0) {
+			return 1;
+		}
+
+		int xFactor = this.targetWidth > 0 ? width / this.targetWidth : Integer.MAX_VALUE;
+		int yFactor = this.targetHeight > 0 ? height / this.targetHeight : Integer.MAX_VALUE;
+		return Math.max(1, Math.min(xFactor, yFactor));
+	}
+
+	/**
+	 * Decode a file through the ImageIO file stream
+	 */
+	private BufferedImage decodeFile(File file) throws IOException
+	{
+		if (!file.canRead()) {
+			throw new IIOException("Can't read input file!");
+		}
+
+		ImageInputStream stream = ImageIO.createImageInputStream(file);
+		if (stream == null) {
+			throw new IIOException("Can't create an ImageInputStream!");
+		}
+		return this.decode(stream);
+	}
+
+	/**
+	 * Decode the first image of a stream, recording the
+	 * decode in the metrics. The stream is closed in any case
+	 *
+	 * @param stream: stream positioned at the start of the image file
+	 * @return		  the decoded image, null if no decoder
+	 * 				  is able to read the content
+	 */
+	private BufferedImage decode(ImageInputStream stream) throws IOException
+	{
+		Metrics metrics = Metrics.getMetrics();
+		long start = Metrics.start();
+		BufferedImage image = null;
+		try {
+			image = this.read(stream);
+		} finally {
+			if (image == null) {
+				metrics.error(Metrics.Stage.DECODE);
+			}
+		}
+		if (image != null) {
+			metrics.record(Metrics.Stage.DECODE, start, Metrics.rasterBytes(image));
+			metrics.trackDecoded(image);
+		}
+		return image;
+	}
+
+	/**
+	 * Read the first image of a stream, reading its
+	 * size from the header to set the subsampling.
+	 * The stream is closed in any case
+	 */
+	private BufferedImage read(ImageInputStream stream) throws IOException
+	{
+		try {
+			ImageReader reader = this.reader(stream);
+			if (reader == null) {
+				return null;
+			}
+
+			try {
+				reader.setInput(stream, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				int factor = this.subsampling(width, height);
+				if (factor > 1) {
+					param.setSourceSubsampling(factor, factor, 0, 0);
+					width = (width + factor - 1) / factor;
+					height = (height + factor - 1) / factor;
+				}
+
+				int type = reader.getImageTypes(0).next().getBufferedImageType();
+				BufferedImage destination = null;
+				if (ImagePool.supports(type)) {
+					destination = this.imagePool.acquire(type, width, height);
+					param.setDestination(destination);
+				}
+
+				BufferedImage image = null;
+				try {
+					image = reader.read(0, param);
+					return image;
+				} finally {
+					// Runtime failures of the codec must not leak the destination either
+					if (image == null) {
+						this.imagePool.release(destination);
+					}
+				}
+			} finally {
+				// Keep the reader for the next file, dropping the stream
+				reader.reset();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Retrieve a reader for the stream content, reusing the
+	 * cached one when it is able to decode it, so that the service
+	 * registry lookup and the native reader setup are done once
+	 *
+	 * @param stream: stream positioned at the start of the image file
+	 * @return		  the reader, null if no decoder is able to read the content
+	 */
+	private ImageReader reader(ImageInputStream stream) throws IOException
+	{
+		if (this.reader != null) {
+			ImageReaderSpi provider = this.reader.getOriginatingProvider();
+			if (provider != null && provider.canDecodeInput(stream)) {
+				return this.reader;
+			}
+		}
+
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			return null;
+		}
+
+		this.dispose();
+		this.reader = readers.next();
+		return this.reader;
+	}
+
+	/**
+	 * Retrieve the reused direct buffer, growing it
+	 * to the next power of two if too small
+	 *
+	 * @param size: bytes that must fit in the buffer
+	 * @return		the cleared buffer, limited to size
+	 */
+	private ByteBuffer directBuffer(int size)
+	{
+		if (this.directBuffer == null || this.directBuffer.capacity() < size) {
+			int capacity = Math.max(MIN_DIRECT_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+			if (capacity < size) {
+				capacity = size;
+			}
+			this.directBuffer = ByteBuffer.allocateDirect(capacity);
+		}
+
+		this.directBuffer.clear();
+		this.directBuffer.limit(size);
+		return this.directBuffer;
+	}
+
+	private static final ThreadLocal<ImageDecoder> threadDecoder = ThreadLocal.withInitial(ImageDecoder::new);		///< Decoder of each thread
+
+	private InputMode mode;				///< How files are read
+	private ByteBuffer directBuffer;		///< Buffer reused by DIRECT_BUFFER reads, allocated on first use
+	private int targetWidth;				///< Smallest width of decoded images, 0 for full resolution
+	private int targetHeight;				///< Smallest height of decoded images, 0 for full resolution
+	private ImageReader reader;				///< Reader of the last decoded format, reused across files
+	private ImagePool imagePool;			///< Pool of the destination images
+	private DiskImageCache diskCache;		///< Persistent cache of decoded images, null if not used
+	private Semaphore decodePermits;		///< Permits shared by the decoders of a load, null if decodes are not bounded
+}
@@ -0,0 +1,240 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Jpeg encoder used by the output writers. The ImageWriter and
+ * its write parameters are created once and kept across images,
+ * instead of being looked up by every ImageIO.write call, and
+ * images are encoded in a buffer reused across images, then written
+ * to the file with a single channel write. An encoder keeps per-thread
+ * state and must not be shared among threads: each worker creates
+ * its own or uses forCurrentThread().
+ */
+public class ImageEncoder {
+
+	static float DEFAULT_QUALITY = 0.75f;
+	static int INITIAL_BUFFER_SIZE = 1 << 16;
+
+	public ImageEncoder()
+	{
+		this.quality = DEFAULT_QUALITY;
+		this.optimizeHuffman = false;
+		this.writer = null;
+		this.param = null;
+		this.buffer = new EncodeBuffer(INITIAL_BUFFER_SIZE);
+	}
+
+	/**
+	 * Retrieve the encoder of the calling thread, created
+	 * with the default settings on first use
+	 *
+	 * @return	the encoder of the current thread
+	 */
+	public static ImageEncoder forCurrentThread()
+	{
+		return threadEncoder.get();
+	}
+
+	/**
+	 * Set the jpeg quality
+	 *
+	 * @param quality: from 0 (smallest files) to 1 (best quality)
+	 * @return		   true if successful, false otherwise
+	 */
+	public boolean setQuality(float quality)
+	{
+		if (quality < 0 || quality > 1) {
+			System.out.println("Invalid jpeg quality");
+			return false;
+		}
+
+		if (quality != this.quality) {
+			this.quality = quality;
+			this.param = null;
+		}
+		return true;
+	}
+
+	public float getQuality()
+	{
+		return this.quality;
+	}
+
+	/**
+	 * Compute optimal Huffman tables for each image: files are a
+	 * few percent smaller, at the cost of a second pass on the data
+	 *
+	 * @param optimizeHuffman: true to optimize the Huffman tables
+	 */
+	public void setOptimizeHuffman(boolean optimizeHuffman)
+	{
+		if (optimizeHuffman != this.optimizeHuffman) {
+			this.optimizeHuffman = optimizeHuffman;
+			this.param = null;
+		}
+	}
+
+	public boolean getOptimizeHuffman()
+	{
+		return this.optimizeHuffman;
+	}
+
+	/**
+	 * Encode an image in the buffer of the encoder
+	 *
+	 * @param image: image to be encoded
+	 * @return		 the encoded data, valid until the next
+	 * 				 encode of the same encoder
+	 */
+	public ByteBuffer encode(BufferedImage image) throws IOException
+	{
+		long start = Metrics.start();
+		int size = -1;
+		try {
+			ByteBuffer data = this.encodeBuffer(image);
+			size = data.remaining();
+			return data;
+		} finally {
+			recordWrite(start, size);
+		}
+	}
+
+	/**
+	 * Encode an image and write it to a file
+	 *
+	 * @param image: 	image to be encoded
+	 * @param file: 	destination file, replaced if existing
+	 * @param force: 	true to flush the file content to the device
+	 * @return			number of written bytes
+	 */
+	public int write(BufferedImage image, File file, boolean force) throws IOException
+	{
+		long start = Metrics.start();
+		int size = -1;
+		try {
+			ByteBuffer data = this.encodeBuffer(image);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				int length = data.remaining();
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+				if (force) {
+					channel.force(false);
+				}
+				size = length;
+			}
+			return size;
+		} finally {
+			recordWrite(start, size);
+		}
+	}
+
+	/**
+	 * Free the native state of the cached ImageWriter.
+	 * The encoder can still be used afterwards
+	 */
+	public void dispose()
+	{
+		if (this.writer != null) {
+			this.writer.dispose();
+			this.writer = null;
+			this.param = null;
+		}
+	}
+
+	private ByteBuffer encodeBuffer(BufferedImage image) throws IOException
+	{
+		ImageWriter writer = this.writer();
+		this.buffer.reset();
+		try (ImageOutputStream stream = new MemoryCacheImageOutputStream(this.buffer)) {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), this.param());
+		} finally {
+			writer.setOutput(null);
+		}
+		return this.buffer.data();
+	}
+
+	/**
+	 * Record an encode in the write stage, as an error if it failed
+	 *
+	 * @param size: encoded bytes, negative on failure
+	 */
+	private static void recordWrite(long start, int size)
+	{
+		if (size < 0) {
+			Metrics.getMetrics().error(Metrics.Stage.WRITE);
+		}
+		else {
+			Metrics.getMetrics().record(Metrics.Stage.WRITE, start, size);
+		}
+	}
+
+	private ImageWriter writer() throws IOException
+	{
+		if (this.writer == null) {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+			if (!writers.hasNext()) {
+				throw new IOException("No jpeg writer available");
+			}
+			this.writer = writers.next();
+			this.param = null;
+		}
+		return this.writer;
+	}
+
+	private ImageWriteParam param()
+	{
+		if (this.param == null) {
+			this.param = this.writer.getDefaultWriteParam();
+			this.param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			this.param.setCompressionQuality(this.quality);
+			if (this.param instanceof JPEGImageWriteParam) {
+				((JPEGImageWriteParam) this.param).setOptimizeHuffmanTables(this.optimizeHuffman);
+			}
+		}
+		return this.param;
+	}
+
+	/**
+	 * Output stream exposing its array, so the encoded
+	 * data is written without being copied
+	 */
+	private static class EncodeBuffer extends ByteArrayOutputStream {
+
+		EncodeBuffer(int size)
+		{
+			super(size);
+		}
+
+		ByteBuffer data()
+		{
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
+
+	private static final ThreadLocal<ImageEncoder> threadEncoder = ThreadLocal.withInitial(ImageEncoder::new);		///< Encoder of each thread
+
+	private float quality;					///< Jpeg quality, from 0 to 1
+	private boolean optimizeHuffman;		///< True to compute optimal Huffman tables
+	private ImageWriter writer;				///< Jpeg writer, reused across images
+	private ImageWriteParam param;			///< Write parameters for the current settings, null to rebuild them
+	private EncodeBuffer buffer;			///< Buffer of the encoded data, reused across images
+}
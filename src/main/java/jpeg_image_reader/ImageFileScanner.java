@@ -0,0 +1,212 @@
+package jpeg_image_reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Streaming enumerator of the jpeg files of a folder tree. Folders
+ * are walked with Files.walkFileTree, which reads each directory
+ * through a DirectoryStream, and every image is handed to the caller
+ * as soon as it is found: loaders can start decoding while the scan
+ * is still running, instead of waiting for the whole file list.
+ * Extensions are matched ignoring case, and the jpeg signature
+ * can optionally be checked as well.
+ */
+public class ImageFileScanner {
+
+	static int DEFAULT_MAX_DEPTH = Integer.MAX_VALUE;
+	static String[] EXTENSIONS = {".jpg", ".jpeg"};
+
+	public ImageFileScanner()
+	{
+		this.maxDepth = DEFAULT_MAX_DEPTH;
+		this.checkMagic = false;
+	}
+
+	/**
+	 * Set how deep sub folders are scanned
+	 *
+	 * @param maxDepth: 1 for the files of the folder only,
+	 * 					Integer.MAX_VALUE for the whole tree
+	 * @return			true if successful, false otherwise
+	 */
+	public boolean setMaxDepth(int maxDepth)
+	{
+		if (maxDepth < 1) {
+			System.out.println("Invalid scan depth");
+			return false;
+		}
+
+		this.maxDepth = maxDepth;
+		return true;
+	}
+
+	public int getMaxDepth()
+	{
+		return this.maxDepth;
+	}
+
+	/**
+	 * Enable the check of the jpeg signature: files with a
+	 * jpeg extension are read to verify their first bytes
+	 *
+	 * @param checkMagic: true to skip files not starting with a jpeg marker
+	 */
+	public void setCheckMagic(boolean checkMagic)
+	{
+		this.checkMagic = checkMagic;
+	}
+
+	public boolean getCheckMagic()
+	{
+		return this.checkMagic;
+	}
+
+	/**
+	 * Walk a folder, handing each image to the consumer on the calling thread
+	 *
+	 * @param path: 	folder to be scanned
+	 * @param consumer: receiver of the absolute paths of the images
+	 * @return			false if path is not a directory
+	 */
+	public boolean scan(String path, Consumer<String> consumer)
+	{
+		File dir = new File(path);
+		if (!dir.isDirectory()) {
+			return false;
+		}
+
+		try {
+			Files.walkFileTree(dir.getAbsoluteFile().toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), this.maxDepth,
+					new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+				{
+					if (attrs.isRegularFile() && isImage(file)) {
+						consumer.accept(file.toString());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e)
+				{
+					// Unreadable entries and link loops do not stop the scan
+					System.out.println("Unable to scan " + file + ": " + e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to scan directory " + path);
+		}
+		return true;
+	}
+
+	/**
+	 * Walk a folder, offering each image to a queue that
+	 * is closed at the end of the scan, also on failure
+	 *
+	 * @param path: 	folder to be scanned
+	 * @param queue: 	receiver of the absolute paths of the images
+	 * @return			false if path is not a directory
+	 */
+	public boolean scan(String path, HandoffQueue<String> queue)
+	{
+		try {
+			return this.scan(path, queue::offer);
+		} finally {
+			queue.close();
+		}
+	}
+
+	/**
+	 * Walk a folder on a new thread, feeding the queue while
+	 * consumers take paths from it
+	 *
+	 * @param path: 	folder to be scanned
+	 * @param queue: 	receiver of the absolute paths of the images
+	 * @return			the started scanner thread
+	 */
+	public Thread scanAsync(String path, HandoffQueue<String> queue)
+	{
+		Thread th = new Thread(() -> this.scan(path, queue), "image-scanner");
+		th.start();
+		return th;
+	}
+
+	/**
+	 * Walk a folder collecting all the images, for callers
+	 * needing the whole list before starting
+	 *
+	 * @param path: folder to be scanned
+	 * @return		absolute paths of the images, empty if path is not a directory
+	 */
+	public ArrayList<String> list(String path)
+	{
+		ArrayList<String> paths = new ArrayList<String>();
+		this.scan(path, paths::add);
+		return paths;
+	}
+
+	/**
+	 * Check if a file name has a jpeg extension, ignoring case
+	 */
+	static boolean hasJpegExtension(String fileName)
+	{
+		String name = fileName.toLowerCase(Locale.ROOT);
+		for (String extension : EXTENSIONS) {
+			if (name.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a file is accepted by the scan filters
+	 */
+	boolean isImage(Path file)
+	{
+		if (!hasJpegExtension(file.getFileName().toString())) {
+			return false;
+		}
+		return !this.checkMagic || hasJpegMagic(file);
+	}
+
+	/**
+	 * Check the SOI marker followed by the start of another marker
+	 */
+	private static boolean hasJpegMagic(Path file)
+	{
+		ByteBuffer magic = ByteBuffer.allocate(3);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (magic.hasRemaining()) {
+				if (channel.read(magic) < 0) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Unable to read " + file);
+			return false;
+		}
+		return (magic.get(0) & 0xFF) == 0xFF && (magic.get(1) & 0xFF) == 0xD8 && (magic.get(2) & 0xFF) == 0xFF;
+	}
+
+	private int maxDepth;				///< Depth of the scanned sub folders, 1 for the folder only
+	private boolean checkMagic;			///< True to verify the jpeg signature of the files
+}
@@ -3,32 +3,38 @@ package jpeg_image_reader;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
-
 public class ImageLoader {
 		
-		private static int POLL_TIMEOUT_MS = 500;
 		enum ThreadType {
 			NO_POOL_THREAD,
 			POOL_THREAD,
+			VIRTUAL_THREAD,
 		};
+		
+		static int DEFAULT_DECODE_PERMITS = Math.max(1, Runtime.getRuntime().availableProcessors());
+		static int DEFAULT_READ_PERMITS = 64;
 	
 		public ImageLoader() 
 		{
 			this.loadedPath = new String();
-			this.imageMap = new ConcurrentHashMap<String, BufferedImage>();
-			this.threadPool = ThreadPool.getThreadPool();
-			this.loadCompleted = new AtomicBoolean(true);
+			this.imageStore = new ImageCache();
+			this.channel = new HandoffQueue<String>();
+			this.channel.close();
 			this.completedThreads = new AtomicInteger(0);
+			this.targetWidth = 0;
+			this.targetHeight = 0;
+			this.diskCache = null;
+			this.scanner = new ImageFileScanner();
 		}
 	
 		public String getLoadedPath()
@@ -36,32 +42,83 @@ public class ImageLoader {
 			return this.loadedPath;
 		}
 		
+		/**
+		 * @return	number of loaded images not yet popped
+		 */
 		public int getNumberOfImages()
 		{
-			return this.imageMap.size();
+			return this.channel.size();
 		}
 		
+		/**
+		 * @return	true if all the loaded images have been popped
+		 */
 		public boolean isMapEmpty()
 		{
-			return this.imageMap.isEmpty();
+			return this.channel.isEmpty();
+		}
+		
+		/**
+		 * @return	the store of the loaded images, e.g. to read its counters
+		 */
+		public ImageStore getImageStore()
+		{
+			return this.imageStore;
+		}
+		
+		/**
+		 * Set where loaded images are kept, e.g. an OffHeapImageStore
+		 * to keep the pixels outside of the heap. Images of the
+		 * previous store are dropped
+		 *
+		 * @param imageStore: the store of the next loads
+		 * @return	    	  true if successful, false otherwise
+		 */
+		public boolean setImageStore(ImageStore imageStore)
+		{
+			if (imageStore == null) {
+				System.out.println("Invalid image store");
+				return false;
+			}
+			
+			if (!this.channel.isClosed()) {
+				System.out.println("A loading is ongoing, cannot change image store");
+				return false;
+			}
+			
+			this.imageStore.clear();
+			this.imageStore = imageStore;
+			return true;
 		}
 		
 		public boolean getCompleted()
 		{
-			return this.loadCompleted.get();
+			return this.channel.isClosed();
 		}
 		
 		/**
 		 * Wait for producers to insert images in map.
-		 * This is done by polling a blocking queue 
-		 * that threads use to signal that an image has been
-		 * added.
+		 * Returns as soon as an image can be popped or
+		 * the loading has been completed
 		 * 
 		 */
 		public void waitForProducer()
 		{
 				try {
-					this.queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+					this.channel.awaitItem();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+		}
+		
+		/**
+		 * Wait for all the loaders to complete
+		 * 
+		 */
+		public void waitCompletion()
+		{
+				try {
+					this.channel.awaitClose();
 				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
@@ -80,15 +137,102 @@ public class ImageLoader {
 				return false;
 			}
 			
-			if (!this.loadCompleted.get()) {
+			if (!this.channel.isClosed()) {
 				System.out.println("A loading is ongoing, cannot resize pool");
 				return false;
 			}
 			
-			this.threadPool.setThreadSize(size);
+			ThreadPool.getThreadPool(ThreadPool.PoolType.IO).setThreadSize(size);
 			return true;
 		}
 	
+		/**
+		 * Set the budget of the loaded images kept in memory: least
+		 * recently used images beyond it are dropped and decoded again
+		 * when popped or requested
+		 *
+		 * @param bytes: bytes of the cached rasters
+		 * @return	     true if successful, false otherwise
+		 */
+		public boolean setCacheSize(long bytes)
+		{
+			return this.imageStore.setMaxBytes(bytes);
+		}
+		
+		/**
+		 * Keep the decoded images in a persistent cache folder: files
+		 * decoded by a previous load, with the same target size, are
+		 * read from their cache entry instead of being decoded again.
+		 * Entries of files changed since then are replaced
+		 *
+		 * @param path: cache folder, created if missing, null to disable the cache
+		 * @return	    true if successful, false otherwise
+		 */
+		public boolean setDiskCache(String path)
+		{
+			if (!this.channel.isClosed()) {
+				System.out.println("A loading is ongoing, cannot change disk cache");
+				return false;
+			}
+			
+			if (path == null) {
+				this.diskCache = null;
+				return true;
+			}
+			
+			File dir = new File(path);
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				System.out.println("Unable to create cache directory " + path);
+				return false;
+			}
+			
+			this.diskCache = new DiskImageCache(dir);
+			return true;
+		}
+		
+		/**
+		 * @return	the persistent cache of decoded images, null if not used
+		 */
+		public DiskImageCache getDiskCache()
+		{
+			return this.diskCache;
+		}
+		
+		/**
+		 * @return	the scanner listing the images of a load, e.g. to
+		 * 			limit the depth of the scanned sub folders
+		 */
+		public ImageFileScanner getScanner()
+		{
+			return this.scanner;
+		}
+		
+		/**
+		 * Set the size of loaded images: images are decoded with
+		 * the largest subsampling keeping them at least as big as
+		 * the target, so the full resolution raster is never allocated
+		 *
+		 * @param width: 	target width, 0 to ignore the width
+		 * @param height: 	target height, 0 to ignore the height
+		 * @return	    	true if successful, false otherwise
+		 */
+		public boolean setTargetSize(int width, int height)
+		{
+			if (width < 0 || height < 0) {
+				System.out.println("Invalid target size");
+				return false;
+			}
+			
+			if (!this.channel.isClosed()) {
+				System.out.println("A loading is ongoing, cannot change target size");
+				return false;
+			}
+			
+			this.targetWidth = width;
+			this.targetHeight = height;
+			return true;
+		}
+		
 		/**
 		 * This method can be used to sequentially load a 
 		 * set of images from the requested path
@@ -106,32 +250,27 @@ public class ImageLoader {
 			}
 			
 			this.loadedPath = path;
+			this.channel = new HandoffQueue<String>();
 			
-			// Iterate in path for jpg images
-			File[] files = new File(path).listFiles();
-			BufferedImage img;
-			String fileName = new String();
-			for (File file : files) {
-				if (file.isDirectory()) {
-					continue;
-				}
-				
-				fileName = file.getName();
-				if (fileName.endsWith("jpg") ||
-						fileName.endsWith("jpeg")) {
-					img = this.loadImage(file.getAbsolutePath());
-					if (img != null) {
-						this.imageMap.put(file.getAbsolutePath(), img);
-						if (timeout != 0) {
-							try {
-								Thread.sleep(timeout);
-							} catch (InterruptedException e) {
-								e.printStackTrace();
-							}
+			// Load jpg images as the scan finds them
+			ImageDecoder decoder = this.decoder(new ImageDecoder());
+			this.scanner.scan(path, imagePath -> {
+				BufferedImage img = this.loadImage(decoder, imagePath);
+				if (img != null) {
+					this.imageStore.store(imagePath, img);
+					this.channel.offer(imagePath);
+					if (timeout != 0) {
+						try {
+							Thread.sleep(timeout);
+						} catch (InterruptedException e) {
+							e.printStackTrace();
 						}
 					}
 				}
-			}
+			});
+			decoder.dispose();
+			
+			this.channel.close();
 	
 			return true;
 		}
@@ -141,8 +280,14 @@ public class ImageLoader {
 		 * mode the requested images
 		 *
 		 * @param path: directory from which images should be loaded
+		 * @param threadsNumbers: number of loaders, ignored by VIRTUAL_THREAD
+		 * 						  that starts one virtual thread per file
+		 * @param type: 		  how loaders are run
+		 * @param timeout: 		  milliseconds waited by loaders for each image
 		 * @return		thread list that can be used to wait for termination
-		 * 				if pool is not used
+		 * 				if pool is not used, scanner thread included. With
+		 * 				VIRTUAL_THREAD only the scanner thread, which starts
+		 * 				the loaders: use waitCompletion for them
 		 */
 		public ArrayList<Thread> parallelLoadImages(String path, int threadsNumbers, ThreadType type, int timeout)
 		{
@@ -155,55 +300,42 @@ public class ImageLoader {
 				return threadList;
 			}
 			
-			this.loadCompleted.set(false);
+			this.channel = new HandoffQueue<String>();
 			this.completedThreads.set(0);
 						
 			this.loadedPath = path;
 						
-			// Iterate in path for jpg images
-			File[] files = new File(path).listFiles();
-			String fileName = new String();
-			ArrayList<String> paths = new ArrayList<String>();
-			
-			for (File file : files) {
-				if (file.isDirectory()) {
-					continue;
-				}
-							
-				fileName = file.getName();
-				if (fileName.endsWith("jpg") ||
-						fileName.endsWith("jpeg")) {
-					paths.add(file.getAbsolutePath());
-				}
+			if (type == ThreadType.VIRTUAL_THREAD) {
+				threadList.add(this.virtualLoadImages(path, timeout));
+				return threadList;
 			}
 			
-			this.queue = new ArrayBlockingQueue<Integer>(paths.size());
-			int imagesPerThread = Math.floorDiv(paths.size(), threadsNumbers) + 1;
-			int start = 0;
-			int stop = 0;
+			// Loaders claim the next path from the shared queue as soon as
+			// they are done with the previous one, so that big files do not
+			// pile up on a single thread. The queue is fed by the scanner,
+			// so decoding starts with the first image found
+			HandoffQueue<String> pendingPaths = new HandoffQueue<String>();
 			
-			// Evaluate number of threads
-			int end = threadsNumbers > paths.size() ? paths.size() : threadsNumbers;
-						
+			int end = Math.max(0, threadsNumbers);
+			if (end == 0) {
+				this.channel.close();
+				return threadList;
+			}
+			threadList.add(this.scanner.scanAsync(path, pendingPaths));
+			
+			// Loaders may outnumber the cores to overlap reads, decodes are bounded to the cores
+			Semaphore decodePermits = new Semaphore(DEFAULT_DECODE_PERMITS);
 			for (int i = 0; i < end; i++) {
-				// Evaluate number of images per thread
-				if (i != 0) {
-					start = stop;
-				}
-				stop = (i + 1) * imagesPerThread;
-				if ((stop > paths.size()) || (i == threadsNumbers - 1)) {
-					stop = paths.size();
-				}
-				
-				ImageLoaderThread imt = new ImageLoaderThread(this.imageMap,
-						this.loadCompleted,
-						new ArrayList<String>(paths.subList(start, stop)),
+				ImageLoaderThread imt = new ImageLoaderThread(this.imageStore,
+						this.channel,
+						pendingPaths,
+						this.boundedDecoder(decodePermits),
 						this.completedThreads, 
-						end, this.queue, timeout);
+						end, timeout);
 				
 				if (type == ThreadType.POOL_THREAD) {
 					// Start loading by submitting a task to the pool
-					threadPool.submitThread(imt);
+					ThreadPool.getThreadPool(ThreadPool.PoolType.IO).submitThread(imt);
 				}
 				else {
 					// Start loading by starting a thread
@@ -216,6 +348,113 @@ public class ImageLoader {
 			return threadList;
 		}
 		
+		/**
+		 * Start one virtual thread per file as the scan finds it:
+		 * blocking reads do not hold platform threads, decodes are
+		 * bounded by a semaphore, and so are the files read and not
+		 * yet decoded (DEFAULT_READ_PERMITS), keeping memory bounded
+		 * on large folders. Without virtual threads loaders
+		 * run on the IO pool
+		 *
+		 * @param path: 	  directory from which images should be loaded
+		 * @param timeout: 	  milliseconds waited before each read
+		 * @return			  the started scanner thread
+		 */
+		private Thread virtualLoadImages(String path, int timeout)
+		{
+			if (!ThreadPool.isVirtualThreadSupported()) {
+				System.out.println("Virtual threads not available, loading on the IO pool");
+			}
+			
+			// The scan counts as a running loader, so the channel
+			// is not closed before all the files have been found
+			Semaphore decodePermits = new Semaphore(DEFAULT_DECODE_PERMITS);
+			Semaphore readPermits = new Semaphore(Math.max(DEFAULT_READ_PERMITS, DEFAULT_DECODE_PERMITS));
+			ConcurrentLinkedDeque<ImageDecoder> decoders = new ConcurrentLinkedDeque<ImageDecoder>();
+			AtomicInteger runningLoaders = new AtomicInteger(1);
+			HandoffQueue<String> channel = this.channel;
+			ImageStore imageStore = this.imageStore;
+			
+			Thread scan = new Thread(() -> {
+				AtomicInteger started = new AtomicInteger(0);
+				this.scanner.scan(path, imagePath -> {
+					runningLoaders.incrementAndGet();
+					ImageLoaderVirtualThread loader = new ImageLoaderVirtualThread(imageStore,
+							channel,
+							imagePath,
+							decoders,
+							() -> this.decoder(new ImageDecoder()),
+							readPermits,
+							decodePermits,
+							runningLoaders, timeout);
+					
+					Thread th = ThreadPool.newVirtualThread(loader, "virtual-loader-" + started.getAndIncrement());
+					if (th != null) {
+						th.start();
+					}
+					else {
+						ThreadPool.getThreadPool(ThreadPool.PoolType.IO).submitThread(loader);
+					}
+				});
+				
+				if (runningLoaders.decrementAndGet() == 0) {
+					ImageLoaderVirtualThread.disposeAll(decoders);
+					channel.close();
+				}
+			}, "image-scanner");
+			scan.start();
+			return scan;
+		}
+		
+		/**
+		 * This method can be used to load the images arriving in a
+		 * folder, e.g. a spool directory filled by another process.
+		 * Loaders run on the IO pool and wait for the images offered
+		 * by a FolderWatcher, so pools and decoders stay warm between
+		 * arrivals; images already in the folder are not loaded.
+		 * Loaded images are taken with takeImage or takeLoadedImage
+		 * until the returned watcher is closed
+		 *
+		 * @param path: 		  directory to be watched
+		 * @param threadsNumbers: number of loaders
+		 * @param timeout: 		  milliseconds waited by loaders for each image
+		 * @return				  the started watcher, null if path cannot be watched
+		 */
+		public FolderWatcher watchImages(String path, int threadsNumbers, int timeout)
+		{
+			if (threadsNumbers <= 0) {
+				System.out.println("Invalid number of loaders");
+				return null;
+			}
+			
+			if (!this.channel.isClosed()) {
+				System.out.println("A loading is ongoing, cannot watch folder");
+				return null;
+			}
+			
+			HandoffQueue<String> pendingPaths = new HandoffQueue<String>();
+			FolderWatcher watcher = new FolderWatcher(this.scanner);
+			if (!watcher.start(path, pendingPaths)) {
+				return null;
+			}
+			
+			this.channel = new HandoffQueue<String>();
+			this.completedThreads.set(0);
+			this.loadedPath = path;
+			
+			Semaphore decodePermits = new Semaphore(DEFAULT_DECODE_PERMITS);
+			for (int i = 0; i < threadsNumbers; i++) {
+				ThreadPool.getThreadPool(ThreadPool.PoolType.IO).submitThread(new ImageLoaderThread(this.imageStore,
+						this.channel,
+						pendingPaths,
+						this.boundedDecoder(decodePermits),
+						this.completedThreads,
+						threadsNumbers, timeout));
+			}
+			
+			return watcher;
+		}
+		
 		/**
 		 * This method can be used to load in parallel
 		 * mode the requested images using Callables
@@ -234,63 +473,134 @@ public class ImageLoader {
 				return futureList;
 			}
 			
-			this.loadCompleted.set(false);
+			this.channel = new HandoffQueue<String>();
 			this.completedThreads.set(0);
 						
 			this.loadedPath = path;
 						
-			// Iterate in path for jpg images
-			File[] files = new File(path).listFiles();
-			String fileName = new String();
-			ArrayList<String> paths = new ArrayList<String>();
+			// Callables take the paths as the scanner finds them
+			HandoffQueue<String> pendingPaths = new HandoffQueue<String>();
 			
-			for (File file : files) {
-				if (file.isDirectory()) {
-					continue;
-				}
-							
-				fileName = file.getName();
-				if (fileName.endsWith("jpg") ||
-						fileName.endsWith("jpeg")) {
-					paths.add(file.getAbsolutePath());
-				}
+			int end = Math.max(0, threadsNumbers);
+			if (end == 0) {
+				this.channel.close();
+				return futureList;
 			}
-			
-			int imagesPerThread = Math.floorDiv(paths.size(), threadsNumbers) + 1;
-			int start = 0;
-			int stop = 0;
-			
-			int end = threadsNumbers > paths.size() ? paths.size() : threadsNumbers;
+			this.scanner.scanAsync(path, pendingPaths);
 
+			ThreadPool threadPool = ThreadPool.getThreadPool(ThreadPool.PoolType.IO);
+			Semaphore decodePermits = new Semaphore(DEFAULT_DECODE_PERMITS);
 			for (int i = 0; i < end; i++) {
-				if (i != 0) {
-					start = stop;
-				}
-				stop = (i + 1) * imagesPerThread;
-				if ((stop > paths.size()) || (i == threadsNumbers - 1)) {
-					stop = paths.size();
-				}
-				
-				futureList.add(threadPool.submitCallableReader(new ImageLoaderCallable(this.imageMap,
-																							new ArrayList<String>(paths.subList(start, stop)))));
+				futureList.add(threadPool.submitCallableReader(new ImageLoaderCallable(this.imageStore,
+																							this.channel,
+																							pendingPaths,
+																							this.boundedDecoder(decodePermits),
+																							this.completedThreads,
+																							end)));
 			}
 		
 			return futureList;
 		}
 		
+		/**
+		 * This method can be used to load asynchronously the
+		 * requested images. Each image has its own future, so that
+		 * processing can be chained to it (e.g. with thenApplyAsync)
+		 * and start as soon as the image has been decoded. Files are
+		 * read on the IO pool and decoded on the DECODE pool. Loaded
+		 * images are also inserted in the store, so they must not be
+		 * released to the ImagePool if it is an ImageCache
+		 *
+		 * @param path: directory from which images should be loaded
+		 * @return		futures of the images and of the whole batch,
+		 * 				null if path is not a directory
+		 */
+		public AsyncLoad loadAsync(String path)
+		{
+			return this.loadAsync(path, ThreadPool.getThreadPool(ThreadPool.PoolType.IO).getExecutor(),
+					ThreadPool.getThreadPool(ThreadPool.PoolType.DECODE).getExecutor());
+		}
+		
+		/**
+		 * Same as loadAsync(path), reading and decoding images on the requested executor
+		 *
+		 * @param path: 	directory from which images should be loaded
+		 * @param executor: executor running the read and decode of each image
+		 * @return			futures of the images and of the whole batch,
+		 * 					null if path is not a directory
+		 */
+		public AsyncLoad loadAsync(String path, Executor executor)
+		{
+			return this.loadAsync(path, executor, executor);
+		}
+		
+		/**
+		 * Same as loadAsync(path), with separate executors for file reads and decode
+		 *
+		 * @param path: 			directory from which images should be loaded
+		 * @param readExecutor: 	executor running the blocking file reads
+		 * @param decodeExecutor: 	executor running the decode of each image
+		 * @return					futures of the images and of the whole batch,
+		 * 							null if path is not a directory
+		 */
+		public AsyncLoad loadAsync(String path, Executor readExecutor, Executor decodeExecutor)
+		{
+			// Check if path is a directory
+			File dir = new File(path);
+			if (!dir.isDirectory()) {
+				System.out.println("Requested path is not a directory");
+				return null;
+			}
+			
+			this.loadedPath = path;
+			
+			// AsyncLoad needs all the futures for allOf, so the scan completes first
+			ArrayList<CompletableFuture<LoadedImage>> images = new ArrayList<CompletableFuture<LoadedImage>>();
+			for (String imagePath : this.scanner.list(path)) {
+				if (this.diskCache == null) {
+					images.add(CompletableFuture.supplyAsync(() -> readFile(imagePath), readExecutor)
+							.thenApplyAsync(data -> this.decodeImage(imagePath, null, data), decodeExecutor));
+					continue;
+				}
+				
+				// Cache entries are read on the IO pool, only misses are decoded
+				images.add(CompletableFuture.supplyAsync(() -> this.loadCachedImage(imagePath), readExecutor)
+						.thenCompose(loaded -> {
+							if (loaded != null) {
+								return CompletableFuture.completedFuture(loaded);
+							}
+							DiskImageCache.SourceVersion source = new DiskImageCache.SourceVersion(imagePath);
+							return CompletableFuture.supplyAsync(() -> readFile(imagePath), readExecutor)
+									.thenApplyAsync(data -> this.decodeImage(imagePath, source, data), decodeExecutor);
+						}));
+			}
+			
+			return new AsyncLoad(images);
+		}
+		
 		/**
 		 * This method can be used to retrieve an image from
-		 * the loaded map, specifying its absolute path
+		 * the loaded ones, specifying its absolute path. Images
+		 * not in the store (evicted, popped or never loaded) are
+		 * decoded again and stored. Images returned by an ImageCache
+		 * are shared with it and must not be released
 		 *
 		 * @param filePath: absolute image path that should be returned
-		 * @return			BufferedImage of the requested image, if not
-		 *					existing returns null
+		 * @return			BufferedImage of the requested image, if it
+		 *					cannot be loaded returns null
 		 */
 		public BufferedImage getImage(String filePath)
 		{
 			BufferedImage img = null;
-			img = this.imageMap.get(filePath);
-		
+			img = this.imageStore.get(filePath);
+			if (img != null) {
+				return img;
+			}
+			
+			img = this.reloadImage(filePath);
+			if (img != null) {
+				this.imageStore.put(filePath, img);
+			}
 			return img;
 		}
 		
@@ -298,63 +608,237 @@ public class ImageLoader {
 		 * Method to retrieve paths of loaded images
 		 *
 		 * @return	an ArrayList containing all the paths of
-		 *			the loaded images
+		 *			the loaded images still in the store
 		 */
 		public ArrayList<String> getLoadedImagePaths()
 		{
-			ArrayList<String> paths = new ArrayList<String>();
-			
-			for (String key : this.imageMap.keySet()) {
-				paths.add(key);
-			}
-			
-			return paths;
+			return this.imageStore.getPaths();
 		}
 		
 		/**
-		 * Pop an image from the map
+		 * Give back a popped image once it is no longer used:
+		 * next loaded images of a similar size are decoded in
+		 * its raster instead of a newly allocated one. Images
+		 * returned by getImage from an ImageCache are still
+		 * cached, do not release them
+		 *
+		 * @param image: image not referenced by the caller anymore
+		 */
+		public void releaseImage(BufferedImage image)
+		{
+			ImagePool.getImagePool().release(image);
+		}
+		
+		/**
+		 * Pop an image from the loaded ones, without waiting.
+		 * The image is removed from the store, and decoded
+		 * again if it had been evicted
 		 * 
-		 * @return	the first BufferedImage of the map, if
-		 *			map size is zero returns null
+		 * @return	the oldest loaded BufferedImage not yet
+		 *			popped, if none is available returns null
 		 */
 		public BufferedImage popImage()
 		{
-			BufferedImage img = null;
-			if (this.imageMap.isEmpty()) {
-				return img;
+			String path = this.channel.poll();
+			if (path == null) {
+				return null;
 			}
 			
-			// Get first element
-			String firstKey = this.imageMap.keySet().stream().findFirst().get();
-			img = this.imageMap.get(firstKey);
-			this.imageMap.remove(firstKey);
+			return this.removeImage(path);
+		}
+		
+		/**
+		 * Pop an image from the loaded ones, waiting for loaders
+		 * if none is available and loading is ongoing
+		 * 
+		 * @return	the oldest loaded BufferedImage not yet
+		 *			popped, null once all loaded images
+		 *			have been popped
+		 */
+		public BufferedImage takeImage()
+		{
+			String path = null;
+			try {
+				path = this.channel.take();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			if (path == null) {
+				return null;
+			}
 			
-			return img;
+			return this.removeImage(path);
 		}
 		
 		/**
-		 * Reset the map containing the loaded images
+		 * Same as takeImage, also returning the path of the image
+		 * 
+		 * @return	the oldest loaded image not yet popped, null
+		 *			once all loaded images have been popped
+		 */
+		public LoadedImage takeLoadedImage()
+		{
+			String path = null;
+			try {
+				// Skip images that cannot be decoded again after an eviction
+				while ((path = this.channel.take()) != null) {
+					BufferedImage img = this.removeImage(path);
+					if (img != null) {
+						return new LoadedImage(path, img);
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			return null;
+		}
+		
+		/**
+		 * Reset the store containing the loaded images
 		 *
 		 * @return	true if successful, false otherwise
 		 */
 		public boolean resetImages()
 		{			
-			imageMap.clear();
+			imageStore.clear();
+			this.channel.clear();
 			this.loadedPath = "";
 			return true;
 		}
 
+		/**
+		 * Read the whole content of a file, reporting
+		 * failures as exceptions for the asynchronous API
+		 *
+		 * @param filePath: path of the file to be read
+		 * @return			the file content
+		 */
+		private static byte[] readFile(String filePath)
+		{
+			try {
+				long start = Metrics.start();
+				byte[] data = Files.readAllBytes(new File(filePath).toPath());
+				Metrics.getMetrics().record(Metrics.Stage.READ, start, data.length);
+				return data;
+			}
+			catch (IOException e) {
+				Metrics.getMetrics().error(Metrics.Stage.READ);
+				throw new CompletionException(e);
+			}
+		}
+		
+		/**
+		 * Decode an image and insert it in the store, reporting
+		 * failures as exceptions for the asynchronous API
+		 *
+		 * @param filePath: path of the image to be loaded
+		 * @param source: 	version of the file taken before reading it, null without disk cache
+		 * @param data: 	content of the image file
+		 * @return			the loaded image
+		 */
+		private LoadedImage decodeImage(String filePath, DiskImageCache.SourceVersion source, byte[] data)
+		{
+			BufferedImage img = null;
+			try {
+				ImageDecoder decoder = this.decoder(ImageDecoder.forCurrentThread());
+				img = decoder.decode(data);
+				decoder.saveCached(source, img);
+			}
+			catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			
+			if (img == null) {
+				throw new CompletionException(new IOException("Unable to load image in " + filePath));
+			}
+			
+			this.imageStore.put(filePath, img);
+			return new LoadedImage(filePath, img);
+		}
+		
+		/**
+		 * Take a popped image out of the store
+		 *
+		 * @param filePath: path of the popped image
+		 * @return			the stored image, decoded again if evicted
+		 */
+		private BufferedImage removeImage(String filePath)
+		{
+			BufferedImage img = this.imageStore.remove(filePath);
+			if (img == null) {
+				img = this.reloadImage(filePath);
+			}
+			return img;
+		}
+		
+		/**
+		 * Decode again an image not in the store, on the calling thread
+		 *
+		 * @param filePath: path of the image to be loaded
+		 * @return			the decoded image, null if it cannot be loaded
+		 */
+		private BufferedImage reloadImage(String filePath)
+		{
+			return this.loadImage(this.decoder(ImageDecoder.forCurrentThread()), filePath);
+		}
+		
+		/**
+		 * Load an image from the disk cache and insert it in the store
+		 *
+		 * @param filePath: path of the image to be loaded
+		 * @return			the loaded image, null if it is not cached
+		 */
+		private LoadedImage loadCachedImage(String filePath)
+		{
+			BufferedImage img = this.decoder(ImageDecoder.forCurrentThread()).loadCached(filePath);
+			if (img == null) {
+				return null;
+			}
+			
+			this.imageStore.put(filePath, img);
+			return new LoadedImage(filePath, img);
+		}
+		
+		/**
+		 * Apply the loader settings to a decoder owned by a single
+		 * loader, or to the decoder of the calling thread
+		 *
+		 * @param decoder: decoder used by a single loader
+		 * @return		   the same decoder
+		 */
+		private ImageDecoder decoder(ImageDecoder decoder)
+		{
+			decoder.setTargetSize(this.targetWidth, this.targetHeight);
+			decoder.setDiskCache(this.diskCache);
+			return decoder;
+		}
+		
+		/**
+		 * Create the decoder of a loader, sharing the
+		 * decode permits of the other loaders of the load
+		 *
+		 * @param decodePermits: permits bounding the concurrent decodes
+		 * @return				 the new decoder
+		 */
+		private ImageDecoder boundedDecoder(Semaphore decodePermits)
+		{
+			ImageDecoder decoder = this.decoder(new ImageDecoder());
+			decoder.setDecodePermits(decodePermits);
+			return decoder;
+		}
+		
 		/**
 		 * Load an image from requested path
 		 *
+		 * @param decoder:  decoder of the calling thread
 		 * @param filePath: path of the image to be loaded
 		 * @return			true if successful, false otherwise
 		 */
-		private BufferedImage loadImage(String filePath)
+		private BufferedImage loadImage(ImageDecoder decoder, String filePath)
 		{
 			BufferedImage img = null;
 			try {
-				img = ImageIO.read(new File(filePath));
+				img = decoder.decode(filePath);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
@@ -368,9 +852,11 @@ public class ImageLoader {
 		}
 		
 		private String loadedPath;																				///< Path from which images are loaded
-		private ConcurrentHashMap<String, BufferedImage> imageMap;		///< Map containing images
-		private ThreadPool threadPool;																	///< Thread pool to handle parallel image loading
-		private AtomicBoolean loadCompleted;														///< Atomic flag to signal loading completion
+		private ImageStore imageStore;																		///< Loaded images, bounded by a byte budget
+		private volatile HandoffQueue<String> channel;												///< Paths of the loaded images not yet popped, closed at loading completion
+		private int targetWidth;																						///< Smallest width of loaded images, 0 for full resolution
+		private int targetHeight;																						///< Smallest height of loaded images, 0 for full resolution
+		private DiskImageCache diskCache;																	///< Persistent cache of decoded images, null if not used
+		private ImageFileScanner scanner;																	///< Enumerator of the images of the loaded folder
 		private AtomicInteger completedThreads;													///< Atomic integer to count the number of completed threads
-		private BlockingQueue<Integer> queue;													///< Using this queue, client can wait for producer to insert element in map
 }
@@ -1,21 +1,25 @@
 package jpeg_image_reader;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ImageLoaderCallable implements Callable<Integer> 
 {
-	public ImageLoaderCallable(ConcurrentHashMap<String, BufferedImage> hashMap, 
-															ArrayList<String> imagePaths)
+	public ImageLoaderCallable(ImageStore imageStore, 
+															HandoffQueue<String> channel,
+															HandoffQueue<String> imagePaths,
+															ImageDecoder decoder,
+															AtomicInteger completedThreads,
+															int number)
 	{
-		this.concurrentMap = hashMap;
+		this.imageStore = imageStore;
+		this.channel = channel;
 		this.imagePaths = imagePaths;
+		this.decoder = decoder;
+		this.completedThreads = completedThreads;
+		this.totalThreads = number;
 	}
 	
 	@Override
@@ -23,28 +27,60 @@ public class ImageLoaderCallable implements Callable<Integer>
 	{
 		BufferedImage img = null;
 		int readImgs = 0;
-    	
-        for (String path : imagePaths) {
-        	try {
-        		img = ImageIO.read(new File(path));
-        		if (img != null) {
-        			this.concurrentMap.put(path, img);
-        			readImgs++;
-        		}
-        	}
-        	catch (IOException e) {
-        		e.printStackTrace();
-        		System.out.println("Unable to load image in " + path);
-         }
-    		catch (OutOfMemoryError e) {
-    			e.printStackTrace();
-    			System.out.println("Cannot read more images");
-    		}	
-        }
-        
-        return readImgs;
+		String path = null;
+		
+		try {
+			// Claim paths as they are discovered, until the scan is over and the queue drained
+			while ((path = this.nextPath()) != null) {
+				try {
+					img = this.decoder.decode(path);
+					if (img != null) {
+						this.imageStore.store(path, img);
+						this.channel.offer(path);
+						readImgs++;
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					System.out.println("Unable to load image in " + path);
+				}
+				catch (RuntimeException e) {
+					// e.g. a CMMException from a broken color profile, the next files can still be loaded
+					e.printStackTrace();
+					System.out.println("Unable to load image in " + path);
+				}
+				catch (OutOfMemoryError e) {
+					e.printStackTrace();
+					System.out.println("Cannot read more images");
+				}
+			}
+		}
+		finally {
+			// Consumers wait for the channel to be closed, even if a callable fails
+			this.decoder.dispose();
+			int value = this.completedThreads.incrementAndGet();
+			if (value == this.totalThreads) {
+				this.channel.close();
+			}
+		}
+		
+		return readImgs;
+	}
+	
+	private String nextPath()
+	{
+		try {
+			return this.imagePaths.take();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 	
-	private ConcurrentHashMap<String, BufferedImage> concurrentMap;		///< Reference to the caller map
-	private ArrayList<String> imagePaths;																	///< Paths of images to be loaded
+	private ImageStore imageStore;									///< Reference to the caller store
+	private HandoffQueue<String> channel;														///< Paths of the loaded images, closed by the last loader
+	private HandoffQueue<String> imagePaths;														///< Paths still to be loaded, fed by the scanner and shared among loaders
+	private ImageDecoder decoder;																						///< Decoder owned by this callable
+	private AtomicInteger completedThreads;																///< Reference to the caller completed threads
+	private int totalThreads;																								///< Total number of callables created for the load
 }
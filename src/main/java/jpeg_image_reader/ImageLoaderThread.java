@@ -1,74 +1,89 @@
 package jpeg_image_reader;
 
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
-
 public class ImageLoaderThread implements Runnable {
 	
-	public ImageLoaderThread(ConcurrentHashMap<String, BufferedImage> hashMap, 
-								AtomicBoolean loadCompleted, 
-								ArrayList<String> imagesPath, 
+	public ImageLoaderThread(ImageStore imageStore, 
+								HandoffQueue<String> channel, 
+								HandoffQueue<String> imagesPath, 
+								ImageDecoder decoder, 
 								AtomicInteger completedThreads, 
-								int number, BlockingQueue<Integer> queue,
-								int timeout)
+								int number, int timeout)
 	{
-		this.concurrentMap = hashMap;
-		this.loadCompleted = loadCompleted;
+		this.imageStore = imageStore;
+		this.channel = channel;
 		this.imagesPath = imagesPath;
+		this.decoder = decoder;
 		this.completedThreads = completedThreads;
 		this.totalThreads = number;
-		this.queue = queue;
 		this.timeout = timeout;
 	}
 	
 	@Override
 	public void run() {
 		BufferedImage img = null;
-        	
-        for (String path : imagesPath) {
-        	try {
-        		img = ImageIO.read(new File(path));
-        		if (img != null) {
-        			this.concurrentMap.put(path, img);
-        			this.queue.add(1);
-        			if (timeout != 0) {
-        				try {
-        					Thread.sleep(timeout);
-        				} catch (InterruptedException e) {
-        					e.printStackTrace();
-        				}
-        			}
-        		}
-        	}
-        	catch (IOException e) {
-        		e.printStackTrace();
-        		System.out.println("Unable to load image in " + path);
-        	}
-    		catch (OutOfMemoryError e) {
-    			e.printStackTrace();
-    			System.out.println("Cannot read more images");
-    		}	
-        }
-        	
-        int value = this.completedThreads.incrementAndGet();
-        if (value == this.totalThreads) {
-        	this.loadCompleted.set(true);
-        }
-    }
+		String path = null;
+		
+		try {
+			// Claim paths as they are discovered, until the scan is over and the queue drained
+			while ((path = this.nextPath()) != null) {
+				try {
+					img = this.decoder.decode(path);
+					if (img != null) {
+						this.imageStore.store(path, img);
+						this.channel.offer(path);
+						if (timeout != 0) {
+							try {
+								Thread.sleep(timeout);
+							} catch (InterruptedException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					System.out.println("Unable to load image in " + path);
+				}
+				catch (RuntimeException e) {
+					// e.g. a CMMException from a broken color profile, the next files can still be loaded
+					e.printStackTrace();
+					System.out.println("Unable to load image in " + path);
+				}
+				catch (OutOfMemoryError e) {
+					e.printStackTrace();
+					System.out.println("Cannot read more images");
+				}
+			}
+		}
+		finally {
+			// Consumers wait for the channel to be closed, even if a loader fails
+			this.decoder.dispose();
+			int value = this.completedThreads.incrementAndGet();
+			if (value == this.totalThreads) {
+				this.channel.close();
+			}
+		}
+	}
+	
+	private String nextPath()
+	{
+		try {
+			return this.imagesPath.take();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
 		
-	private ConcurrentHashMap<String, BufferedImage> concurrentMap;		///< Reference to the caller map
-	private ArrayList<String> imagesPath;																	///< Paths of images to be loaded
-	private AtomicBoolean loadCompleted;																	///< Reference to the caller completed boolean
+	private ImageStore imageStore;									///< Reference to the caller store
+	private HandoffQueue<String> imagesPath;														///< Paths still to be loaded, fed by the scanner and shared among loaders
+	private HandoffQueue<String> channel;														///< Paths of the loaded images, closed by the last loader
+	private ImageDecoder decoder;																							///< Decoder owned by this loader
 	private AtomicInteger completedThreads;																///< Reference to the caller completed threads
 	private int totalThreads;																								///< Total number of threads created for the load
-	private BlockingQueue<Integer> queue;																///< Reference to the caller blocking queue
 	private int timeout;
 }
\ No newline at end of file
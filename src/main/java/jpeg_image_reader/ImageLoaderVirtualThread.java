@@ -0,0 +1,144 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Loader of a single file, meant to run on its own virtual
+ * thread. The blocking read (and the injected latency) does not
+ * hold a platform thread, while the CPU-bound decode is bounded
+ * by a semaphore shared among all the loaders of a batch. A second
+ * semaphore bounds the files being read or decoded, so the file
+ * contents waiting for a decode permit do not grow with the folder,
+ * and decoders are taken from a pool shared by the batch, keeping
+ * their ImageReader across files.
+ */
+public class ImageLoaderVirtualThread implements Runnable {
+	
+	public ImageLoaderVirtualThread(ImageStore imageStore, 
+										HandoffQueue<String> channel, 
+										String path,
+										ConcurrentLinkedDeque<ImageDecoder> decoders,
+										Supplier<ImageDecoder> newDecoder,
+										Semaphore readPermits,
+										Semaphore decodePermits,
+										AtomicInteger runningLoaders, 
+										int timeout)
+	{
+		this.imageStore = imageStore;
+		this.channel = channel;
+		this.path = path;
+		this.decoders = decoders;
+		this.newDecoder = newDecoder;
+		this.readPermits = readPermits;
+		this.decodePermits = decodePermits;
+		this.runningLoaders = runningLoaders;
+		this.timeout = timeout;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			BufferedImage img = null;
+			this.readPermits.acquire();
+			try {
+				img = this.load();
+			} finally {
+				this.readPermits.release();
+			}
+			
+			if (img != null) {
+				this.imageStore.store(this.path, img);
+				this.channel.offer(this.path);
+			}
+			else {
+				System.out.println("Unable to load image in " + this.path);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("Unable to load image in " + this.path);
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		catch (OutOfMemoryError e) {
+			e.printStackTrace();
+			System.out.println("Cannot read more images");
+		}
+		finally {
+			if (this.runningLoaders.decrementAndGet() == 0) {
+				disposeAll(this.decoders);
+				this.channel.close();
+			}
+		}
+	}
+	
+	/**
+	 * Dispose the decoders of a batch once all its loaders are done
+	 *
+	 * @param decoders: pool of the decoders of the batch
+	 */
+	static void disposeAll(ConcurrentLinkedDeque<ImageDecoder> decoders)
+	{
+		ImageDecoder decoder = null;
+		while ((decoder = decoders.pollFirst()) != null) {
+			decoder.dispose();
+		}
+	}
+	
+	/**
+	 * Load the file with a decoder of the pool, holding a read permit
+	 */
+	private BufferedImage load() throws IOException, InterruptedException
+	{
+		// Simulated storage latency, paid while reading
+		if (this.timeout != 0) {
+			Thread.sleep(this.timeout);
+		}
+		
+		// The most recently returned decoder is reused first, its reader is the warmest
+		ImageDecoder decoder = this.decoders.pollFirst();
+		if (decoder == null) {
+			decoder = this.newDecoder.get();
+		}
+		
+		try {
+			// Cache entries are only copied, they do not need a decode permit
+			BufferedImage img = decoder.loadCached(this.path);
+			if (img == null) {
+				DiskImageCache.SourceVersion source = decoder.sourceVersion(this.path);
+				long start = Metrics.start();
+				byte[] data = Files.readAllBytes(new File(this.path).toPath());
+				Metrics.getMetrics().record(Metrics.Stage.READ, start, data.length);
+				
+				this.decodePermits.acquire();
+				try {
+					img = decoder.decode(data);
+				} finally {
+					this.decodePermits.release();
+				}
+				decoder.saveCached(source, img);
+			}
+			return img;
+		} finally {
+			this.decoders.offerFirst(decoder);
+		}
+	}
+	
+	private ImageStore imageStore;									///< Reference to the caller store
+	private HandoffQueue<String> channel;							///< Paths of the loaded images, closed by the last loader
+	private String path;												///< Absolute path of the file to be loaded
+	private ConcurrentLinkedDeque<ImageDecoder> decoders;			///< Idle decoders of the batch, most recently used first
+	private Supplier<ImageDecoder> newDecoder;						///< Creates a decoder when none is idle
+	private Semaphore readPermits;										///< Bounds the files read and not yet decoded
+	private Semaphore decodePermits;									///< Bounds the concurrent decodes of the batch
+	private AtomicInteger runningLoaders;								///< Loaders not yet completed, plus one while the scan is running
+	private int timeout;												///< Milliseconds waited before reading the file
+}
@@ -0,0 +1,440 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Staged image processing: file read, jpeg decode, grayscale
+ * conversion and output encoding. Every stage has its own workers
+ * and hands images to the next one through a bounded queue, so a
+ * slow stage blocks the previous ones and the number of images in
+ * memory does not depend on the number of files in the folder.
+ * File contents, decoded and grayscale images are taken from
+ * the shared ImagePool and given back once the next stage is
+ * done with them, so a batch reuses the same buffers.
+ */
+public class ImagePipeline {
+
+	static int DEFAULT_QUEUE_CAPACITY = 4;
+	static int DEFAULT_READ_THREADS = 2;
+	static int DEFAULT_DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	static int DEFAULT_PROCESS_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	static int DEFAULT_ENCODE_THREADS = 1;
+
+	public ImagePipeline()
+	{
+		this(DEFAULT_READ_THREADS, DEFAULT_DECODE_THREADS, DEFAULT_PROCESS_THREADS,
+				DEFAULT_ENCODE_THREADS, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public ImagePipeline(int readThreads, int decodeThreads, int processThreads,
+							int encodeThreads, int queueCapacity)
+	{
+		this.readThreads = Math.max(1, readThreads);
+		this.decodeThreads = Math.max(1, decodeThreads);
+		this.processThreads = Math.max(1, processThreads);
+		this.encodeThreads = Math.max(1, encodeThreads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	/**
+	 * Run the pipeline on all the jpg images of a folder,
+	 * returning when the last image has left the last stage
+	 *
+	 * @param path: 		directory from which images should be loaded
+	 * @param outputPath:	directory in which grayscale images are saved,
+	 * 						if null images are encoded but not written
+	 * @return				number of images that went through all the stages,
+	 * 						-1 if the folder cannot be read
+	 */
+	public int run(String path, String outputPath)
+	{
+		File dir = new File(path);
+		if (!dir.isDirectory()) {
+			System.out.println("Requested path is not a directory");
+			return -1;
+		}
+
+		if (outputPath != null && !new File(outputPath).isDirectory() && !new File(outputPath).mkdirs()) {
+			System.out.println("Unable to create output directory " + outputPath);
+			return -1;
+		}
+
+		// Readers start with the first file found by the scanner
+		HandoffQueue<String> paths = new HandoffQueue<String>();
+		Thread scanner = new ImageFileScanner().scanAsync(path, paths);
+
+		BlockingQueue<PipelineItem> readQueue = new ArrayBlockingQueue<PipelineItem>(this.queueCapacity);
+		BlockingQueue<PipelineItem> decodeQueue = new ArrayBlockingQueue<PipelineItem>(this.queueCapacity);
+		BlockingQueue<PipelineItem> processQueue = new ArrayBlockingQueue<PipelineItem>(this.queueCapacity);
+		AtomicInteger completed = new AtomicInteger(0);
+		ImagePool imagePool = ImagePool.getImagePool();
+
+		ArrayList<Thread> threadList = new ArrayList<Thread>();
+		threadList.add(scanner);
+		Stage[] stages = {
+			new ReadStage(paths, readQueue, imagePool, this.readThreads, this.decodeThreads),
+			new DecodeStage(readQueue, decodeQueue, imagePool, this.decodeThreads, this.processThreads),
+			new ProcessStage(decodeQueue, processQueue, imagePool, this.processThreads, this.encodeThreads),
+			new EncodeStage(processQueue, outputPath, imagePool, completed)
+		};
+		threadList.addAll(startStage("read", this.readThreads, stages[0]));
+		threadList.addAll(startStage("decode", this.decodeThreads, stages[1]));
+		threadList.addAll(startStage("process", this.processThreads, stages[2]));
+		threadList.addAll(startStage("encode", this.encodeThreads, stages[3]));
+
+		// Sync wait thread termination
+		for (Thread t : threadList) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+
+		int dropped = 0;
+		for (Stage stage : stages) {
+			dropped += stage.getDropped();
+		}
+		if (dropped > 0) {
+			System.out.println(dropped + " images dropped by the pipeline");
+		}
+
+		return completed.get();
+	}
+
+	private static ArrayList<Thread> startStage(String name, int threadsNumber, Runnable stage)
+	{
+		ArrayList<Thread> threadList = new ArrayList<Thread>();
+		for (int i = 0; i < threadsNumber; i++) {
+			Thread th = new Thread(stage, "pipeline-" + name + "-" + i);
+			th.start();
+			threadList.add(th);
+		}
+		return threadList;
+	}
+
+	/**
+	 * Image travelling along the pipeline. Only the
+	 * field produced by the last stage is kept, so that
+	 * memory of earlier representations can be reclaimed
+	 */
+	private static class PipelineItem {
+
+		PipelineItem(String path)
+		{
+			this.path = path;
+		}
+
+		String path;				///< Absolute path of the source file
+		byte[] data;				///< Content of the file, set by the read stage, possibly longer
+		int length;					///< Bytes of the file in data
+		BufferedImage image;		///< Decoded or processed image
+	}
+
+	/**
+	 * Common worker logic: take items from the input queue
+	 * until the end marker, and send one end marker to every
+	 * worker of the next stage once all the workers are done
+	 */
+	private static abstract class Stage implements Runnable {
+
+		Stage(BlockingQueue<PipelineItem> output, int workers, int nextWorkers)
+		{
+			this.output = output;
+			this.runningWorkers = new AtomicInteger(workers);
+			this.nextWorkers = nextWorkers;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				PipelineItem item = null;
+				while ((item = this.next()) != null) {
+					try {
+						item = this.process(item);
+					} catch (RuntimeException e) {
+						// A corrupt image must not stop the worker, or the
+						// following stages would wait forever for the end marker
+						e.printStackTrace();
+						System.out.println("Unable to process image " + item.path);
+						this.discard(item);
+						item = null;
+					}
+
+					if (item != null && this.output != null) {
+						this.output.put(item);
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				this.complete();
+			}
+		}
+
+		/**
+		 * @return	number of items dropped after a processing failure
+		 */
+		int getDropped()
+		{
+			return this.dropped.get();
+		}
+
+		/**
+		 * Count an item that failed processing as dropped and
+		 * give its buffers back to the pool
+		 *
+		 * @param item:		item that won't reach the next stage
+		 */
+		void discard(PipelineItem item)
+		{
+			this.dropped.incrementAndGet();
+			ImagePool imagePool = ImagePool.getImagePool();
+			if (item.data != null) {
+				imagePool.releaseBytes(item.data);
+				item.data = null;
+			}
+			if (item.image != null) {
+				imagePool.release(item.image);
+				item.image = null;
+			}
+		}
+
+		/**
+		 * Once the last worker of the stage is done, send the
+		 * end markers even if the worker has been interrupted
+		 */
+		private void complete()
+		{
+			if (this.runningWorkers.decrementAndGet() != 0 || this.output == null) {
+				return;
+			}
+
+			boolean interrupted = false;
+			for (int i = 0; i < this.nextWorkers; i++) {
+				try {
+					this.output.put(END);
+				} catch (InterruptedException e) {
+					interrupted = true;
+					i--;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * @return	next item to process, null when the stage input is over
+		 */
+		abstract PipelineItem next() throws InterruptedException;
+
+		/**
+		 * @return	item for the next stage, null to drop it
+		 */
+		abstract PipelineItem process(PipelineItem item);
+
+		private BlockingQueue<PipelineItem> output;		///< Queue of the next stage
+		private AtomicInteger runningWorkers;				///< Workers of this stage not yet completed
+		private int nextWorkers;								///< Workers of the next stage, each needs an end marker
+		private AtomicInteger dropped = new AtomicInteger(0);	///< Items dropped after a processing failure
+	}
+
+	private static abstract class QueueStage extends Stage {
+
+		QueueStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output,
+						int workers, int nextWorkers)
+		{
+			super(output, workers, nextWorkers);
+			this.input = input;
+		}
+
+		@Override
+		PipelineItem next() throws InterruptedException
+		{
+			PipelineItem item = this.input.take();
+			return item == END ? null : item;
+		}
+
+		private BlockingQueue<PipelineItem> input;		///< Queue filled by the previous stage
+	}
+
+	private static class ReadStage extends Stage {
+
+		ReadStage(HandoffQueue<String> paths, BlockingQueue<PipelineItem> output,
+					ImagePool imagePool, int workers, int nextWorkers)
+		{
+			super(output, workers, nextWorkers);
+			this.paths = paths;
+			this.imagePool = imagePool;
+		}
+
+		@Override
+		PipelineItem next() throws InterruptedException
+		{
+			String path = this.paths.take();
+			return path == null ? null : new PipelineItem(path);
+		}
+
+		@Override
+		PipelineItem process(PipelineItem item)
+		{
+			long start = Metrics.start();
+			try (FileChannel channel = FileChannel.open(new File(item.path).toPath(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) {
+					System.out.println("File too large " + item.path);
+					this.discard(item);
+					return null;
+				}
+				
+				item.length = (int) size;
+				item.data = this.imagePool.acquireBytes(item.length);
+				ByteBuffer buffer = ByteBuffer.wrap(item.data, 0, item.length);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+				item.length = buffer.position();
+				Metrics.getMetrics().record(Metrics.Stage.READ, start, item.length);
+				return item;
+			} catch (IOException e) {
+				Metrics.getMetrics().error(Metrics.Stage.READ);
+				e.printStackTrace();
+				System.out.println("Unable to read file " + item.path);
+				this.discard(item);
+				return null;
+			}
+		}
+
+		private HandoffQueue<String> paths;				///< Paths still to be read, fed by the scanner
+		private ImagePool imagePool;						///< Pool of the file buffers
+	}
+
+	private static class DecodeStage extends QueueStage {
+
+		DecodeStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output,
+						ImagePool imagePool, int workers, int nextWorkers)
+		{
+			super(input, output, workers, nextWorkers);
+			this.imagePool = imagePool;
+		}
+
+		@Override
+		PipelineItem process(PipelineItem item)
+		{
+			try {
+				ImageDecoder decoder = ImageDecoder.forCurrentThread();
+				decoder.setImagePool(this.imagePool);
+				item.image = decoder.decode(ByteBuffer.wrap(item.data, 0, item.length));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			
+			this.imagePool.releaseBytes(item.data);
+			item.data = null;
+
+			if (item.image == null) {
+				System.out.println("Unable to load image in " + item.path);
+				this.discard(item);
+				return null;
+			}
+			return item;
+		}
+
+		private ImagePool imagePool;		///< Pool of file buffers and decoded images
+	}
+
+	private static class ProcessStage extends QueueStage {
+
+		ProcessStage(BlockingQueue<PipelineItem> input, BlockingQueue<PipelineItem> output,
+						ImagePool imagePool, int workers, int nextWorkers)
+		{
+			super(input, output, workers, nextWorkers);
+			this.imagePool = imagePool;
+		}
+
+		@Override
+		PipelineItem process(PipelineItem item)
+		{
+			BufferedImage source = item.image;
+			BufferedImage gray = this.imagePool.acquire(BufferedImage.TYPE_BYTE_GRAY, source.getWidth(), source.getHeight());
+			BufferedImage converted = null;
+			try {
+				converted = new Image(source).rasterGrayscaleConversion(gray);
+			} finally {
+				// The source is left in the item, discarded by the caller
+				if (converted == null) {
+					this.imagePool.release(gray);
+				}
+			}
+			if (converted == null) {
+				System.out.println("Unable to convert image " + item.path);
+				this.discard(item);
+				return null;
+			}
+
+			item.image = converted;
+			this.imagePool.release(source);
+			return item;
+		}
+
+		private ImagePool imagePool;		///< Pool of decoded and grayscale images
+	}
+
+	private static class EncodeStage extends QueueStage {
+
+		EncodeStage(BlockingQueue<PipelineItem> input, String outputPath, ImagePool imagePool, AtomicInteger completed)
+		{
+			super(input, null, 0, 0);
+			this.outputPath = outputPath;
+			this.imagePool = imagePool;
+			this.completed = completed;
+		}
+
+		@Override
+		PipelineItem process(PipelineItem item)
+		{
+			try {
+				// Each encode worker reuses the jpeg writer of its thread
+				ImageEncoder encoder = ImageEncoder.forCurrentThread();
+				if (this.outputPath != null) {
+					encoder.write(item.image, new File(this.outputPath, new File(item.path).getName()), false);
+				}
+				else {
+					encoder.encode(item.image);
+				}
+				this.completed.incrementAndGet();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Unable to write image " + item.path);
+			}
+			
+			this.imagePool.release(item.image);
+			return null;
+		}
+
+		private String outputPath;			///< Destination folder, null to discard the encoded data
+		private ImagePool imagePool;		///< Pool of grayscale images
+		private AtomicInteger completed;	///< Images that went through all the stages
+	}
+
+	private static final PipelineItem END = new PipelineItem(null);		///< End of stream marker
+
+	private int readThreads;			///< Workers reading files
+	private int decodeThreads;		///< Workers decoding jpeg data
+	private int processThreads;		///< Workers converting images to grayscale
+	private int encodeThreads;		///< Workers encoding and writing images
+	private int queueCapacity;		///< Capacity of each queue between stages
+}
@@ -0,0 +1,336 @@
+package jpeg_image_reader;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays and byte-backed BufferedImages, so that
+ * decode and grayscale conversion of a batch reuse the same
+ * rasters instead of allocating (often humongous) new ones for
+ * every image. Arrays are grouped in size classes, four per power
+ * of two, so that images of slightly different sizes share them
+ * and at most a quarter of an array is wasted. Pooled memory is
+ * bounded by a byte budget: released buffers beyond it are left
+ * to the garbage collector.
+ * A released buffer must not be referenced by the caller anymore.
+ */
+public class ImagePool {
+
+	static long DEFAULT_MAX_POOLED_BYTES = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+	static int MIN_ARRAY_SIZE = 1 << 12;
+	static int SUB_CLASSES = 4;
+
+	public ImagePool()
+	{
+		this(DEFAULT_MAX_POOLED_BYTES);
+	}
+
+	public ImagePool(long maxPooledBytes)
+	{
+		this.maxPooledBytes = maxPooledBytes;
+		this.images = new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<BufferedImage>>();
+		this.arrays = new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<byte[]>>();
+		this.pooledBytes = new AtomicLong(0);
+		this.hits = new AtomicLong(0);
+		this.misses = new AtomicLong(0);
+	}
+
+	/**
+	 * Singleton constructor
+	 *
+	 * @return	the pool shared by loaders and processing
+	 */
+	public static synchronized ImagePool getImagePool()
+	{
+		if (instance == null) {
+			instance = new ImagePool();
+		}
+		return instance;
+	}
+
+	/**
+	 * Check if images of a type can be taken from the pool
+	 *
+	 * @param type: BufferedImage type
+	 * @return		true for the byte interleaved types
+	 */
+	public static boolean supports(int type)
+	{
+		return type == BufferedImage.TYPE_BYTE_GRAY || type == BufferedImage.TYPE_3BYTE_BGR
+				|| type == BufferedImage.TYPE_4BYTE_ABGR;
+	}
+
+	/**
+	 * Retrieve an image, reusing a released one of the same
+	 * size class. Pixels are not cleared
+	 *
+	 * @param type: 	BufferedImage type, see supports
+	 * @param width: 	image width
+	 * @param height: 	image height
+	 * @return			the image, newly allocated if the type
+	 * 					is not supported or nothing can be reused
+	 */
+	public BufferedImage acquire(int type, int width, int height)
+	{
+		long size = (long) width * height * bands(type);
+		if (!supports(type) || size > Integer.MAX_VALUE) {
+			return new BufferedImage(width, height, type);
+		}
+
+		int sizeClass = sizeClass((int) size);
+		ConcurrentLinkedDeque<BufferedImage> free = this.images.get(sizeClass);
+		BufferedImage image = free == null ? null : free.pollFirst();
+		if (image != null) {
+			byte[] data = GrayscaleKernel.byteData(image);
+			this.pooledBytes.addAndGet(-data.length);
+			this.hits.incrementAndGet();
+			if (image.getType() == type && image.getWidth() == width && image.getHeight() == height) {
+				return image;
+			}
+			return wrap(type, width, height, data);
+		}
+
+		// Released arrays fit as well
+		byte[] data = this.pollArray(sizeClass);
+		if (data != null) {
+			this.hits.incrementAndGet();
+			return wrap(type, width, height, data);
+		}
+
+		this.misses.incrementAndGet();
+		return wrap(type, width, height, new byte[sizeClass]);
+	}
+
+	/**
+	 * Give back an image. Images not backed by a whole
+	 * byte array, e.g. sub-images, are ignored
+	 *
+	 * @param image: image not referenced by the caller anymore
+	 */
+	public void release(BufferedImage image)
+	{
+		Metrics.getMetrics().untrackDecoded(image);
+		if (image == null || !supports(image.getType()) || image.getRaster().getParent() != null
+				|| image.getRaster().getDataBuffer().getNumBanks() != 1
+				|| image.getRaster().getDataBuffer().getOffset() != 0) {
+			return;
+		}
+
+		byte[] data = GrayscaleKernel.byteData(image);
+		int sizeClass = floorClass(data.length);
+		if (sizeClass < 0 || !this.reserve(data.length)) {
+			return;
+		}
+
+		deque(this.images, sizeClass).offerFirst(image);
+	}
+
+	/**
+	 * Retrieve an array of at least the requested size,
+	 * reusing a released one of the same size class
+	 *
+	 * @param size: minimum length
+	 * @return		the array, contents are not cleared
+	 */
+	public byte[] acquireBytes(int size)
+	{
+		int sizeClass = sizeClass(size);
+		byte[] data = this.pollArray(sizeClass);
+		if (data != null) {
+			this.hits.incrementAndGet();
+			return data;
+		}
+
+		// Arrays of released images fit as well
+		ConcurrentLinkedDeque<BufferedImage> free = this.images.get(sizeClass);
+		BufferedImage image = free == null ? null : free.pollFirst();
+		if (image != null) {
+			data = GrayscaleKernel.byteData(image);
+			this.pooledBytes.addAndGet(-data.length);
+			this.hits.incrementAndGet();
+			return data;
+		}
+
+		this.misses.incrementAndGet();
+		return new byte[sizeClass];
+	}
+
+	/**
+	 * Give back an array
+	 *
+	 * @param data: array not referenced by the caller anymore
+	 */
+	public void releaseBytes(byte[] data)
+	{
+		if (data == null) {
+			return;
+		}
+
+		int sizeClass = floorClass(data.length);
+		if (sizeClass < 0 || !this.reserve(data.length)) {
+			return;
+		}
+
+		deque(this.arrays, sizeClass).offerFirst(data);
+	}
+
+	/**
+	 * Drop all the pooled buffers
+	 */
+	public void clear()
+	{
+		this.images.clear();
+		this.arrays.clear();
+		this.pooledBytes.set(0);
+	}
+
+	public long getPooledBytes()
+	{
+		return this.pooledBytes.get();
+	}
+
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	/**
+	 * Smallest size class holding the requested size
+	 */
+	static int sizeClass(int size)
+	{
+		if (size <= MIN_ARRAY_SIZE) {
+			return MIN_ARRAY_SIZE;
+		}
+
+		int base = Integer.highestOneBit(size - 1);
+		int step = base / SUB_CLASSES;
+		long sizeClass = base + (long) ((size - base + step - 1) / step) * step;
+		return sizeClass > Integer.MAX_VALUE - 8 ? size : (int) sizeClass;
+	}
+
+	/**
+	 * Largest size class not exceeding the array length,
+	 * -1 if the array is smaller than the smallest class
+	 */
+	static int floorClass(int length)
+	{
+		if (length < MIN_ARRAY_SIZE) {
+			return -1;
+		}
+
+		int base = Integer.highestOneBit(length);
+		int step = base / SUB_CLASSES;
+		return base + ((length - base) / step) * step;
+	}
+
+	/**
+	 * Create an image of a standard type on an existing array,
+	 * possibly longer than needed
+	 */
+	private static BufferedImage wrap(int type, int width, int height, byte[] data)
+	{
+		int bands = bands(type);
+		int[] bandOffsets;
+		ColorModel colorModel;
+		switch (type) {
+			case BufferedImage.TYPE_BYTE_GRAY:
+				bandOffsets = new int[] {0};
+				colorModel = GRAY_MODEL;
+				break;
+			case BufferedImage.TYPE_3BYTE_BGR:
+				bandOffsets = new int[] {2, 1, 0};
+				colorModel = BGR_MODEL;
+				break;
+			default:
+				bandOffsets = new int[] {3, 2, 1, 0};
+				colorModel = ABGR_MODEL;
+				break;
+		}
+
+		DataBufferByte buffer = new DataBufferByte(data, width * height * bands);
+		WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width * bands,
+				bands, bandOffsets, null);
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private static int bands(int type)
+	{
+		switch (type) {
+			case BufferedImage.TYPE_BYTE_GRAY:
+				return 1;
+			case BufferedImage.TYPE_3BYTE_BGR:
+				return 3;
+			default:
+				return 4;
+		}
+	}
+
+	private byte[] pollArray(int sizeClass)
+	{
+		ConcurrentLinkedDeque<byte[]> free = this.arrays.get(sizeClass);
+		byte[] data = free == null ? null : free.pollFirst();
+		if (data != null) {
+			this.pooledBytes.addAndGet(-data.length);
+		}
+		return data;
+	}
+
+	/**
+	 * Account a released buffer in the budget
+	 *
+	 * @return	false if the buffer does not fit
+	 */
+	private boolean reserve(int bytes)
+	{
+		if (this.pooledBytes.addAndGet(bytes) > this.maxPooledBytes) {
+			this.pooledBytes.addAndGet(-bytes);
+			return false;
+		}
+		return true;
+	}
+
+	private static <T> ConcurrentLinkedDeque<T> deque(ConcurrentHashMap<Integer, ConcurrentLinkedDeque<T>> map, int sizeClass)
+	{
+		ConcurrentLinkedDeque<T> free = map.get(sizeClass);
+		if (free == null) {
+			free = new ConcurrentLinkedDeque<T>();
+			ConcurrentLinkedDeque<T> previous = map.putIfAbsent(sizeClass, free);
+			if (previous != null) {
+				free = previous;
+			}
+		}
+		return free;
+	}
+
+	private static final ColorModel GRAY_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+			new int[] {8}, false, true, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	private static final ColorModel BGR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+			new int[] {8, 8, 8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	private static final ColorModel ABGR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+			new int[] {8, 8, 8, 8}, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+
+	private static ImagePool instance = null;									///< To implement Singleton constructor
+
+	private long maxPooledBytes;												///< Budget of the released buffers
+	private ConcurrentHashMap<Integer, ConcurrentLinkedDeque<BufferedImage>> images;		///< Released images by size class
+	private ConcurrentHashMap<Integer, ConcurrentLinkedDeque<byte[]>> arrays;				///< Released arrays by size class
+	private AtomicLong pooledBytes;												///< Bytes of the released buffers
+	private AtomicLong hits;													///< Requests served with a released buffer
+	private AtomicLong misses;													///< Requests served with a new buffer
+}
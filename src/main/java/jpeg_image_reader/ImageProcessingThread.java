@@ -6,16 +6,38 @@ import java.util.concurrent.Callable;
 public class ImageProcessingThread implements Callable<BufferedImage> {
 
 	public ImageProcessingThread(Image image) 
+	{
+		this(image, null);
+	}
+	
+	/**
+	 * Processing taking the grayscale image from a pool
+	 * and giving the source image back to it once converted
+	 * 
+	 * @param image: 	 image to be converted, not used by the caller anymore
+	 * @param imagePool: pool of the images, null to allocate a new grayscale image
+	 */
+	public ImageProcessingThread(Image image, ImagePool imagePool) 
 	{
 		this.image = image;
+		this.imagePool = imagePool;
 	}
 	
 	@Override
 	public BufferedImage call() 
 	{
-		BufferedImage gs = this.image.grayscaleConversion();
+		if (this.imagePool == null) {
+			BufferedImage gs = this.image.rasterGrayscaleConversion();
+			return gs;
+		}
+		
+		BufferedImage source = this.image.getImage();
+		BufferedImage gs = this.imagePool.acquire(BufferedImage.TYPE_BYTE_GRAY, source.getWidth(), source.getHeight());
+		this.image.rasterGrayscaleConversion(gs);
+		this.imagePool.release(source);
 		return gs;
 	}
 	
-	private Image image;		///< Reference  the caller image
+	private Image image;			///< Reference  the caller image
+	private ImagePool imagePool;	///< Pool of source and grayscale images, null if not used
 }
@@ -1,8 +1,10 @@
 package jpeg_image_reader;
 
+import java.util.Arrays;
+
 public class ImageReader {
 	
-	public static int DEFAULT_LOADER_THREADS = 1;
+	public static int DEFAULT_LOADER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
 
 	public static void main(String[] args) {
 		System.out.println("======= jpeg_image_reader =======");
@@ -10,7 +12,8 @@ public class ImageReader {
 		String sourceFolder = "";
 		if (args.length == 0) {
 			System.out.println("Source images folder not specified");
-			System.out.println("Usage: java -jar jpeg_image_loader source_folder operation");
+			System.out.println("Usage: java -jar jpeg_image_loader source_folder operation sleep_time output_folder loader_threads processing_threads");
+			System.out.println("       java -jar jpeg_image_loader sweep key=value...");
 			System.out.println("source_folder: directory containing jpg images to be loaded");
 			System.out.println("operation: optional - specify how to load images and processing. Default: 1");
 			System.out.println("	1: Sequential load of source_folder jpg images.");
@@ -20,6 +23,33 @@ public class ImageReader {
 			System.out.println("	5: Sequential load and sequential grayscale conversion of loaded images");
 			System.out.println("	6: Sequential load and parallel grayscale conversion of loaded images");
 			System.out.println("	7: Parallel load and parallel grayscale conversion of loaded images in async mode");
+			System.out.println("	8: Parallel load and parallel grayscale conversion of loaded images in sync mode");
+			System.out.println("	9: Sequential load and fork/join grayscale conversion of each loaded image");
+			System.out.println("	10: Staged pipeline with bounded queues: read, decode, grayscale conversion and encoding");
+			System.out.println("	11: Async load with a CompletableFuture per image and chained grayscale conversion");
+			System.out.println("	12: Pooled loaders compared to one virtual thread per file, with sleep_time (default 50) as latency");
+			System.out.println("	13: Full resolution load compared to a subsampled load for thumbnails");
+			System.out.println("	14: Strip by strip decode and grayscale conversion of images larger than the heap, written as PGM");
+			System.out.println("	15: Parallel load kept in the heap cache compared to the off heap store");
+			System.out.println("	16: Sequential load repeated through a decoded image cache in output_folder (default a temporary folder)");
+			System.out.println("	17: Watch source_folder and convert to grayscale each new or modified image, until stopped with Ctrl+C");
+			System.out.println("	18: Parallel load, grayscale conversion and jpeg write to output_folder (default a temporary folder), ImageIO.write compared to the async writer");
+			System.out.println("	19: Parallel load and grayscale conversion written as jpeg, PGM files and a raw file with index, in output_folder (default a temporary folder)");
+			System.out.println("sleep_time: optional - milliseconds waited by loaders after each image. Default: 0");
+			System.out.println("output_folder: optional - directory where operations 10, 14, 17, 18 and 19 write grayscale images, and operation 16 its cache. Use - for the default");
+			System.out.println("loader_threads: optional - loaders of operations 2, 3, 4, 7, 8, 12, 15, 17, 18 and 19. Default: available processors");
+			System.out.println("processing_threads: optional - size of the processing pool of operations 6, 7, 8, 11, 17 and 18. Default: available processors");
+			System.out.println("sweep: run each operation over a matrix of datasets and thread counts, with warm-up and repetitions, and print speedup and efficiency against the sequential baseline");
+			BenchmarkSweep.printUsage();
+			System.out.println("Each operation ends with a report of the stage latencies, throughput and garbage collections, one per variant for operations 12, 13, 15, 16, 18 and 19, also printed as a JSON line and appended to the file set with -Djpeg_image_reader.report=file");
+			return;
+		}
+		else if (args[0].equals("sweep")) {
+			BenchmarkSweep sweep = BenchmarkSweep.parse(Arrays.copyOfRange(args, 1, args.length));
+			if (sweep != null) {
+				sweep.run();
+			}
+			ThreadPool.closeAll();
 			return;
 		}
 		else {
@@ -34,42 +64,108 @@ public class ImageReader {
 			}
 		}
 		
+		String outputFolder = null;
+		if (args.length > 3 && !args[3].equals("-")) {
+			outputFolder = args[3];
+		}
+		
+		int loaderThreads = DEFAULT_LOADER_THREADS;
+		if (args.length > 4) {
+			loaderThreads = Math.max(1, Integer.parseInt(args[4]));
+		}
+		
+		if (args.length > 5) {
+			ThreadPool.DEFAULT_PROCESSING_POOL_SIZE = Math.max(1, Integer.parseInt(args[5]));
+		}
+		// The pool must hold all the loaders, which wait on it for their whole run
+		ThreadPool.DEFAULT_IO_POOL_SIZE = Math.max(ThreadPool.DEFAULT_IO_POOL_SIZE, loaderThreads);
+		
 		// Test bench usage
 		if (args.length > 1) {
-			switch (Integer.parseInt(args[1])) {
-				case 1:
-					BenchmarkSuite.runSequentialLoad(sourceFolder, sleepTime);
-					break;
-				case 2:
-					BenchmarkSuite.runParallelLoad(sourceFolder, DEFAULT_LOADER_THREADS, sleepTime);
-					break;
-				case 3:
-					BenchmarkSuite.runCallableLoad(sourceFolder, DEFAULT_LOADER_THREADS, sleepTime);
-					break;
-				case 4:
-					BenchmarkSuite.runParallelLoadNoPool(sourceFolder, DEFAULT_LOADER_THREADS, sleepTime);
-					break;
-				case 5:
-					BenchmarkSuite.runSequentialLoadOp(sourceFolder, sleepTime);
-					break;
-				case 6:
-					BenchmarkSuite.runSequentialLoadParallelOp(sourceFolder, sleepTime);
-					break;
-				case 7:
-					BenchmarkSuite.runParallelLoadOp(sourceFolder, DEFAULT_LOADER_THREADS, sleepTime);
-					break;
-				case 8:
-					BenchmarkSuite.runParallelLoadOpSync(sourceFolder, DEFAULT_LOADER_THREADS, sleepTime);
-					break;
-				default:
-					BenchmarkSuite.runSequentialLoad(sourceFolder, sleepTime);
-					break;
+			int operation = Integer.parseInt(args[1]);
+			if (BenchmarkSuite.isComparison(operation)) {
+				// Each variant is published in its own report
+				runOperation(operation, sourceFolder, outputFolder, loaderThreads, sleepTime);
+				ThreadPool.closeAll();
+				return;
 			}
+			
+			BenchmarkReport report = BenchmarkReport.start("operation " + operation)
+					.setParameter("operation", operation)
+					.setParameter("dataset", sourceFolder)
+					.setParameter("loaderThreads", loaderThreads)
+					.setParameter("processingThreads", ThreadPool.DEFAULT_PROCESSING_POOL_SIZE)
+					.setParameter("sleepTime", sleepTime);
+			runOperation(operation, sourceFolder, outputFolder, loaderThreads, sleepTime);
+			report.publish();
+			ThreadPool.closeAll();
 			return;
 		}
 		
 		// Default if no args are specified
+		BenchmarkReport report = BenchmarkReport.start("operation 1")
+				.setParameter("operation", 1)
+				.setParameter("dataset", sourceFolder)
+				.setParameter("sleepTime", sleepTime);
 		BenchmarkSuite.runSequentialLoad(sourceFolder, sleepTime);
+		report.publish();
+		ThreadPool.closeAll();
 		return;
 	}
+	
+	/**
+	 * Run one of the benchmark operations
+	 *
+	 * @param operation: 	 operation number, as listed by the usage
+	 * @param sourceFolder:  directory containing the jpg images
+	 * @param outputFolder:  directory of the written images, null for the default
+	 * @param loaderThreads: loaders of the parallel operations
+	 * @param sleepTime: 	 milliseconds waited by loaders after each image
+	 * @return				 true if successful, false otherwise
+	 */
+	public static boolean runOperation(int operation, String sourceFolder, String outputFolder, int loaderThreads, int sleepTime)
+	{
+		switch (operation) {
+			case 1:
+				return BenchmarkSuite.runSequentialLoad(sourceFolder, sleepTime);
+			case 2:
+				return BenchmarkSuite.runParallelLoad(sourceFolder, loaderThreads, sleepTime);
+			case 3:
+				return BenchmarkSuite.runCallableLoad(sourceFolder, loaderThreads, sleepTime);
+			case 4:
+				return BenchmarkSuite.runParallelLoadNoPool(sourceFolder, loaderThreads, sleepTime);
+			case 5:
+				return BenchmarkSuite.runSequentialLoadOp(sourceFolder, sleepTime);
+			case 6:
+				return BenchmarkSuite.runSequentialLoadParallelOp(sourceFolder, sleepTime);
+			case 7:
+				return BenchmarkSuite.runParallelLoadOp(sourceFolder, loaderThreads, sleepTime);
+			case 8:
+				return BenchmarkSuite.runParallelLoadOpSync(sourceFolder, loaderThreads, sleepTime);
+			case 9:
+				return BenchmarkSuite.runSequentialLoadForkJoinOp(sourceFolder, sleepTime);
+			case 10:
+				return BenchmarkSuite.runPipeline(sourceFolder, outputFolder);
+			case 11:
+				return BenchmarkSuite.runAsyncLoadOp(sourceFolder);
+			case 12:
+				return BenchmarkSuite.runVirtualLoadComparison(sourceFolder, loaderThreads, sleepTime);
+			case 13:
+				return BenchmarkSuite.runThumbnailLoad(sourceFolder, sleepTime);
+			case 14:
+				return BenchmarkSuite.runTiledConversion(sourceFolder, outputFolder);
+			case 15:
+				return BenchmarkSuite.runOffHeapLoad(sourceFolder, loaderThreads, sleepTime);
+			case 16:
+				return BenchmarkSuite.runDiskCacheLoad(sourceFolder, outputFolder, sleepTime);
+			case 17:
+				return BenchmarkSuite.runWatchFolder(sourceFolder, outputFolder, loaderThreads, sleepTime);
+			case 18:
+				return BenchmarkSuite.runEncodeComparison(sourceFolder, outputFolder, loaderThreads, sleepTime);
+			case 19:
+				return BenchmarkSuite.runRawOutputComparison(sourceFolder, outputFolder, loaderThreads, sleepTime);
+			default:
+				return BenchmarkSuite.runSequentialLoad(sourceFolder, sleepTime);
+		}
+	}
 }
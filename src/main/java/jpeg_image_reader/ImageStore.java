@@ -0,0 +1,75 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+/**
+ * Storage of the images loaded by ImageLoader, keyed by
+ * absolute file path and bounded by a byte budget. Images
+ * beyond the budget are evicted and decoded again on request.
+ */
+public interface ImageStore {
+
+	/**
+	 * Retrieve a stored image, marking it as recently used
+	 *
+	 * @param path: absolute path of the image
+	 * @return		the image, null on a miss
+	 */
+	BufferedImage get(String path);
+
+	/**
+	 * Insert an image, evicting others if the budget is exceeded
+	 *
+	 * @param path: 	absolute path of the image
+	 * @param image: 	decoded image
+	 * @return			true if the image has been stored
+	 */
+	boolean put(String path, BufferedImage image);
+
+	/**
+	 * Insert an image not referenced by the caller anymore:
+	 * stores keeping a copy of the pixels give the image
+	 * back to the ImagePool
+	 *
+	 * @param path: 	absolute path of the image
+	 * @param image: 	decoded image
+	 * @return			true if the image has been stored
+	 */
+	boolean store(String path, BufferedImage image);
+
+	/**
+	 * Remove an image, without counting it as a hit or a miss
+	 *
+	 * @param path: absolute path of the image
+	 * @return		the removed image, null if not stored
+	 */
+	BufferedImage remove(String path);
+
+	/**
+	 * Change the budget, evicting images if it is now exceeded
+	 *
+	 * @param maxBytes: bytes of the stored pixels
+	 * @return			true if successful, false otherwise
+	 */
+	boolean setMaxBytes(long maxBytes);
+
+	void clear();
+
+	/**
+	 * @return	paths of the stored images, least recently used first
+	 */
+	ArrayList<String> getPaths();
+
+	int size();
+
+	long getMaxBytes();
+
+	long getUsedBytes();
+
+	long getHits();
+
+	long getMisses();
+
+	long getEvictions();
+}
@@ -0,0 +1,99 @@
+package jpeg_image_reader;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed size executor recording in a PoolMetrics how long each
+ * task waits in the queue and runs. Tasks are wrapped on submission
+ * to remember their enqueue time, and timed in beforeExecute and
+ * afterExecute. Tasks sent with submit() keep their exception in
+ * their Future, which afterExecute inspects to count failures
+ */
+class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+
+	InstrumentedThreadPoolExecutor(int size, ThreadFactory threadFactory, PoolMetrics metrics)
+	{
+		super(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory);
+		this.metrics = metrics;
+		metrics.setExecutor(this);
+	}
+
+	@Override
+	public void execute(Runnable command)
+	{
+		super.execute(Metrics.ENABLED ? new TimedTask(command) : command);
+	}
+
+	@Override
+	protected void beforeExecute(Thread t, Runnable r)
+	{
+		if (r instanceof TimedTask) {
+			TimedTask task = (TimedTask) r;
+			task.started = System.nanoTime();
+			this.metrics.recordWait(task.started - task.enqueued);
+		}
+	}
+
+	@Override
+	protected void afterExecute(Runnable r, Throwable t)
+	{
+		if (r instanceof TimedTask) {
+			TimedTask task = (TimedTask) r;
+			long nanos = System.nanoTime() - task.started;
+			this.metrics.recordRun(nanos, t != null || failed(task.task));
+		}
+	}
+
+	/**
+	 * Check if a completed Future ended with an exception,
+	 * as the ThreadPoolExecutor documentation shows
+	 */
+	private static boolean failed(Runnable task)
+	{
+		if (!(task instanceof Future<?>) || !((Future<?>) task).isDone()) {
+			return false;
+		}
+
+		try {
+			((Future<?>) task).get();
+			return false;
+		} catch (CancellationException e) {
+			return true;
+		} catch (ExecutionException e) {
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Task remembering when it has been submitted
+	 */
+	private static class TimedTask implements Runnable {
+
+		TimedTask(Runnable task)
+		{
+			this.task = task;
+			this.enqueued = System.nanoTime();
+		}
+
+		@Override
+		public void run()
+		{
+			this.task.run();
+		}
+
+		Runnable task;				///< Submitted task
+		long enqueued;				///< Submission time
+		long started;				///< Start time, set by beforeExecute
+	}
+
+	private PoolMetrics metrics;	///< Metrics of the pool
+}
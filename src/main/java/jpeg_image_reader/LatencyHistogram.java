@@ -0,0 +1,141 @@
+package jpeg_image_reader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Each power of two
+ * is split in SUB_BUCKETS linear buckets: recording is an increment of
+ * a bucket and of two LongAdders, cheap enough to be left on. Percentiles
+ * are estimated as the upper bound of the bucket holding them, so they
+ * exceed the exact value by at most 1 / SUB_BUCKETS (12.5%).
+ */
+public class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	public LatencyHistogram()
+	{
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.sum = new LongAdder();
+		this.max = new LongAccumulator(Math::max, 0);
+	}
+
+	/**
+	 * @param nanos: duration to be recorded, negative values are ignored
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0) {
+			return;
+		}
+
+		this.buckets.incrementAndGet(bucket(nanos));
+		this.count.increment();
+		this.sum.add(nanos);
+		this.max.accumulate(nanos);
+	}
+
+	public long getCount()
+	{
+		return this.count.sum();
+	}
+
+	public long getTotalNanos()
+	{
+		return this.sum.sum();
+	}
+
+	public long getMeanNanos()
+	{
+		long count = this.count.sum();
+		return count == 0 ? 0 : this.sum.sum() / count;
+	}
+
+	public long getMaxNanos()
+	{
+		return this.max.get();
+	}
+
+	/**
+	 * Estimate a percentile of the recorded durations
+	 *
+	 * @param percentile: from 0 to 100
+	 * @return			  upper bound of the bucket holding the percentile,
+	 * 					  capped to the maximum, 0 if nothing has been recorded
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = this.buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(upperBound(i), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	/**
+	 * Drop the recorded durations. Durations recorded while
+	 * resetting may be partially kept
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets.set(i, 0);
+		}
+		this.count.reset();
+		this.sum.reset();
+		this.max.reset();
+	}
+
+	/**
+	 * Durations below SUB_BUCKETS have a bucket each, larger ones are
+	 * indexed by their highest bit and the SUB_BUCKET_BITS following it
+	 */
+	static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return	the largest duration held by a bucket
+	 */
+	static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		// The last bucket ends at Long.MAX_VALUE without overflowing
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	private AtomicLongArray buckets;		///< Number of durations per bucket
+	private LongAdder count;				///< Recorded durations
+	private LongAdder sum;					///< Sum of the recorded durations
+	private LongAccumulator max;			///< Longest recorded duration
+}
@@ -0,0 +1,28 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Decoded image handed off by loaders to consumers
+ */
+public class LoadedImage {
+
+	public LoadedImage(String path, BufferedImage image)
+	{
+		this.path = path;
+		this.image = image;
+	}
+
+	public String getPath()
+	{
+		return this.path;
+	}
+
+	public BufferedImage getImage()
+	{
+		return this.image;
+	}
+
+	private String path;				///< Absolute path of the source file
+	private BufferedImage image;		///< Decoded image
+}
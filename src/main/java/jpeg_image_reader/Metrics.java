@@ -0,0 +1,267 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the image stages and of the thread pools,
+ * published as MBeans under the "jpeg_image_reader" domain (e.g.
+ * with jconsole), so the saturated stage or pool can be found at
+ * runtime. Stages record count, bytes and a latency histogram of
+ * each operation; pools record queue wait and running time of each
+ * task. Decoded images are tracked until they are given back to the
+ * ImagePool or collected, giving the decoded bytes in flight; they are
+ * kept in weak maps striped by identity hash, each with its own lock,
+ * so concurrent loaders seldom contend on the same stripe.
+ * Images served by the disk cache are counted apart, since they
+ * are read but never decoded.
+ * Stage and pool recording only uses LongAdders and atomic increments.
+ * Metrics can be disabled with -Djpeg_image_reader.metrics.disabled=true.
+ */
+public final class Metrics implements MetricsMBean {
+
+	enum Stage {
+		READ,			///< File reads, cache entries included
+		DECODE,			///< Jpeg decoding
+		PROCESS,		///< Grayscale conversion
+		WRITE,			///< Encoding and output writes
+	};
+
+	static String DOMAIN = "jpeg_image_reader";
+	static boolean ENABLED = !Boolean.getBoolean("jpeg_image_reader.metrics.disabled");
+	static final int DECODED_STRIPES = 16;
+
+	private Metrics()
+	{
+		this.stages = new EnumMap<Stage, StageMetrics>(Stage.class);
+		for (Stage stage : Stage.values()) {
+			this.stages.put(stage, new StageMetrics());
+		}
+		this.pools = new EnumMap<ThreadPool.PoolType, PoolMetrics>(ThreadPool.PoolType.class);
+		for (ThreadPool.PoolType type : ThreadPool.PoolType.values()) {
+			this.pools.put(type, new PoolMetrics());
+		}
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		WeakHashMap<BufferedImage, Long>[] decoded = new WeakHashMap[DECODED_STRIPES];
+		for (int i = 0; i < decoded.length; i++) {
+			decoded[i] = new WeakHashMap<BufferedImage, Long>();
+		}
+		this.decoded = decoded;
+		this.cacheHits = new LongAdder();
+	}
+
+	/**
+	 * Retrieve the singleton, created with its MBeans when the class
+	 * is initialized, so recording threads never take a lock
+	 *
+	 * @return	the metrics of the application
+	 */
+	public static Metrics getMetrics()
+	{
+		return instance;
+	}
+
+	/**
+	 * Start timing an operation
+	 *
+	 * @return	the start time to be passed to record, 0 if metrics are disabled
+	 */
+	public static long start()
+	{
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record an operation of a stage started with start()
+	 *
+	 * @param stage: 		stage of the operation
+	 * @param startNanos: 	value returned by start()
+	 * @param bytes: 		bytes processed by the operation
+	 */
+	public void record(Stage stage, long startNanos, long bytes)
+	{
+		if (startNanos != 0) {
+			this.stages.get(stage).record(System.nanoTime() - startNanos, bytes);
+		}
+	}
+
+	public void error(Stage stage)
+	{
+		if (ENABLED) {
+			this.stages.get(stage).error();
+		}
+	}
+
+	/**
+	 * Count an image served by the disk cache instead of being decoded
+	 */
+	public void cacheHit()
+	{
+		if (ENABLED) {
+			this.cacheHits.increment();
+		}
+	}
+
+	/**
+	 * @return	images served by the disk cache since the last reset
+	 */
+	@Override
+	public long getCacheHits()
+	{
+		return this.cacheHits.sum();
+	}
+
+	public StageMetrics getStage(Stage stage)
+	{
+		return this.stages.get(stage);
+	}
+
+	public PoolMetrics getPool(ThreadPool.PoolType type)
+	{
+		return this.pools.get(type);
+	}
+
+	/**
+	 * Count a decoded image as in flight, until it is released to the ImagePool
+	 *
+	 * @param image: decoded image
+	 */
+	public void trackDecoded(BufferedImage image)
+	{
+		if (ENABLED && image != null) {
+			WeakHashMap<BufferedImage, Long> stripe = this.stripe(image);
+			long bytes = rasterBytes(image);
+			synchronized (stripe) {
+				stripe.put(image, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Stop counting an image, if it was tracked
+	 *
+	 * @param image: image given back to the ImagePool
+	 */
+	public void untrackDecoded(BufferedImage image)
+	{
+		if (ENABLED && image != null) {
+			WeakHashMap<BufferedImage, Long> stripe = this.stripe(image);
+			synchronized (stripe) {
+				stripe.remove(image);
+			}
+		}
+	}
+
+	/**
+	 * @return	bytes of the decoded images not yet released nor collected
+	 */
+	@Override
+	public long getDecodedBytesInFlight()
+	{
+		long bytes = 0;
+		for (WeakHashMap<BufferedImage, Long> stripe : this.decoded) {
+			synchronized (stripe) {
+				for (Map.Entry<BufferedImage, Long> entry : stripe.entrySet()) {
+					bytes += entry.getValue();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	@Override
+	public int getDecodedImagesInFlight()
+	{
+		int images = 0;
+		for (WeakHashMap<BufferedImage, Long> stripe : this.decoded) {
+			synchronized (stripe) {
+				images += stripe.size();
+			}
+		}
+		return images;
+	}
+
+	@Override
+	public boolean isEnabled()
+	{
+		return ENABLED;
+	}
+
+	/**
+	 * Reset counters and histograms of stages and pools
+	 */
+	@Override
+	public void reset()
+	{
+		for (StageMetrics stage : this.stages.values()) {
+			stage.reset();
+		}
+		for (PoolMetrics pool : this.pools.values()) {
+			pool.reset();
+		}
+		this.cacheHits.reset();
+	}
+
+	/**
+	 * Evaluate the bytes of the pixels of an image
+	 */
+	static long rasterBytes(BufferedImage image)
+	{
+		int elementBytes = DataBuffer.getDataTypeSize(image.getSampleModel().getTransferType()) / 8;
+		return (long) image.getWidth() * image.getHeight() * image.getRaster().getNumDataElements() * elementBytes;
+	}
+
+	/**
+	 * Stripe of the decoded images holding an image, by identity
+	 */
+	private WeakHashMap<BufferedImage, Long> stripe(BufferedImage image)
+	{
+		return this.decoded[(System.identityHashCode(image) & 0x7FFFFFFF) % DECODED_STRIPES];
+	}
+
+	private void register()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			registerMBean(server, this, "type=Metrics");
+			for (Map.Entry<Stage, StageMetrics> stage : this.stages.entrySet()) {
+				registerMBean(server, stage.getValue(), "type=Stage,name=" + stage.getKey().name().toLowerCase());
+			}
+			for (Map.Entry<ThreadPool.PoolType, PoolMetrics> pool : this.pools.entrySet()) {
+				registerMBean(server, pool.getValue(), "type=ThreadPool,name=" + pool.getKey().name().toLowerCase());
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+			System.out.println("Unable to register metrics MBeans");
+		}
+	}
+
+	private static void registerMBean(MBeanServer server, Object mbean, String properties) throws JMException
+	{
+		ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+		server.registerMBean(mbean, name);
+	}
+
+	private static final Metrics instance = new Metrics();		///< Metrics of the application
+
+	static {
+		instance.register();
+	}
+
+	private EnumMap<Stage, StageMetrics> stages;				///< Metrics of each stage
+	private EnumMap<ThreadPool.PoolType, PoolMetrics> pools;	///< Metrics of each pool type
+	private WeakHashMap<BufferedImage, Long>[] decoded;			///< Decoded images in flight and their bytes, by identity, striped
+	private LongAdder cacheHits;								///< Images loaded from the disk cache
+}
@@ -0,0 +1,17 @@
+package jpeg_image_reader;
+
+/**
+ * JMX view of the application wide gauges
+ */
+public interface MetricsMBean {
+
+	long getDecodedBytesInFlight();
+
+	int getDecodedImagesInFlight();
+
+	long getCacheHits();
+
+	boolean isEnabled();
+
+	void reset();
+}
@@ -0,0 +1,335 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Store keeping the pixels of decoded images in direct ByteBuffers,
+ * outside of the Java heap: the heap only holds a small descriptor
+ * per image, so heap usage and GC pauses do not grow with the number
+ * of stored images. Images are copied back in a heap raster taken
+ * from the ImagePool when requested, since ImageIO and the grayscale
+ * kernels work on byte arrays. Buffers of evicted and removed images
+ * are reused by the next images of the same size class, buffers in
+ * use or free are all accounted in the budget.
+ * Direct memory is limited by -XX:MaxDirectMemorySize, equal to the
+ * maximum heap by default: raise it for budgets bigger than the heap.
+ */
+public class OffHeapImageStore implements ImageStore {
+
+	static long DEFAULT_MAX_STORED_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+	public OffHeapImageStore()
+	{
+		this(DEFAULT_MAX_STORED_BYTES);
+	}
+
+	public OffHeapImageStore(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<String, StoredImage>(16, 0.75f, true);
+		this.freeBuffers = new HashMap<Integer, ArrayList<ByteBuffer>>();
+		this.imagePool = ImagePool.getImagePool();
+		this.usedBytes = 0;
+		this.allocatedBytes = 0;
+		this.hits = 0;
+		this.misses = 0;
+		this.evictions = 0;
+	}
+
+	/**
+	 * Retrieve a stored image, copying its pixels in a heap
+	 * image that can be given back to the ImagePool
+	 *
+	 * @param path: absolute path of the image
+	 * @return		a copy of the image, null on a miss
+	 */
+	@Override
+	public synchronized BufferedImage get(String path)
+	{
+		StoredImage stored = this.entries.get(path);
+		if (stored == null) {
+			this.misses++;
+			return null;
+		}
+
+		this.hits++;
+		return this.copyOut(stored);
+	}
+
+	/**
+	 * Copy the pixels of an image off heap. Only images with
+	 * a type supported by the ImagePool can be stored
+	 *
+	 * @param path: 	absolute path of the image
+	 * @param image: 	decoded image, not referenced by the store
+	 * @return			true if the image has been stored
+	 */
+	@Override
+	public synchronized boolean put(String path, BufferedImage image)
+	{
+		this.free(this.entries.remove(path));
+
+		if (!ImagePool.supports(image.getType())) {
+			return false;
+		}
+
+		WritableRaster raster = image.getRaster();
+		int rowBytes = image.getWidth() * raster.getNumBands();
+		long size = (long) rowBytes * image.getHeight();
+		if (size > Integer.MAX_VALUE || ImagePool.sizeClass((int) size) > this.maxBytes) {
+			this.evictions++;
+			return false;
+		}
+
+		ByteBuffer buffer = this.allocate((int) size);
+
+		// Rows of sub-images and pooled images may not be contiguous
+		ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+		int offset = GrayscaleKernel.pixelOffset(image);
+		byte[] data = GrayscaleKernel.byteData(image);
+		if (sm.getScanlineStride() == rowBytes) {
+			buffer.put(data, offset, (int) size);
+		}
+		else {
+			for (int y = 0; y < image.getHeight(); y++) {
+				buffer.put(data, offset + y * sm.getScanlineStride(), rowBytes);
+			}
+		}
+		buffer.flip();
+
+		this.entries.put(path, new StoredImage(image.getType(), image.getWidth(), image.getHeight(), buffer));
+		this.usedBytes += buffer.capacity();
+		return true;
+	}
+
+	@Override
+	public boolean store(String path, BufferedImage image)
+	{
+		boolean stored = this.put(path, image);
+		this.imagePool.release(image);
+		return stored;
+	}
+
+	/**
+	 * Remove an image, releasing its off heap buffer
+	 *
+	 * @param path: absolute path of the image
+	 * @return		a copy of the removed image, null if not stored
+	 */
+	@Override
+	public synchronized BufferedImage remove(String path)
+	{
+		StoredImage stored = this.entries.remove(path);
+		if (stored == null) {
+			return null;
+		}
+
+		BufferedImage image = this.copyOut(stored);
+		this.free(stored);
+		return image;
+	}
+
+	@Override
+	public synchronized boolean setMaxBytes(long maxBytes)
+	{
+		if (maxBytes < 0) {
+			System.out.println("Invalid store size");
+			return false;
+		}
+
+		this.maxBytes = maxBytes;
+		this.evict(0);
+		this.trimFreeBuffers(0);
+		return true;
+	}
+
+	/**
+	 * Drop all the images and their buffers, which
+	 * are reclaimed by the next garbage collection
+	 */
+	@Override
+	public synchronized void clear()
+	{
+		this.entries.clear();
+		this.freeBuffers.clear();
+		this.usedBytes = 0;
+		this.allocatedBytes = 0;
+	}
+
+	@Override
+	public synchronized ArrayList<String> getPaths()
+	{
+		return new ArrayList<String>(this.entries.keySet());
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized long getMaxBytes()
+	{
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return	off heap bytes of the stored images
+	 */
+	@Override
+	public synchronized long getUsedBytes()
+	{
+		return this.usedBytes;
+	}
+
+	/**
+	 * @return	off heap bytes of the stored images and of the free buffers
+	 */
+	public synchronized long getAllocatedBytes()
+	{
+		return this.allocatedBytes;
+	}
+
+	@Override
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+
+	@Override
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+
+	@Override
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+
+	/**
+	 * Retrieve a buffer for the requested size, evicting the least
+	 * recently used images and dropping free buffers of other size
+	 * classes until it fits in the budget
+	 */
+	private ByteBuffer allocate(int size)
+	{
+		int sizeClass = ImagePool.sizeClass(size);
+		this.evict(sizeClass);
+
+		ByteBuffer buffer = this.pollFreeBuffer(sizeClass);
+		if (buffer == null) {
+			this.trimFreeBuffers(sizeClass);
+			buffer = ByteBuffer.allocateDirect(sizeClass);
+			this.allocatedBytes += sizeClass;
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Evict the least recently used images until the
+	 * requested bytes fit in the budget with the stored ones
+	 */
+	private void evict(int bytes)
+	{
+		Iterator<Map.Entry<String, StoredImage>> it = this.entries.entrySet().iterator();
+		while (this.usedBytes + bytes > this.maxBytes && it.hasNext()) {
+			StoredImage stored = it.next().getValue();
+			it.remove();
+			this.free(stored);
+			this.evictions++;
+		}
+	}
+
+	/**
+	 * Drop free buffers until the requested bytes fit in the budget
+	 */
+	private void trimFreeBuffers(int bytes)
+	{
+		Iterator<ArrayList<ByteBuffer>> it = this.freeBuffers.values().iterator();
+		while (this.allocatedBytes + bytes > this.maxBytes && it.hasNext()) {
+			ArrayList<ByteBuffer> free = it.next();
+			while (!free.isEmpty() && this.allocatedBytes + bytes > this.maxBytes) {
+				this.allocatedBytes -= free.remove(free.size() - 1).capacity();
+			}
+			if (free.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	private ByteBuffer pollFreeBuffer(int sizeClass)
+	{
+		ArrayList<ByteBuffer> free = this.freeBuffers.get(sizeClass);
+		if (free == null || free.isEmpty()) {
+			return null;
+		}
+		return free.remove(free.size() - 1);
+	}
+
+	private void free(StoredImage stored)
+	{
+		if (stored == null) {
+			return;
+		}
+
+		this.usedBytes -= stored.data.capacity();
+		ArrayList<ByteBuffer> free = this.freeBuffers.get(stored.data.capacity());
+		if (free == null) {
+			free = new ArrayList<ByteBuffer>();
+			this.freeBuffers.put(stored.data.capacity(), free);
+		}
+		free.add(stored.data);
+	}
+
+	private BufferedImage copyOut(StoredImage stored)
+	{
+		BufferedImage image = this.imagePool.acquire(stored.type, stored.width, stored.height);
+		stored.data.duplicate().get(GrayscaleKernel.byteData(image), 0, stored.data.limit());
+		return image;
+	}
+
+	/**
+	 * Descriptor of an image kept off heap: pixels are
+	 * interleaved rows without padding, as in the standard
+	 * raster of the image type
+	 */
+	private static class StoredImage {
+
+		StoredImage(int type, int width, int height, ByteBuffer data)
+		{
+			this.type = type;
+			this.width = width;
+			this.height = height;
+			this.data = data;
+		}
+
+		int type;				///< BufferedImage type
+		int width;				///< Image width
+		int height;				///< Image height
+		ByteBuffer data;		///< Direct buffer holding the pixels up to its limit
+	}
+
+	private long maxBytes;											///< Budget of the off heap buffers
+	private LinkedHashMap<String, StoredImage> entries;				///< Stored images in access order, eldest first
+	private HashMap<Integer, ArrayList<ByteBuffer>> freeBuffers;	///< Buffers of removed images by size class
+	private ImagePool imagePool;									///< Pool of the heap copies
+	private long usedBytes;											///< Bytes of the buffers of stored images
+	private long allocatedBytes;									///< Bytes of all the allocated buffers
+	private long hits;												///< Lookups served by the store
+	private long misses;											///< Lookups of images not stored
+	private long evictions;											///< Images dropped to stay within the budget
+}
@@ -0,0 +1,99 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Strip consumer converting each strip to grayscale and
+ * appending it to a binary PGM file, so that the gray image
+ * is never held in memory as a whole. Without an output file
+ * strips are converted and discarded.
+ */
+public class PgmStripWriter implements StripConsumer {
+
+	/**
+	 * @param output: 	 destination PGM file, null to discard the gray rows
+	 * @param luminance: true for weighted luminance with gamma expansion,
+	 * 					 false for channels average
+	 */
+	public PgmStripWriter(File output, boolean luminance)
+	{
+		this.output = output;
+		this.luminance = luminance;
+		this.gray = new byte[0];
+		this.strips = 0;
+	}
+
+	@Override
+	public void begin(int width, int height) throws IOException
+	{
+		this.width = width;
+		this.strips = 0;
+		if (this.output == null) {
+			return;
+		}
+
+		this.channel = FileChannel.open(this.output.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		writeFully(ByteBuffer.wrap(GrayImageWriter.pgmHeader(width, height)));
+	}
+
+	@Override
+	public void strip(BufferedImage strip, int yStart, int rows) throws IOException
+	{
+		int size = this.width * rows;
+		if (this.gray.length < size) {
+			this.gray = new byte[size];
+		}
+
+		GrayscaleKernel.convertRows(strip, this.gray, 0, this.width, 0, rows, this.luminance);
+		this.strips++;
+
+		if (this.channel != null) {
+			writeFully(ByteBuffer.wrap(this.gray, 0, size));
+		}
+	}
+
+	@Override
+	public void end() throws IOException
+	{
+		if (this.channel != null) {
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	/**
+	 * @return	number of strips received since the last begin
+	 */
+	public int getStrips()
+	{
+		return this.strips;
+	}
+
+	/**
+	 * @return	bytes of the gray strip buffer, the largest allocation of the writer
+	 */
+	public int getBufferSize()
+	{
+		return this.gray.length;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+	}
+
+	private File output;				///< Destination file, null to discard rows
+	private boolean luminance;			///< True for weighted luminance, false for average
+	private FileChannel channel;		///< Open destination while writing an image
+	private byte[] gray;				///< Gray rows of the current strip, reused across strips
+	private int width;					///< Width of the current image
+	private int strips;					///< Strips received for the current image
+}
@@ -0,0 +1,134 @@
+package jpeg_image_reader;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a pool of the ThreadPool registry. Counters are kept
+ * when the pool is closed and created again, gauges are read from
+ * the current executor
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+	public PoolMetrics()
+	{
+		this.executor = null;
+		this.failed = new LongAdder();
+		this.wait = new LatencyHistogram();
+		this.run = new LatencyHistogram();
+	}
+
+	/**
+	 * @param executor: executor of the pool, read by the gauges
+	 */
+	void setExecutor(ThreadPoolExecutor executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * @param nanos: time spent by a task in the queue
+	 */
+	void recordWait(long nanos)
+	{
+		this.wait.record(nanos);
+	}
+
+	/**
+	 * @param nanos: 	running time of a task
+	 * @param failed: 	true if the task threw
+	 */
+	void recordRun(long nanos, boolean failed)
+	{
+		this.run.record(nanos);
+		if (failed) {
+			this.failed.increment();
+		}
+	}
+
+	public LatencyHistogram getWait()
+	{
+		return this.wait;
+	}
+
+	public LatencyHistogram getRun()
+	{
+		return this.run;
+	}
+
+	@Override
+	public int getQueueDepth()
+	{
+		ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	@Override
+	public int getActiveThreads()
+	{
+		ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	@Override
+	public int getPoolSize()
+	{
+		ThreadPoolExecutor executor = this.executor;
+		return executor == null ? 0 : executor.getPoolSize();
+	}
+
+	@Override
+	public long getCompletedTasks()
+	{
+		return this.run.getCount();
+	}
+
+	@Override
+	public long getFailedTasks()
+	{
+		return this.failed.sum();
+	}
+
+	@Override
+	public long getMeanWaitMicros()
+	{
+		return this.wait.getMeanNanos() / 1000;
+	}
+
+	@Override
+	public long getP99WaitMicros()
+	{
+		return this.wait.getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public long getMaxWaitMicros()
+	{
+		return this.wait.getMaxNanos() / 1000;
+	}
+
+	@Override
+	public long getMeanRunMicros()
+	{
+		return this.run.getMeanNanos() / 1000;
+	}
+
+	@Override
+	public long getP99RunMicros()
+	{
+		return this.run.getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public void reset()
+	{
+		this.wait.reset();
+		this.run.reset();
+		this.failed.reset();
+	}
+
+	private volatile ThreadPoolExecutor executor;	///< Current executor of the pool, null before its creation
+	private LongAdder failed;						///< Tasks that threw
+	private LatencyHistogram wait;					///< Time spent by tasks in the queue
+	private LatencyHistogram run;					///< Running time of the tasks
+}
@@ -0,0 +1,31 @@
+package jpeg_image_reader;
+
+/**
+ * JMX view of a thread pool: current load and time spent
+ * by tasks waiting in the queue and running. Durations are
+ * in microseconds
+ */
+public interface PoolMetricsMBean {
+
+	int getQueueDepth();
+
+	int getActiveThreads();
+
+	int getPoolSize();
+
+	long getCompletedTasks();
+
+	long getFailedTasks();
+
+	long getMeanWaitMicros();
+
+	long getP99WaitMicros();
+
+	long getMaxWaitMicros();
+
+	long getMeanRunMicros();
+
+	long getP99RunMicros();
+
+	void reset();
+}
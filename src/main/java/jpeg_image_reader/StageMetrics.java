@@ -0,0 +1,99 @@
+package jpeg_image_reader;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histogram of a processing stage
+ * (file read, decode, grayscale conversion or write)
+ */
+public class StageMetrics implements StageMetricsMBean {
+
+	public StageMetrics()
+	{
+		this.errors = new LongAdder();
+		this.bytes = new LongAdder();
+		this.latency = new LatencyHistogram();
+	}
+
+	/**
+	 * Record an operation of the stage
+	 *
+	 * @param nanos: duration of the operation
+	 * @param bytes: bytes read, decoded, converted or written
+	 */
+	public void record(long nanos, long bytes)
+	{
+		this.latency.record(nanos);
+		this.bytes.add(bytes);
+	}
+
+	public void error()
+	{
+		this.errors.increment();
+	}
+
+	public LatencyHistogram getLatency()
+	{
+		return this.latency;
+	}
+
+	@Override
+	public long getCount()
+	{
+		return this.latency.getCount();
+	}
+
+	@Override
+	public long getErrors()
+	{
+		return this.errors.sum();
+	}
+
+	@Override
+	public long getBytes()
+	{
+		return this.bytes.sum();
+	}
+
+	@Override
+	public long getTotalMillis()
+	{
+		return this.latency.getTotalNanos() / 1000000;
+	}
+
+	@Override
+	public long getMeanMicros()
+	{
+		return this.latency.getMeanNanos() / 1000;
+	}
+
+	@Override
+	public long getP50Micros()
+	{
+		return this.latency.getPercentileNanos(50) / 1000;
+	}
+
+	@Override
+	public long getP99Micros()
+	{
+		return this.latency.getPercentileNanos(99) / 1000;
+	}
+
+	@Override
+	public long getMaxMicros()
+	{
+		return this.latency.getMaxNanos() / 1000;
+	}
+
+	@Override
+	public void reset()
+	{
+		this.latency.reset();
+		this.errors.reset();
+		this.bytes.reset();
+	}
+
+	private LongAdder errors;				///< Failed operations
+	private LongAdder bytes;				///< Bytes processed by the stage
+	private LatencyHistogram latency;		///< Duration of the operations
+}
@@ -0,0 +1,26 @@
+package jpeg_image_reader;
+
+/**
+ * JMX view of the metrics of a processing stage.
+ * Durations are in microseconds
+ */
+public interface StageMetricsMBean {
+
+	long getCount();
+
+	long getErrors();
+
+	long getBytes();
+
+	long getTotalMillis();
+
+	long getMeanMicros();
+
+	long getP50Micros();
+
+	long getP99Micros();
+
+	long getMaxMicros();
+
+	void reset();
+}
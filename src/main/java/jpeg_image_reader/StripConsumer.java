@@ -0,0 +1,36 @@
+package jpeg_image_reader;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Receiver of an image decoded strip by strip with
+ * ImageDecoder.decodeStrips. Strips are delivered top
+ * to bottom, in the same reused BufferedImage.
+ */
+public interface StripConsumer {
+
+	/**
+	 * Called before the first strip
+	 *
+	 * @param width: 	width of the whole image
+	 * @param height: 	height of the whole image
+	 */
+	void begin(int width, int height) throws IOException;
+
+	/**
+	 * Called for each decoded strip. The strip image is
+	 * overwritten by the next strip and must not be kept
+	 *
+	 * @param strip: 	image containing the strip in its first rows
+	 * @param yStart: 	image row of the first strip row
+	 * @param rows: 	number of valid rows in the strip image
+	 */
+	void strip(BufferedImage strip, int yStart, int rows) throws IOException;
+
+	/**
+	 * Called after the last strip, or when decoding
+	 * fails after begin, to release resources
+	 */
+	void end() throws IOException;
+}
@@ -1,36 +1,129 @@
 package jpeg_image_reader;
 
 import java.awt.image.BufferedImage;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Registry of fixed thread pools, one per kind of work, so that
+ * threads blocked on file reads never take the place of CPU-bound
+ * decode and processing tasks. A pool that has been closed is
+ * created again the next time it is requested. Queue wait and
+ * run time of the tasks are recorded in the PoolMetrics of the type.
+ */
 public class ThreadPool {
-	static int DEFAULT_THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors() - 2;
 	
-	private ThreadPool() 
+	enum PoolType {
+		IO,				///< Blocking file reads and simulated storage latency
+		DECODE,			///< Jpeg decoding
+		PROCESSING,		///< Grayscale conversion and other image processing
+		ENCODE,			///< Jpeg encoding and output file writes
+	};
+	
+	static int DEFAULT_IO_POOL_SIZE = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	static int DEFAULT_DECODE_POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+	static int DEFAULT_PROCESSING_POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+	static int DEFAULT_ENCODE_POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
+	
+	private ThreadPool(PoolType type) 
 	{
-		this.pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(DEFAULT_THREAD_POOL_SIZE);
-		this.pool.setMaximumPoolSize(DEFAULT_THREAD_POOL_SIZE);
+		int size = defaultSize(type);
+		this.type = type;
+		this.pool = new InstrumentedThreadPoolExecutor(size, new PoolThreadFactory(type), Metrics.getMetrics().getPool(type));
 		this.pool.prestartAllCoreThreads();
 	}
 	
 	/**
-	 * Singleton constructor
+	 * Singleton constructor, returns the processing pool
 	 * 
 	 * @return the instance of ThreadPool
 	 */
     public static ThreadPool getThreadPool() 
     { 
-    	if (instance == null) { 
-    		instance = new ThreadPool(); 
+        return getThreadPool(PoolType.PROCESSING); 
+    }
+    
+    /**
+     * Retrieve the pool for the requested kind of work,
+     * creating it if missing or previously closed
+     * 
+     * @param type: kind of work executed by the pool
+     * @return		the instance of ThreadPool
+     */
+    public static synchronized ThreadPool getThreadPool(PoolType type) 
+    { 
+    	ThreadPool instance = instances.get(type);
+    	if (instance == null || instance.pool.isShutdown()) { 
+    		instance = new ThreadPool(type);
+    		instances.put(type, instance);
     	}
     	
         return instance; 
     }
     
+    /**
+     * Shutdown all the pools, waiting for the submitted tasks.
+     * Pools requested afterwards are created again
+     */
+    public static void closeAll()
+    {
+    	ArrayList<ThreadPool> pools = null;
+    	synchronized (ThreadPool.class) {
+    		pools = new ArrayList<ThreadPool>(instances.values());
+    		instances.clear();
+    	}
+    	
+    	for (ThreadPool p : pools) {
+    		p.closePool();
+    	}
+    	for (ThreadPool p : pools) {
+    		p.waitTermination();
+    	}
+    }
+    
+    /**
+     * Create an unstarted virtual thread. Virtual threads are
+     * looked up at runtime, so that the application still runs
+     * on JDKs without them
+     * 
+     * @param r: 	task run by the thread
+     * @param name: thread name
+     * @return		the unstarted thread, null if virtual
+     * 				threads are not available
+     */
+    public static Thread newVirtualThread(Runnable r, String name)
+    {
+    	if (virtualBuilder == null) {
+    		return null;
+    	}
+    	
+    	try {
+    		Object builder = virtualName.invoke(virtualBuilder.invoke(null), name);
+    		return (Thread) virtualUnstarted.invoke(builder, r);
+    	} catch (ReflectiveOperationException e) {
+    		e.printStackTrace();
+    		return null;
+    	}
+    }
+    
+    public static boolean isVirtualThreadSupported()
+    {
+    	return virtualBuilder != null;
+    }
+    
+    public PoolType getType()
+    {
+    	return this.type;
+    }
+    
     /**
      * Method to wait for thread in pool to terminate
      * 
@@ -52,10 +145,29 @@ public class ThreadPool {
     
     public int getPoolSize()
 	{
-		System.out.println(this.pool.getPoolSize());
 		return this.pool.getPoolSize();
 	}
     
+    /**
+     * @return	queue wait and run time of the tasks of the pool,
+     * 			kept when the pool is created again
+     */
+    public PoolMetrics getMetrics()
+    {
+    	return Metrics.getMetrics().getPool(this.type);
+    }
+    
+    /**
+     * Expose the pool as an Executor, e.g. to
+     * run CompletableFuture stages on it
+     * 
+     * @return	the pool executor
+     */
+    public Executor getExecutor()
+    {
+    	return this.pool;
+    }
+    
     /**
      * This method can be used to submit 
      * a Runnable to the pool
@@ -113,7 +225,16 @@ public class ThreadPool {
 			return false;
 		}
 		
-		this.pool.setCorePoolSize(size);
+		// Core size cannot exceed the maximum one, and vice versa
+		if (size > this.pool.getMaximumPoolSize()) {
+			this.pool.setMaximumPoolSize(size);
+			this.pool.setCorePoolSize(size);
+		}
+		else {
+			this.pool.setCorePoolSize(size);
+			this.pool.setMaximumPoolSize(size);
+		}
+		this.pool.prestartAllCoreThreads();
 		return true;
 	}
 	
@@ -128,6 +249,61 @@ public class ThreadPool {
 		return true;
 	}
 	
+	private static int defaultSize(PoolType type)
+	{
+		switch (type) {
+			case IO:
+				return DEFAULT_IO_POOL_SIZE;
+			case DECODE:
+				return DEFAULT_DECODE_POOL_SIZE;
+			case ENCODE:
+				return DEFAULT_ENCODE_POOL_SIZE;
+			default:
+				return DEFAULT_PROCESSING_POOL_SIZE;
+		}
+	}
+	
+	/**
+	 * Name pool threads after the pool type, e.g. "io-pool-1"
+	 */
+	private static class PoolThreadFactory implements ThreadFactory {
+		
+		PoolThreadFactory(PoolType type)
+		{
+			this.prefix = type.name().toLowerCase() + "-pool-";
+		}
+		
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, this.prefix + this.count.incrementAndGet());
+		}
+		
+		private String prefix;										///< Name of the pool threads
+		private AtomicInteger count = new AtomicInteger(0);		///< Threads created so far
+	}
+	
+	private static Method virtualBuilder;			///< Thread.ofVirtual(), null if not available or not usable
+	private static Method virtualName;				///< Thread.Builder.name(String)
+	private static Method virtualUnstarted;			///< Thread.Builder.unstarted(Runnable)
+	
+	static {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			virtualName = builderClass.getMethod("name", String.class);
+			virtualUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+			virtualBuilder = Thread.class.getMethod("ofVirtual");
+			
+			// Probe once: on JDK 19 and 20 the methods exist but
+			// fail at runtime unless preview features are enabled
+			Object builder = virtualName.invoke(virtualBuilder.invoke(null), "virtual-probe");
+			virtualUnstarted.invoke(builder, (Runnable) () -> {});
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			virtualBuilder = null;
+		}
+	}
+	
 	private ThreadPoolExecutor pool;				///< Thread pool to handle parallel image loading
-    private static ThreadPool instance = null; 		///< To implement Singleton constructor
+	private PoolType type;							///< Kind of work executed by the pool
+    private static EnumMap<PoolType, ThreadPool> instances = new EnumMap<PoolType, ThreadPool>(PoolType.class); 		///< One instance per pool type
 }
@@ -0,0 +1,133 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Validity of the cache entries: an entry is only used for the
+ * source version and target size it has been written for, and
+ * broken entries are deleted when found
+ */
+public class DiskImageCacheTest {
+
+	static long MODIFIED = 1600000000000L;
+
+	@TempDir
+	Path folder;
+
+	@BeforeEach
+	public void createSource() throws IOException
+	{
+		this.cacheDir = Files.createDirectory(this.folder.resolve("cache")).toFile();
+		this.source = this.folder.resolve("image.jpg").toFile();
+		Files.write(this.source.toPath(), new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+		assertTrue(this.source.setLastModified(MODIFIED));
+
+		this.cache = new DiskImageCache(this.cacheDir);
+		this.image = new BufferedImage(37, 23, BufferedImage.TYPE_3BYTE_BGR);
+		Random random = new Random(42);
+		random.nextBytes(GrayscaleKernel.byteData(this.image));
+		assertTrue(this.cache.save(new DiskImageCache.SourceVersion(this.source.getPath()), 0, 0, this.image));
+	}
+
+	@Test
+	public void unchangedSourceHits()
+	{
+		BufferedImage cached = this.cache.load(this.source.getPath(), 0, 0);
+		assertNotNull(cached);
+		assertEquals(this.image.getType(), cached.getType());
+		assertEquals(this.image.getWidth(), cached.getWidth());
+		assertEquals(this.image.getHeight(), cached.getHeight());
+		byte[] expected = GrayscaleKernel.byteData(this.image);
+		byte[] actual = new byte[expected.length];
+		System.arraycopy(GrayscaleKernel.byteData(cached), 0, actual, 0, actual.length);
+		assertArrayEquals(expected, actual);
+		assertEquals(1, this.cache.getHits());
+	}
+
+	@Test
+	public void changedModificationTimeInvalidates()
+	{
+		assertTrue(this.source.setLastModified(MODIFIED + 2000));
+		assertStale();
+	}
+
+	@Test
+	public void changedSizeInvalidates() throws IOException
+	{
+		Files.write(this.source.toPath(), new byte[] {9}, StandardOpenOption.APPEND);
+		assertTrue(this.source.setLastModified(MODIFIED));
+		assertStale();
+	}
+
+	@Test
+	public void otherTargetSizeMisses()
+	{
+		assertNull(this.cache.load(this.source.getPath(), 16, 16));
+		assertEquals(1, this.cache.getMisses());
+		assertEquals(0, this.cache.getInvalidations());
+		assertNotNull(this.cache.load(this.source.getPath(), 0, 0));
+	}
+
+	@Test
+	public void truncatedEntryIsDeleted() throws IOException
+	{
+		File entry = this.entry();
+		try (RandomAccessFile file = new RandomAccessFile(entry, "rw")) {
+			file.setLength(file.length() - 10);
+		}
+
+		assertNull(this.cache.load(this.source.getPath(), 0, 0));
+		assertFalse(entry.exists());
+		assertEquals(1, this.cache.getInvalidations());
+	}
+
+	@Test
+	public void versionTakenBeforeChangeIsStale() throws IOException
+	{
+		// The source changes between the version and the write of the entry
+		DiskImageCache.SourceVersion version = new DiskImageCache.SourceVersion(this.source.getPath());
+		Files.write(this.source.toPath(), new byte[] {9, 9}, StandardOpenOption.APPEND);
+		assertTrue(this.cache.save(version, 0, 0, this.image));
+		assertStale();
+	}
+
+	private void assertStale()
+	{
+		File entry = this.entry();
+		assertNull(this.cache.load(this.source.getPath(), 0, 0));
+		assertFalse(entry.exists());
+		assertEquals(1, this.cache.getInvalidations());
+		assertEquals(0, this.cache.getHits());
+	}
+
+	private File entry()
+	{
+		File[] entries = this.cacheDir.listFiles((dir, name) -> name.endsWith(DiskImageCache.ENTRY_SUFFIX));
+		assertNotNull(entries);
+		assertEquals(1, entries.length);
+		return entries[0];
+	}
+
+	private File cacheDir;				///< Folder of the entries
+	private File source;				///< Source file of the entry
+	private DiskImageCache cache;		///< Cache holding the entry of source
+	private BufferedImage image;		///< Image stored for source
+}
@@ -0,0 +1,175 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Handoff between producers and consumers parking on the queue:
+ * items offered before the close are delivered, parked consumers
+ * are woken up by items and by the close, nothing is lost or duplicated
+ */
+public class HandoffQueueTest {
+
+	static Duration TIMEOUT = Duration.ofSeconds(10);
+	static int PRODUCERS = 4;
+	static int CONSUMERS = 4;
+	static int ITEMS_PER_PRODUCER = 20000;
+
+	@Test
+	public void itemsOfferedBeforeCloseAreDelivered() throws InterruptedException
+	{
+		HandoffQueue<Integer> queue = new HandoffQueue<Integer>();
+		queue.offer(1);
+		queue.offer(2);
+		queue.close();
+
+		assertEquals(2, queue.size());
+		assertFalse(queue.isDrained());
+		assertEquals(1, queue.take());
+		assertEquals(2, queue.take());
+		assertNull(queue.take());
+		assertTrue(queue.isDrained());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void takeIsWokenUpByOffer()
+	{
+		HandoffQueue<String> queue = new HandoffQueue<String>();
+		assertTimeoutPreemptively(TIMEOUT, () -> {
+			Thread producer = new Thread(() -> {
+				sleep(100);
+				queue.offer("item");
+			});
+			producer.start();
+			assertEquals("item", queue.take());
+			producer.join();
+		});
+	}
+
+	@Test
+	public void awaitCloseIsWokenUpByClose()
+	{
+		HandoffQueue<String> queue = new HandoffQueue<String>();
+		assertTimeoutPreemptively(TIMEOUT, () -> {
+			CountDownLatch closed = new CountDownLatch(1);
+			Thread waiter = new Thread(() -> {
+				try {
+					queue.awaitClose();
+					closed.countDown();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			});
+			waiter.start();
+			sleep(100);
+			assertEquals(1, closed.getCount());
+			queue.close();
+			waiter.join();
+			assertEquals(0, closed.getCount());
+		});
+	}
+
+	@Test
+	public void closeWakesUpAllParkedConsumers()
+	{
+		HandoffQueue<String> queue = new HandoffQueue<String>();
+		assertTimeoutPreemptively(TIMEOUT, () -> {
+			AtomicInteger ended = new AtomicInteger(0);
+			ArrayList<Thread> consumers = new ArrayList<Thread>();
+			for (int i = 0; i < CONSUMERS; i++) {
+				Thread consumer = new Thread(() -> {
+					try {
+						if (queue.take() == null) {
+							ended.incrementAndGet();
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				});
+				consumer.start();
+				consumers.add(consumer);
+			}
+
+			sleep(100);
+			queue.close();
+			for (Thread consumer : consumers) {
+				consumer.join();
+			}
+			assertEquals(CONSUMERS, ended.get());
+		});
+	}
+
+	@Test
+	public void producersAndConsumersDrainWithoutLossOrDuplicates()
+	{
+		HandoffQueue<Integer> queue = new HandoffQueue<Integer>();
+		assertTimeoutPreemptively(TIMEOUT, () -> {
+			ConcurrentLinkedQueue<Integer> taken = new ConcurrentLinkedQueue<Integer>();
+			ArrayList<Thread> consumers = new ArrayList<Thread>();
+			for (int i = 0; i < CONSUMERS; i++) {
+				Thread consumer = new Thread(() -> {
+					try {
+						Integer item = null;
+						while ((item = queue.take()) != null) {
+							taken.add(item);
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				});
+				consumer.start();
+				consumers.add(consumer);
+			}
+
+			ArrayList<Thread> producers = new ArrayList<Thread>();
+			for (int p = 0; p < PRODUCERS; p++) {
+				int first = p * ITEMS_PER_PRODUCER;
+				Thread producer = new Thread(() -> {
+					for (int i = 0; i < ITEMS_PER_PRODUCER; i++) {
+						queue.offer(first + i);
+					}
+				});
+				producer.start();
+				producers.add(producer);
+			}
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			queue.close();
+			for (Thread consumer : consumers) {
+				consumer.join();
+			}
+
+			int total = PRODUCERS * ITEMS_PER_PRODUCER;
+			boolean[] seen = new boolean[total];
+			for (int item : taken) {
+				assertFalse(seen[item], "item " + item + " taken twice");
+				seen[item] = true;
+			}
+			assertEquals(total, taken.size());
+			assertTrue(queue.isDrained());
+			assertEquals(0, queue.size());
+		});
+	}
+
+	private static void sleep(long millis)
+	{
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Least recently used eviction of the heap cache and
+ * accounting of its bytes, hits, misses and evictions
+ */
+public class ImageCacheTest {
+
+	static int IMAGE_BYTES = 100 * 100;
+
+	@Test
+	public void leastRecentlyUsedIsEvicted()
+	{
+		ImageCache cache = new ImageCache(3L * IMAGE_BYTES);
+		cache.put("a", image());
+		cache.put("b", image());
+		cache.put("c", image());
+		assertEquals(3L * IMAGE_BYTES, cache.getUsedBytes());
+
+		// Reading a makes b the eldest
+		cache.get("a");
+		cache.put("d", image());
+		assertEquals(Arrays.asList("c", "a", "d"), cache.getPaths());
+		assertNull(cache.get("b"));
+		assertEquals(3L * IMAGE_BYTES, cache.getUsedBytes());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void replaceAndRemoveKeepUsedBytes()
+	{
+		ImageCache cache = new ImageCache(10L * IMAGE_BYTES);
+		BufferedImage first = image();
+		cache.put("a", first);
+		cache.put("a", new BufferedImage(200, 100, BufferedImage.TYPE_BYTE_GRAY));
+		assertEquals(2L * IMAGE_BYTES, cache.getUsedBytes());
+		assertEquals(1, cache.size());
+
+		cache.put("b", first);
+		assertSame(first, cache.remove("b"));
+		assertNull(cache.remove("b"));
+		assertEquals(2L * IMAGE_BYTES, cache.getUsedBytes());
+		assertEquals(0, cache.getHits() + cache.getMisses());
+
+		cache.clear();
+		assertEquals(0, cache.getUsedBytes());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void imageLargerThanBudgetIsNotCached()
+	{
+		ImageCache cache = new ImageCache(IMAGE_BYTES - 1);
+		assertFalse(cache.put("a", image()));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getUsedBytes());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void smallerBudgetEvicts()
+	{
+		ImageCache cache = new ImageCache(4L * IMAGE_BYTES);
+		for (String path : new String[] {"a", "b", "c", "d"}) {
+			assertTrue(cache.put(path, image()));
+		}
+		assertFalse(cache.setMaxBytes(-1));
+		assertTrue(cache.setMaxBytes(2L * IMAGE_BYTES));
+		assertEquals(Arrays.asList("c", "d"), cache.getPaths());
+		assertEquals(2L * IMAGE_BYTES, cache.getUsedBytes());
+		assertEquals(2, cache.getEvictions());
+	}
+
+	@Test
+	public void pooledArraysAreCountedWhole()
+	{
+		// A pooled image may sit on an array longer than its pixels
+		BufferedImage pooled = new ImagePool(1L << 20).acquire(BufferedImage.TYPE_BYTE_GRAY, 99, 100);
+		assertEquals(GrayscaleKernel.byteData(pooled).length, ImageCache.sizeOf(pooled));
+		assertTrue(ImageCache.sizeOf(pooled) >= 99 * 100);
+	}
+
+	private static BufferedImage image()
+	{
+		return new BufferedImage(100, 100, BufferedImage.TYPE_BYTE_GRAY);
+	}
+}
@@ -0,0 +1,115 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Size class arithmetic, reuse of released buffers within
+ * the byte budget and type of the pooled images
+ */
+public class ImagePoolTest {
+
+	static int[] TYPES = {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR};
+
+	@Test
+	public void sizeClassesRoundTrip()
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			int size = i < 70000 ? i + 1 : 1 + random.nextInt(Integer.MAX_VALUE / 2);
+			int sizeClass = ImagePool.sizeClass(size);
+			assertTrue(sizeClass >= size, "class " + sizeClass + " below " + size);
+			// An array allocated for the class is released in the same class
+			assertEquals(sizeClass, ImagePool.floorClass(sizeClass), "size " + size);
+			assertTrue(ImagePool.floorClass(sizeClass) >= size, "size " + size);
+			// At most a quarter of the array is wasted above the smallest class
+			if (size > ImagePool.MIN_ARRAY_SIZE) {
+				assertTrue(sizeClass - size < sizeClass / ImagePool.SUB_CLASSES + 1, "size " + size);
+			}
+		}
+	}
+
+	@Test
+	public void floorClassNeverExceedsLength()
+	{
+		assertEquals(-1, ImagePool.floorClass(ImagePool.MIN_ARRAY_SIZE - 1));
+		for (int length = ImagePool.MIN_ARRAY_SIZE; length < 1 << 20; length += 97) {
+			int floor = ImagePool.floorClass(length);
+			assertTrue(floor <= length, "length " + length);
+			assertEquals(floor, ImagePool.sizeClass(floor), "length " + length);
+		}
+	}
+
+	@Test
+	public void releasedImagesAreReused()
+	{
+		ImagePool pool = new ImagePool(64L << 20);
+		BufferedImage image = pool.acquire(BufferedImage.TYPE_3BYTE_BGR, 640, 480);
+		pool.release(image);
+		assertEquals(GrayscaleKernel.byteData(image).length, pool.getPooledBytes());
+
+		// Same size returns the same image, a slightly smaller one its array
+		assertSame(image, pool.acquire(BufferedImage.TYPE_3BYTE_BGR, 640, 480));
+		pool.release(image);
+		BufferedImage smaller = pool.acquire(BufferedImage.TYPE_3BYTE_BGR, 639, 480);
+		assertNotSame(image, smaller);
+		assertSame(GrayscaleKernel.byteData(image), GrayscaleKernel.byteData(smaller));
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(2, pool.getHits());
+
+		byte[] data = pool.acquireBytes(100000);
+		pool.releaseBytes(data);
+		assertSame(data, pool.acquireBytes(100000));
+	}
+
+	@Test
+	public void releasesBeyondBudgetAreDropped()
+	{
+		int size = 1 << 16;
+		ImagePool pool = new ImagePool(3L * size);
+		byte[][] arrays = new byte[4][];
+		for (int i = 0; i < arrays.length; i++) {
+			arrays[i] = pool.acquireBytes(size);
+			assertEquals(size, arrays[i].length);
+		}
+		for (byte[] data : arrays) {
+			pool.releaseBytes(data);
+			assertTrue(pool.getPooledBytes() <= 3L * size);
+		}
+		assertEquals(3L * size, pool.getPooledBytes());
+
+		for (int i = 0; i < 3; i++) {
+			pool.acquireBytes(size);
+		}
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(3, pool.getHits());
+		pool.acquireBytes(size);
+		assertEquals(5, pool.getMisses());
+	}
+
+	@Test
+	public void pooledImagesKeepTheirType()
+	{
+		ImagePool pool = new ImagePool(64L << 20);
+		for (int type : TYPES) {
+			BufferedImage image = pool.acquire(type, 123, 45);
+			assertEquals(type, image.getType());
+			assertEquals(123, image.getWidth());
+			assertEquals(45, image.getHeight());
+			pool.release(image);
+
+			// A smaller image of the same class wraps the released array
+			BufferedImage wrapped = pool.acquire(type, 120, 45);
+			assertEquals(type, wrapped.getType());
+			assertEquals(120, wrapped.getWidth());
+			pool.release(wrapped);
+		}
+	}
+}
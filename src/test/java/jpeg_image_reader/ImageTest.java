@@ -0,0 +1,126 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Gamma-correct luminance of the lookup tables compared to
+ * the per-pixel Math.pow computation it replaces
+ */
+public class ImageTest {
+
+	static int MAX_LEVEL_ERROR = 1;
+
+	@AfterEach
+	public void restoreParameters()
+	{
+		Image.GAMMA = 2.2;
+		Image.R_COEFF = 0.2126;
+		Image.G_COEFF = 0.7152;
+		Image.B_COEFF = 0.0722;
+	}
+
+	@Test
+	public void tablesMatchPowOnColorCube()
+	{
+		GammaTables tables = new GammaTables(2.2, 0.2126, 0.7152, 0.0722);
+		assertMaxError(tables, 2.2, 0.2126, 0.7152, 0.0722, 1);
+	}
+
+	@Test
+	public void tablesMatchPowForOtherParameters()
+	{
+		double[][] parameters = {
+			{1.0, 0.2126, 0.7152, 0.0722},
+			{1.8, 0.299, 0.587, 0.114},
+			{2.4, 0.2126, 0.7152, 0.0722},
+			{2.2, 1.0 / 3, 1.0 / 3, 1.0 / 3},
+			{3.0, 0.5, 0.25, 0.25},
+		};
+		for (double[] p : parameters) {
+			assertMaxError(new GammaTables(p[0], p[1], p[2], p[3]), p[0], p[1], p[2], p[3], 3);
+		}
+	}
+
+	@Test
+	public void conversionMatchesPowOnImage()
+	{
+		Random random = new Random(42);
+		BufferedImage source = new BufferedImage(97, 61, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < source.getHeight(); y++) {
+			for (int x = 0; x < source.getWidth(); x++) {
+				source.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+
+		double[] gammas = {1.8, 2.2, 2.4};
+		for (double gamma : gammas) {
+			Image.GAMMA = gamma;
+			BufferedImage expected = referenceConversion(source);
+			BufferedImage actual = new Image(source).grayscaleConversionAlt();
+			byte[] expectedData = ((DataBufferByte) expected.getRaster().getDataBuffer()).getData();
+			byte[] actualData = ((DataBufferByte) actual.getRaster().getDataBuffer()).getData();
+			assertEquals(expectedData.length, actualData.length);
+			for (int i = 0; i < expectedData.length; i++) {
+				int expectedLevel = expected.getRGB(i % source.getWidth(), i / source.getWidth()) & 0xFF;
+				int actualLevel = actual.getRGB(i % source.getWidth(), i / source.getWidth()) & 0xFF;
+				assertTrue(Math.abs(expectedLevel - actualLevel) <= MAX_LEVEL_ERROR,
+						"gamma " + gamma + " pixel " + i + ": " + actualLevel + " instead of " + expectedLevel);
+			}
+		}
+	}
+
+	/**
+	 * Compare the tables with Math.pow on the colors whose channels
+	 * are multiples of step, 255 included
+	 */
+	private static void assertMaxError(GammaTables tables, double gamma, double rCoeff, double gCoeff, double bCoeff, int step)
+	{
+		int maxError = 0;
+		for (int r = 0; r < 256 + step - 1; r += step) {
+			for (int g = 0; g < 256 + step - 1; g += step) {
+				for (int b = 0; b < 256 + step - 1; b += step) {
+					int rc = Math.min(r, 255);
+					int gc = Math.min(g, 255);
+					int bc = Math.min(b, 255);
+					int error = Math.abs(tables.grayLevel(rc, gc, bc) - referenceLevel(rc, gc, bc, gamma, rCoeff, gCoeff, bCoeff));
+					maxError = Math.max(maxError, error);
+				}
+			}
+		}
+		assertTrue(maxError <= MAX_LEVEL_ERROR, "gamma " + gamma + ": error of " + maxError + " levels");
+	}
+
+	/**
+	 * Gray level computed per pixel with Math.pow, as done before the tables
+	 */
+	private static int referenceLevel(int r, int g, int b, double gamma, double rCoeff, double gCoeff, double bCoeff)
+	{
+		float rGamma = (float) Math.pow(r / 255.0, gamma);
+		float gGamma = (float) Math.pow(g / 255.0, gamma);
+		float bGamma = (float) Math.pow(b / 255.0, gamma);
+		float luminance = (float) (rCoeff * rGamma + gCoeff * gGamma + bCoeff * bGamma);
+		return (int) (255.0 * Math.pow(luminance, 1.0 / gamma));
+	}
+
+	private static BufferedImage referenceConversion(BufferedImage source)
+	{
+		BufferedImage gray = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		for (int y = 0; y < source.getHeight(); y++) {
+			for (int x = 0; x < source.getWidth(); x++) {
+				int rgb = source.getRGB(x, y);
+				int level = referenceLevel((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF,
+						Image.GAMMA, Image.R_COEFF, Image.G_COEFF, Image.B_COEFF);
+				gray.setRGB(x, y, (level << 16) | (level << 8) | level);
+			}
+		}
+		return gray;
+	}
+}
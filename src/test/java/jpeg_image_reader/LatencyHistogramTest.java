@@ -0,0 +1,104 @@
+package jpeg_image_reader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bucket arithmetic of the histogram and error bound
+ * of the percentiles estimated from it
+ */
+public class LatencyHistogramTest {
+
+	static int SAMPLES = 10000;
+	static double[] PERCENTILES = {0, 1, 25, 50, 90, 99, 99.9, 100};
+
+	@Test
+	public void bucketsCoverEveryDurationOnce()
+	{
+		// Each bucket starts right after the upper bound of the previous one
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			long upper = LatencyHistogram.upperBound(i);
+			assertEquals(i, LatencyHistogram.bucket(upper), "bucket " + i);
+			if (i + 1 < LatencyHistogram.BUCKETS) {
+				assertEquals(i + 1, LatencyHistogram.bucket(upper + 1), "bucket " + i);
+			}
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.BUCKETS - 1));
+	}
+
+	@Test
+	public void upperBoundIsWithinAnEighth()
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long nanos = random.nextLong() >>> (1 + random.nextInt(63));
+			long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(nanos));
+			assertTrue(upper >= nanos, "duration " + nanos);
+			assertTrue(upper - nanos <= nanos / LatencyHistogram.SUB_BUCKETS, "duration " + nanos);
+		}
+	}
+
+	@Test
+	public void percentilesBoundTheExactValue()
+	{
+		Random random = new Random(42);
+		LatencyHistogram histogram = new LatencyHistogram();
+		long[] samples = new long[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			// Log-uniform from a microsecond to about a second
+			samples[i] = (long) Math.pow(10, 3 + 6 * random.nextDouble());
+			histogram.record(samples[i]);
+		}
+		Arrays.sort(samples);
+
+		for (double percentile : PERCENTILES) {
+			int rank = (int) Math.max(1, Math.ceil(SAMPLES * percentile / 100));
+			long exact = samples[rank - 1];
+			long estimate = histogram.getPercentileNanos(percentile);
+			assertTrue(estimate >= exact, "percentile " + percentile);
+			assertTrue(estimate <= exact + exact / LatencyHistogram.SUB_BUCKETS, "percentile " + percentile);
+		}
+		assertEquals(samples[SAMPLES - 1], histogram.getPercentileNanos(100));
+		assertEquals(samples[SAMPLES - 1], histogram.getMaxNanos());
+	}
+
+	@Test
+	public void shortDurationsAreExact()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 0; nanos < LatencyHistogram.SUB_BUCKETS; nanos++) {
+			histogram.record(nanos);
+		}
+		assertEquals(0, histogram.getPercentileNanos(0));
+		assertEquals(3, histogram.getPercentileNanos(50));
+		assertEquals(LatencyHistogram.SUB_BUCKETS - 1, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void totalsAndReset()
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentileNanos(50));
+		assertEquals(0, histogram.getMeanNanos());
+
+		histogram.record(1000);
+		histogram.record(3000);
+		histogram.record(-1);
+		assertEquals(2, histogram.getCount());
+		assertEquals(4000, histogram.getTotalNanos());
+		assertEquals(2000, histogram.getMeanNanos());
+		assertEquals(3000, histogram.getMaxNanos());
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getTotalNanos());
+		assertEquals(0, histogram.getMaxNanos());
+		assertEquals(0, histogram.getPercentileNanos(99));
+	}
+}